@@ -0,0 +1,49 @@
+package com.gream.mosaic.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks like JMH's own main class, but with the GC profiler on
+ * unless other profilers are asked for, so every result comes with the bytes
+ * allocated per operation ({@code gc.alloc.rate.norm}).
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar                         everything
+ * java -jar target/benchmarks.jar Nearest -p size=1000000 one benchmark, one size
+ * java -jar target/benchmarks.jar -h                      JMH options
+ * </pre>
+ */
+public class BenchmarkMain {
+
+  public static void main(String[] args) throws RunnerException {
+    CommandLineOptions cmd;
+    try {
+      cmd = new CommandLineOptions(args);
+    } catch (CommandLineOptionException e) {
+      System.err.println("Error parsing command line: " + e.getMessage());
+      System.exit(1);
+      return;
+    }
+    if (cmd.shouldHelp()) {
+      try {
+        cmd.showHelp();
+      } catch (java.io.IOException e) {
+        throw new RunnerException(e);
+      }
+      return;
+    }
+
+    ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd);
+    if (cmd.getProfilers().isEmpty()) {
+      options.addProfiler(GCProfiler.class);
+    }
+    new Runner(options.build()).run();
+  }
+
+}
@@ -0,0 +1,74 @@
+package com.gream.mosaic.benchmarks;
+
+import java.awt.Color;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.gream.mosaic.utils.ColorSpaceUtils;
+import com.gream.mosaic.utils.ImageUtils;
+
+/**
+ * The per-cell colour work of the match stage: averaging the pixels under a
+ * cell and converting colours to LAB. Every benchmark handles the pixels of one
+ * tile of {@code tileSize} x {@code tileSize}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColourBenchmark {
+
+  @Param({ "8", "32", "128" })
+  public int tileSize;
+
+  private int[] pixels;
+  private final double[] lab = new double[3];
+  private float[] labs;
+
+  @Setup
+  public void setUp() {
+    pixels = SyntheticLibrary.pixels(tileSize * tileSize);
+    labs = new float[pixels.length * 3];
+  }
+
+  @Benchmark
+  public Color averageRgb() {
+    return ImageUtils.getAverageRGB(pixels);
+  }
+
+  @Benchmark
+  public void rgbToLab(Blackhole bh) {
+    for (int p : pixels) {
+      ColorSpaceUtils.rgbToLab((p >> 16) & 0xFF, (p >> 8) & 0xFF, p & 0xFF, lab);
+      bh.consume(lab[0]);
+    }
+  }
+
+  @Benchmark
+  public void rgbToLabAllocating(Blackhole bh) {
+    for (int p : pixels) {
+      bh.consume(ColorSpaceUtils.rgbToLab((p >> 16) & 0xFF, (p >> 8) & 0xFF, p & 0xFF));
+    }
+  }
+
+  @Benchmark
+  public float[] rgbToLabBulk() {
+    ColorSpaceUtils.rgbToLab(pixels, labs);
+    return labs;
+  }
+
+}
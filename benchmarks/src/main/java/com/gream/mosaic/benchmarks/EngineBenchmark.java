@@ -0,0 +1,79 @@
+package com.gream.mosaic.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.gream.mosaic.MosaicEngine;
+import com.gream.mosaic.MosaicOptions;
+import com.gream.mosaic.MosaicPlan;
+
+/**
+ * The match and render stages of one mosaic against a warm engine, as the
+ * server runs them. The library is written to a temporary directory as small
+ * solid-colour images; thumbnails are loaded before measuring.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EngineBenchmark {
+
+  @Param({ "1000" })
+  public int librarySize;
+
+  @Param({ "50", "100", "200" })
+  public int blocks;
+
+  @Param({ "8", "16", "32" })
+  public int tileSize;
+
+  private File library;
+  private MosaicEngine engine;
+  private MosaicOptions options;
+  private BufferedImage input;
+  private MosaicPlan plan;
+
+  @Setup
+  public void setUp() throws Exception {
+    library = SyntheticLibrary.writeLibrary(librarySize, 32);
+    engine = new MosaicEngine(library.getPath());
+    engine.loadIndex();
+    options = new MosaicOptions();
+    options.setBlocks(blocks);
+    input = SyntheticLibrary.image(blocks * tileSize, blocks * tileSize);
+    plan = engine.match(input, options);
+    engine.render(plan, options);
+  }
+
+  @TearDown
+  public void tearDown() {
+    SyntheticLibrary.delete(library);
+  }
+
+  @Benchmark
+  public MosaicPlan match() throws Exception {
+    return engine.match(input, options);
+  }
+
+  @Benchmark
+  public BufferedImage render() throws Exception {
+    return engine.render(plan, options);
+  }
+
+}
@@ -0,0 +1,56 @@
+package com.gream.mosaic.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.gream.mosaic.TreeBuilder;
+import com.gream.mosaic.datastructures.KdTree;
+import com.gream.mosaic.datastructures.MosaicBinaryTree;
+import com.gream.mosaic.domainobjects.MosaicTile;
+
+/**
+ * Building the search trees from tiles already read from the image cache, the
+ * part of loadIndex() that grows with the library.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class IndexBuildBenchmark {
+
+  @Param({ "1000", "10000", "100000", "1000000" })
+  public int size;
+
+  private List<MosaicTile> tiles;
+
+  @Setup
+  public void setUp() {
+    tiles = SyntheticLibrary.tiles(size);
+  }
+
+  @Benchmark
+  public MosaicBinaryTree treeBuilderBuild() throws Exception {
+    return new TreeBuilder(new ArrayList<MosaicTile>(tiles)).build();
+  }
+
+  @Benchmark
+  public KdTree kdTreeBuild() {
+    return new KdTree(new ArrayList<MosaicTile>(tiles));
+  }
+
+}
@@ -0,0 +1,89 @@
+package com.gream.mosaic.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.gream.mosaic.TreeBuilder;
+import com.gream.mosaic.datastructures.KdTree;
+import com.gream.mosaic.datastructures.MosaicBinaryTree;
+import com.gream.mosaic.datastructures.TreeOverlay;
+import com.gream.mosaic.domainobjects.MosaicTile;
+
+/**
+ * One lookup of the closest source tile, in the binary tree the greedy matcher
+ * walks and in the kd-tree behind usage limits and the optimal assignment.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NearestNeighbourBenchmark {
+
+  private static final int TARGETS = 1024;
+
+  @Param({ "1000", "10000", "100000", "1000000" })
+  public int size;
+
+  private MosaicBinaryTree tree;
+  private TreeOverlay overlay;
+  private KdTree kdTree;
+  private MosaicTile[] targets;
+
+  @Setup
+  public void setUp() throws Exception {
+    List<MosaicTile> tiles = SyntheticLibrary.tiles(size);
+    tree = new TreeBuilder(tiles).build();
+    // Nothing is consumed, so one overlay serves every lookup
+    overlay = tree.newOverlay(size, 0);
+    kdTree = new KdTree(new ArrayList<MosaicTile>(tiles));
+    targets = SyntheticLibrary.targets(TARGETS);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(TARGETS)
+  public void binaryTreeFindClosest(Blackhole bh) {
+    for (MosaicTile target : targets) {
+      bh.consume(tree.findClosest(target, overlay));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(TARGETS)
+  public void kdTreeFindNearest(Blackhole bh) {
+    for (MosaicTile target : targets) {
+      bh.consume(kdTree.findNearest(target));
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class Budget {
+    @Param({ "1", "4", "16" })
+    public int leafChecks;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(TARGETS)
+  public void kdTreeFindNearestApproximate(Budget budget, Blackhole bh) {
+    for (MosaicTile target : targets) {
+      bh.consume(kdTree.findNearestApproximate(target, budget.leafChecks));
+    }
+  }
+
+}
@@ -0,0 +1,121 @@
+package com.gream.mosaic.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.gream.mosaic.MosaicEngine;
+import com.gream.mosaic.MosaicOptions;
+import com.gream.mosaic.utils.ParallelPngWriter;
+
+/**
+ * Compressing a rendered mosaic to PNG with the ImageIO writer and with the
+ * {@link ParallelPngWriter} on {@code threads} threads, at several deflate
+ * levels. The mosaic has {@code blocks x blocks} tiles of 32 pixels drawn from
+ * a synthetic library; the output size is reported as the {@code bytes}
+ * counter. {@code threads} does not apply to ImageIO.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PngEncodeBenchmark {
+
+  @Param({ "100" })
+  public int blocks;
+
+  @Param({ "1", "4", "9" })
+  public int level;
+
+  @Param({ "1", "2", "4", "8" })
+  public int threads;
+
+  private BufferedImage mosaic;
+
+  /**
+   * The size of the last output.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Output {
+
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      bytes = 0;
+    }
+  }
+
+  @Setup
+  public void setUp() throws Exception {
+    File library = SyntheticLibrary.writeLibrary(1000, 32);
+    try {
+      MosaicEngine engine = new MosaicEngine(library.getPath());
+      engine.loadIndex();
+      MosaicOptions options = new MosaicOptions();
+      options.setBlocks(blocks);
+      BufferedImage input = SyntheticLibrary.image(blocks * 32, blocks * 32);
+      mosaic = engine.render(engine.match(input, options), options);
+    } finally {
+      SyntheticLibrary.delete(library);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    mosaic = null;
+  }
+
+  @Benchmark
+  public int imageIo(Output output) throws IOException {
+    ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+    ImageWriteParam param = writer.getDefaultWriteParam();
+    param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+    // The writer deflates at level (int) (9 * (1 - quality))
+    param.setCompressionQuality(Math.max(0f, 1f - (level + 0.5f) / 9f));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+      writer.setOutput(stream);
+      writer.write(null, new IIOImage(mosaic, null, null), param);
+    } finally {
+      writer.dispose();
+    }
+    output.bytes = out.size();
+    return out.size();
+  }
+
+  @Benchmark
+  public int parallel(Output output) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new ParallelPngWriter(threads, level).write(mosaic, out);
+    output.bytes = out.size();
+    return out.size();
+  }
+
+}
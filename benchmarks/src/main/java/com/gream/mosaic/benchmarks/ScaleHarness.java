@@ -0,0 +1,418 @@
+package com.gream.mosaic.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.imageio.ImageIO;
+
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import com.gream.mosaic.MosaicEngine;
+import com.gream.mosaic.MosaicException;
+import com.gream.mosaic.MosaicOptions;
+import com.gream.mosaic.MosaicPlan;
+import com.gream.mosaic.metrics.Metrics;
+import com.gream.mosaic.utils.ColorMetric;
+import com.gream.mosaic.utils.ColorSpaceUtils;
+
+/**
+ * End-to-end runs over synthetic libraries and inputs: builds and loads the
+ * index, then decodes, matches, renders and encodes every input for every
+ * combination of blocks and configuration, and writes speed, memory, quality
+ * and tile reuse per run to a JSON file. Everything is generated from fixed
+ * seeds, so results of different releases can be compared.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.gream.mosaic.benchmarks.ScaleHarness -l 1000,10000 -i 1024 -b 100 -o scale.json
+ * </pre>
+ *
+ * Quality is measured against the part of the input the mosaic covers: PSNR
+ * over RGB and the mean CIE76 and CIEDE2000 colour differences per pixel. Peak
+ * RSS comes from /proc and is only reset between runs where the kernel allows
+ * it.
+ */
+public class ScaleHarness {
+
+  enum Config {
+    /** Binary tree search, the default */
+    GREEDY("greedy") {
+      void apply(MosaicOptions options, int cells, int library) {
+      }
+    },
+    NOISE("noise") {
+      void apply(MosaicOptions options, int cells, int library) {
+        options.setNoise(0.2);
+      }
+    },
+    DIVERSITY("diversity") {
+      void apply(MosaicOptions options, int cells, int library) {
+        options.setDiversityRadius(3);
+      }
+    },
+    /**
+     * Exact kd-tree search: best-bin-first without a leaf budget, so it stops
+     * only when no branch can hold anything closer. Like the binary tree and
+     * APPROXIMATE it has no usage limit, hence no reuse penalty.
+     */
+    KD_TREE("kdtree") {
+      void apply(MosaicOptions options, int cells, int library) {
+        options.setSearchBudget(Integer.MAX_VALUE);
+      }
+    },
+    /** Best-bin-first kd-tree search checking at most 4 leaves */
+    APPROXIMATE("approximate") {
+      void apply(MosaicOptions options, int cells, int library) {
+        options.setSearchBudget(4);
+      }
+    },
+    /** Nearest candidates by LAB distance re-ranked with CIEDE2000 */
+    PERCEPTUAL("perceptual") {
+      void apply(MosaicOptions options, int cells, int library) {
+        options.setColorMetric(ColorMetric.CIEDE2000);
+      }
+    },
+    /** Nearest 2x2 colour grids from the VP-tree */
+    GRID("grid") {
+      void apply(MosaicOptions options, int cells, int library) {
+        options.setGrid(2);
+      }
+    },
+    /** Quadtree layout merging up to 4x4 blocks where the input is flat */
+    ADAPTIVE("adaptive") {
+      void apply(MosaicOptions options, int cells, int library) {
+        options.setAdaptiveLevels(2);
+      }
+    },
+    /** Optimal assignment under the tightest usage limit that fits */
+    OPTIMAL("optimal") {
+      void apply(MosaicOptions options, int cells, int library) {
+        options.setMaxUsage((cells + library - 1) / library);
+        options.setOptimal(true);
+      }
+    };
+
+    final String key;
+
+    Config(String key) {
+      this.key = key;
+    }
+
+    abstract void apply(MosaicOptions options, int cells, int library);
+
+    static Config forKey(String key) {
+      for (Config config : values()) {
+        if (config.key.equals(key)) {
+          return config;
+        }
+      }
+      throw new IllegalArgumentException("Unknown configuration: " + key);
+    }
+  }
+
+  @Option(name = "-libraries", aliases = "-l", usage = "Comma separated numbers of source images. Defaults to 500,2000.")
+  private String librarySizes = "500,2000";
+
+  @Option(name = "-inputs", aliases = "-i", usage = "Comma separated input sizes in pixels; inputs are square. Defaults to 512,1024.")
+  private String inputSizes = "512,1024";
+
+  @Option(name = "-blocks", aliases = "-b", usage = "Comma separated numbers of tiles per row. Defaults to 50,100.")
+  private String blockCounts = "50,100";
+
+  @Option(name = "-configs", aliases = "-c", usage = "Comma separated configurations out of greedy, noise, diversity, kdtree, approximate, perceptual, grid, adaptive and optimal. Defaults to all.")
+  private String configs = "greedy,noise,diversity,kdtree,approximate,perceptual,grid,adaptive,optimal";
+
+  @Option(name = "-textured", usage = "Source images get stripes and noise around their colour instead of a solid fill.")
+  private boolean textured;
+
+  @Option(name = "-image_size", usage = "Width and height of the source images. Defaults to 32.")
+  private int imageSize = 32;
+
+  @Option(name = "-work", aliases = "-w", usage = "Directory for the generated libraries, inputs and outputs. Defaults to a temporary directory that is deleted afterwards.")
+  private String work;
+
+  @Option(name = "-output", aliases = "-o", usage = "The JSON file to write. Defaults to scale-results.json.")
+  private String output = "scale-results.json";
+
+  private final List<String> libraryResults = new ArrayList<String>();
+  private final List<String> runResults = new ArrayList<String>();
+
+  public void run() throws IOException, MosaicException {
+    File workDir = work != null ? new File(work) : Files.createTempDirectory("mosaic-scale").toFile();
+    try {
+      for (int librarySize : parse(librarySizes)) {
+        runLibrary(workDir, librarySize);
+      }
+    } finally {
+      if (work == null) {
+        deleteRecursively(workDir);
+      }
+    }
+    Files.write(Paths.get(output), toJson().getBytes(StandardCharsets.UTF_8));
+    System.out.println("[INFO] Results written to: " + output);
+  }
+
+  private void runLibrary(File workDir, int librarySize) throws IOException, MosaicException {
+    File libraryDir = new File(workDir, "library-" + librarySize + (textured ? "-textured" : ""));
+    if (!libraryDir.isDirectory() && !libraryDir.mkdirs()) {
+      throw new IOException("Cannot create " + libraryDir);
+    }
+    System.out.println("[INFO] Generating " + librarySize + " source images in " + libraryDir);
+    SyntheticLibrary.writeLibrary(libraryDir, librarySize, imageSize, textured);
+
+    // Colour grids cost index time, so only analyse them when they are used
+    int grid = 0;
+    for (String key : configs.split(",")) {
+      if (Config.forKey(key.trim()) == Config.GRID) {
+        grid = 2;
+      }
+    }
+    MosaicEngine engine = new MosaicEngine(libraryDir.getPath());
+    long start = System.nanoTime();
+    engine.buildIndex(grid);
+    long indexNanos = System.nanoTime() - start;
+    start = System.nanoTime();
+    engine.loadIndex();
+    long loadNanos = System.nanoTime() - start;
+    libraryResults.add(String.format(Locale.ROOT,
+        "{\"size\": %d, \"textured\": %b, \"grid\": %d, \"indexMillis\": %.1f, \"imagesPerSecond\": %.1f, "
+            + "\"loadIndexMillis\": %.1f}",
+        librarySize, textured, grid, indexNanos / 1e6, librarySize / (indexNanos / 1e9), loadNanos / 1e6));
+
+    for (int inputSize : parse(inputSizes)) {
+      File input = new File(workDir, "input-" + inputSize + ".png");
+      if (!input.exists()) {
+        ImageIO.write(SyntheticLibrary.image(inputSize, inputSize), "png", input);
+      }
+      for (int blocks : parse(blockCounts)) {
+        if (blocks > inputSize) {
+          continue;
+        }
+        for (String key : configs.split(",")) {
+          Config config = Config.forKey(key.trim());
+          File out = new File(workDir,
+              "mosaic-" + librarySize + "-" + inputSize + "-" + blocks + "-" + config.key + ".png");
+          runResults.add(runOnce(engine, librarySize, input, inputSize, blocks, config, out));
+        }
+      }
+    }
+  }
+
+  private String runOnce(MosaicEngine engine, int librarySize, File input, int inputSize, int blocks, Config config,
+      File out) {
+    int cells = blocks * blocks;
+    MosaicOptions options = new MosaicOptions();
+    options.setBlocks(blocks);
+    config.apply(options, cells, librarySize);
+
+    String run = String.format(Locale.ROOT, "\"library\": %d, \"input\": %d, \"blocks\": %d, \"config\": \"%s\"",
+        librarySize, inputSize, blocks, config.key);
+    System.out.println("[INFO] Run " + run.replace("\"", ""));
+
+    Metrics metrics = new Metrics();
+    engine.setMetrics(metrics);
+    resetPeaks();
+    try {
+      long start = System.nanoTime();
+      BufferedImage img = engine.readInput(input);
+      long decoded = System.nanoTime();
+      MosaicPlan plan = engine.match(img, options);
+      long matched = System.nanoTime();
+      BufferedImage rendered = engine.render(plan, options);
+      long renderedAt = System.nanoTime();
+      engine.encode(rendered, out);
+      long end = System.nanoTime();
+
+      StringBuilder json = new StringBuilder("{").append(run);
+      json.append(String.format(Locale.ROOT,
+          ", \"totalMillis\": %.1f, \"decodeMillis\": %.1f, \"matchMillis\": %.1f, \"renderMillis\": %.1f,"
+              + " \"encodeMillis\": %.1f, \"tilesPerSecond\": %.1f",
+          (end - start) / 1e6, (decoded - start) / 1e6, (matched - decoded) / 1e6, (renderedAt - matched) / 1e6,
+          (end - renderedAt) / 1e6, plan.getCells() / ((renderedAt - decoded) / 1e9)));
+      json.append(String.format(Locale.ROOT, ", \"peakRssKb\": %d, \"peakHeapBytes\": %d", peakRssKb(),
+          peakHeapBytes()));
+      json.append(", ").append(quality(img, rendered));
+      json.append(", ").append(reuse(plan, librarySize));
+      json.append(", \"metrics\": ").append(metrics.toJson().trim().replace("\n", "\n    "));
+      return json.append("}").toString();
+    } catch (MosaicException e) {
+      System.err.println("[WARNING] " + e.getMessage());
+      return "{" + run + ", \"error\": \"" + escape(e.getMessage()) + "\"}";
+    }
+  }
+
+  /**
+   * PSNR over RGB and mean CIE76 and CIEDE2000 differences between the mosaic
+   * and the part of the input it covers.
+   */
+  static String quality(BufferedImage input, BufferedImage mosaic) {
+    int width = mosaic.getWidth();
+    int height = mosaic.getHeight();
+    int[] a = input.getRGB(0, 0, width, height, null, 0, width);
+    int[] b = mosaic.getRGB(0, 0, width, height, null, 0, width);
+    double[] labA = new double[3];
+    double[] labB = new double[3];
+    double squaredError = 0;
+    double deltaE = 0;
+    double deltaE2000 = 0;
+    for (int i = 0; i < a.length; i++) {
+      int ra = (a[i] >> 16) & 0xFF;
+      int ga = (a[i] >> 8) & 0xFF;
+      int ba = a[i] & 0xFF;
+      int rb = (b[i] >> 16) & 0xFF;
+      int gb = (b[i] >> 8) & 0xFF;
+      int bb = b[i] & 0xFF;
+      squaredError += (ra - rb) * (ra - rb) + (ga - gb) * (ga - gb) + (ba - bb) * (ba - bb);
+      ColorSpaceUtils.rgbToLab(ra, ga, ba, labA);
+      ColorSpaceUtils.rgbToLab(rb, gb, bb, labB);
+      deltaE += ColorSpaceUtils.getDeltaE(labA, labB);
+      deltaE2000 += ColorSpaceUtils.getDeltaE2000(labA, labB);
+    }
+    double mse = squaredError / (3.0 * a.length);
+    double psnr = mse == 0 ? 99 : 10 * Math.log10(255.0 * 255.0 / mse);
+    return String.format(Locale.ROOT, "\"psnr\": %.3f, \"meanDeltaE\": %.3f, \"meanDeltaE2000\": %.3f", psnr,
+        deltaE / a.length, deltaE2000 / a.length);
+  }
+
+  /**
+   * How many cells the plan has, how many different source images it uses,
+   * how often, and how often a cell repeats the cell right of or below its top
+   * left block.
+   */
+  static String reuse(MosaicPlan plan, int librarySize) {
+    int blocks = plan.getBlocks();
+    int[] uses = new int[librarySize];
+    int distinct = 0;
+    int maxUses = 0;
+    int adjacentRepeats = 0;
+    for (int i = 0; i < blocks; i++) {
+      for (int j = 0; j < blocks; j++) {
+        int size = plan.getCellSize(i, j);
+        if (size == 0) {
+          continue;
+        }
+        int tile = plan.getTile(i, j);
+        if (uses[tile]++ == 0) {
+          distinct++;
+        }
+        maxUses = Math.max(maxUses, uses[tile]);
+        if (i + size < blocks && plan.getCellSize(i + size, j) > 0 && plan.getTile(i + size, j) == tile) {
+          adjacentRepeats++;
+        }
+        if (j + size < blocks && plan.getCellSize(i, j + size) > 0 && plan.getTile(i, j + size) == tile) {
+          adjacentRepeats++;
+        }
+      }
+    }
+    return String.format(Locale.ROOT,
+        "\"cells\": %d, \"distinctTiles\": %d, \"libraryCoverage\": %.4f, \"maxUses\": %d,"
+            + " \"meanUses\": %.3f, \"adjacentRepeats\": %d",
+        plan.getCells(), distinct, distinct / (double) librarySize, maxUses, plan.getCells() / (double) distinct,
+        adjacentRepeats);
+  }
+
+  private static void resetPeaks() {
+    System.gc();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      pool.resetPeakUsage();
+    }
+    try {
+      // Resets VmHWM on Linux; elsewhere the peak is that of the whole process
+      Files.write(Paths.get("/proc/self/clear_refs"), "5".getBytes(StandardCharsets.US_ASCII));
+    } catch (IOException | SecurityException e) {
+      // Keep the process-wide peak
+    }
+  }
+
+  /**
+   * @return the peak resident set size in KB, -1 where /proc is not available
+   */
+  private static long peakRssKb() {
+    try {
+      for (String line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.US_ASCII)) {
+        if (line.startsWith("VmHWM:")) {
+          return Long.parseLong(line.substring(6).replace("kB", "").trim());
+        }
+      }
+    } catch (IOException | NumberFormatException e) {
+      // Not Linux
+    }
+    return -1;
+  }
+
+  private static long peakHeapBytes() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+
+  private String toJson() {
+    StringBuilder json = new StringBuilder("{\n");
+    json.append(String.format(Locale.ROOT, "  \"java\": \"%s\",\n  \"processors\": %d,\n  \"maxHeapBytes\": %d,\n",
+        escape(System.getProperty("java.version")), Runtime.getRuntime().availableProcessors(),
+        Runtime.getRuntime().maxMemory()));
+    json.append("  \"libraries\": [\n    ").append(String.join(",\n    ", libraryResults)).append("\n  ],\n");
+    json.append("  \"runs\": [\n    ").append(String.join(",\n    ", runResults)).append("\n  ]\n}\n");
+    return json.toString();
+  }
+
+  private static int[] parse(String list) {
+    String[] parts = list.split(",");
+    int[] values = new int[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      values[i] = Integer.parseInt(parts[i].trim());
+    }
+    return values;
+  }
+
+  private static String escape(String s) {
+    return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+
+  @SuppressWarnings("deprecation")
+  public static void main(String[] args) {
+    ScaleHarness harness = new ScaleHarness();
+    CmdLineParser parser = new CmdLineParser(harness);
+    try {
+      parser.parseArgument(args);
+    } catch (CmdLineException e) {
+      System.err.println(e.getMessage());
+      System.err.println("java -cp benchmarks.jar " + ScaleHarness.class.getName() + " [options...]");
+      parser.printUsage(System.err);
+      return;
+    }
+
+    try {
+      harness.run();
+    } catch (MosaicException | IOException | IllegalArgumentException e) {
+      System.err.println("[ERROR] " + e.getMessage());
+      System.exit(-1);
+    }
+  }
+
+}
@@ -0,0 +1,154 @@
+package com.gream.mosaic.benchmarks;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import com.gream.mosaic.MosaicEngine;
+import com.gream.mosaic.domainobjects.MosaicTile;
+
+/**
+ * Reproducible source libraries and inputs, so benchmark runs on different
+ * machines and commits see the same data.
+ */
+final class SyntheticLibrary {
+
+  static final long SEED = 42;
+
+  private SyntheticLibrary() {
+  }
+
+  /**
+   * @return {@code size} source tiles of random colour, indexed like tiles
+   *         read from an image cache
+   */
+  static List<MosaicTile> tiles(int size) {
+    Random random = new Random(SEED);
+    List<MosaicTile> tiles = new ArrayList<MosaicTile>(size);
+    for (int i = 0; i < size; i++) {
+      Color color = new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256));
+      try {
+        MosaicTile tile = new MosaicTile(Integer.toString(i), "synthetic/" + i + ".png", color);
+        tile.setIndex(i);
+        tiles.add(tile);
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
+    }
+    return tiles;
+  }
+
+  /**
+   * @return {@code count} target colours to look up
+   */
+  static MosaicTile[] targets(int count) {
+    Random random = new Random(SEED + 1);
+    MosaicTile[] targets = new MosaicTile[count];
+    for (int i = 0; i < count; i++) {
+      targets[i] = new MosaicTile(random.nextInt(256), random.nextInt(256), random.nextInt(256));
+    }
+    return targets;
+  }
+
+  /**
+   * @return ARGB pixels of random colour
+   */
+  static int[] pixels(int count) {
+    Random random = new Random(SEED + 2);
+    int[] pixels = new int[count];
+    for (int i = 0; i < count; i++) {
+      pixels[i] = 0xff000000 | random.nextInt(0x1000000);
+    }
+    return pixels;
+  }
+
+  /**
+   * @return a smooth gradient with some noise, roughly what a photo looks like
+   *         to the matcher
+   */
+  static BufferedImage image(int width, int height) {
+    Random random = new Random(SEED + 3);
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int r = Math.min(255, x * 255 / width + random.nextInt(16));
+        int g = Math.min(255, y * 255 / height + random.nextInt(16));
+        int b = Math.min(255, (x + y) * 127 / (width + height) + random.nextInt(16));
+        image.setRGB(x, y, (r << 16) | (g << 8) | b);
+      }
+    }
+    return image;
+  }
+
+  /**
+   * Writes {@code size} small solid-colour images and their image cache to a
+   * fresh directory, so an engine can load and render it like a real library.
+   */
+  static File writeLibrary(int size, int imageSize) throws IOException {
+    File dir = Files.createTempDirectory("mosaic-bench").toFile();
+    writeLibrary(dir, size, imageSize, false);
+    Files.write(new File(dir, MosaicEngine.IMAGE_CACHE_CSV).toPath(),
+        cacheCsv(dir, size).getBytes(StandardCharsets.UTF_8));
+    return dir;
+  }
+
+  /**
+   * Writes {@code size} small images to {@code dir}, without an image cache.
+   *
+   * @param textured stripes and noise around the tile colour instead of a solid
+   *                 fill, so averaging and scaling see real work
+   */
+  static void writeLibrary(File dir, int size, int imageSize, boolean textured) throws IOException {
+    Random random = new Random(SEED + 4);
+    BufferedImage image = new BufferedImage(imageSize, imageSize, BufferedImage.TYPE_INT_RGB);
+    for (MosaicTile tile : tiles(size)) {
+      int r = tile.getR();
+      int g = tile.getG();
+      int b = tile.getB();
+      for (int y = 0; y < imageSize; y++) {
+        for (int x = 0; x < imageSize; x++) {
+          int shift = textured ? ((x + y) / 4 % 2 == 0 ? 24 : -24) + random.nextInt(33) - 16 : 0;
+          image.setRGB(x, y, (clamp(r + shift) << 16) | (clamp(g + shift) << 8) | clamp(b + shift));
+        }
+      }
+      ImageIO.write(image, "png", new File(dir, tile.getId() + ".png"));
+    }
+  }
+
+  /**
+   * @return the image cache for a library written by
+   *         {@link #writeLibrary(File, int, int, boolean)}, with the nominal tile
+   *         colours
+   */
+  private static String cacheCsv(File dir, int size) {
+    StringBuilder csv = new StringBuilder();
+    for (MosaicTile tile : tiles(size)) {
+      csv.append(tile.getId()).append(',').append(tile.getR()).append(',').append(tile.getG()).append(',')
+          .append(tile.getB()).append(',').append(new File(dir, tile.getId() + ".png").getPath()).append('\n');
+    }
+    return csv.toString();
+  }
+
+  private static int clamp(int value) {
+    return Math.max(0, Math.min(255, value));
+  }
+
+  static void delete(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    dir.delete();
+  }
+
+}
@@ -0,0 +1,211 @@
+package com.gream.mosaic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.gream.mosaic.domainobjects.MosaicTile;
+import com.gream.mosaic.utils.ColorSpaceUtils;
+import com.gream.mosaic.utils.PerceptualHash;
+
+/**
+ * Finds near-duplicate source images, such as burst shots or copies at
+ * another size, and keeps only a few of each group, so the index grows with
+ * the variety of the library rather than its file count.
+ *
+ * Two images are near-duplicates if their perceptual hashes differ in at most
+ * the given number of bits and their average colours are within
+ * {@value #MAX_COLOR_DISTANCE} in LAB; the hash alone is blind to colour.
+ * Groups are the transitive closure of that relation. Only images in
+ * neighbouring cells of a LAB grid with that spacing are compared, so the
+ * cost grows with the number of similarly coloured images, not with the
+ * square of the library.
+ */
+public class DuplicateFilter {
+
+  static final double MAX_COLOR_DISTANCE = 8;
+
+  private final int maxDistance;
+  private final int keep;
+
+  /**
+   * @param maxDistance the most bits the perceptual hashes of two
+   *                    near-duplicates may differ in
+   * @param keep        the number of images kept per group, the most typical
+   *                    ones
+   */
+  public DuplicateFilter(int maxDistance, int keep) {
+    this.maxDistance = maxDistance;
+    this.keep = Math.max(1, keep);
+  }
+
+  public int getMaxDistance() {
+    return maxDistance;
+  }
+
+  /**
+   * @return the number of images kept per group
+   */
+  public int getKeep() {
+    return keep;
+  }
+
+  /**
+   * The images kept and the groups that were thinned out.
+   */
+  public static class Result {
+
+    private final List<MosaicTile> kept;
+    private final List<List<MosaicTile>> clusters;
+    private final int removed;
+
+    Result(List<MosaicTile> kept, List<List<MosaicTile>> clusters, int removed) {
+      this.kept = kept;
+      this.clusters = clusters;
+      this.removed = removed;
+    }
+
+    /**
+     * @return the images that stay in the index, in their original order
+     */
+    public List<MosaicTile> getKept() {
+      return kept;
+    }
+
+    /**
+     * @return every group of more than one image, the kept ones first
+     */
+    public List<List<MosaicTile>> getClusters() {
+      return clusters;
+    }
+
+    public int getRemoved() {
+      return removed;
+    }
+  }
+
+  /**
+   * @param tiles analysed images with a perceptual hash
+   */
+  public Result filter(List<MosaicTile> tiles) {
+    int n = tiles.size();
+    int[] parent = new int[n];
+    for (int i = 0; i < n; i++) {
+      parent[i] = i;
+    }
+
+    Map<Long, List<Integer>> cells = new HashMap<Long, List<Integer>>();
+    for (int i = 0; i < n; i++) {
+      cells.computeIfAbsent(cell(tiles.get(i), 0, 0, 0), k -> new ArrayList<Integer>()).add(i);
+    }
+
+    double maxColorSquared = MAX_COLOR_DISTANCE * MAX_COLOR_DISTANCE;
+    for (int i = 0; i < n; i++) {
+      MosaicTile tile = tiles.get(i);
+      for (int dl = -1; dl <= 1; dl++) {
+        for (int da = -1; da <= 1; da++) {
+          for (int db = -1; db <= 1; db++) {
+            List<Integer> neighbours = cells.get(cell(tile, dl, da, db));
+            if (neighbours == null) {
+              continue;
+            }
+            for (int j : neighbours) {
+              // Every pair is seen from both ends; test it once
+              if (j <= i || find(parent, i) == find(parent, j)) {
+                continue;
+              }
+              MosaicTile other = tiles.get(j);
+              if (PerceptualHash.distance(tile.getPerceptualHash(), other.getPerceptualHash()) <= maxDistance
+                  && ColorSpaceUtils.getLabDistanceSquared(tile.getLabColor(), other.getLabColor())
+                      <= maxColorSquared) {
+                parent[find(parent, j)] = find(parent, i);
+              }
+            }
+          }
+        }
+      }
+    }
+
+    Map<Integer, List<Integer>> groups = new LinkedHashMap<Integer, List<Integer>>();
+    for (int i = 0; i < n; i++) {
+      groups.computeIfAbsent(find(parent, i), k -> new ArrayList<Integer>()).add(i);
+    }
+
+    boolean[] kept = new boolean[n];
+    List<List<MosaicTile>> clusters = new ArrayList<List<MosaicTile>>();
+    int removed = 0;
+    for (List<Integer> group : groups.values()) {
+      List<Integer> ordered = byTypicality(tiles, group);
+      for (int k = 0; k < Math.min(keep, ordered.size()); k++) {
+        kept[ordered.get(k)] = true;
+      }
+      if (group.size() > 1) {
+        List<MosaicTile> cluster = new ArrayList<MosaicTile>(ordered.size());
+        for (int index : ordered) {
+          cluster.add(tiles.get(index));
+        }
+        clusters.add(Collections.unmodifiableList(cluster));
+        removed += Math.max(0, group.size() - keep);
+      }
+    }
+
+    List<MosaicTile> keptTiles = new ArrayList<MosaicTile>(n - removed);
+    for (int i = 0; i < n; i++) {
+      if (kept[i]) {
+        keptTiles.add(tiles.get(i));
+      }
+    }
+    return new Result(keptTiles, clusters, removed);
+  }
+
+  /**
+   * @return the group ordered by the summed hash distance to the other
+   *         members, least first; ties keep their order
+   */
+  private static List<Integer> byTypicality(List<MosaicTile> tiles, List<Integer> group) {
+    if (group.size() <= 2) {
+      return group;
+    }
+    final long[] distances = new long[group.size()];
+    for (int a = 0; a < group.size(); a++) {
+      long hash = tiles.get(group.get(a)).getPerceptualHash();
+      for (int b = a + 1; b < group.size(); b++) {
+        int d = PerceptualHash.distance(hash, tiles.get(group.get(b)).getPerceptualHash());
+        distances[a] += d;
+        distances[b] += d;
+      }
+    }
+    Integer[] order = new Integer[group.size()];
+    for (int a = 0; a < order.length; a++) {
+      order[a] = a;
+    }
+    Arrays.sort(order, (a, b) -> Long.compare(distances[a], distances[b]));
+    List<Integer> ordered = new ArrayList<Integer>(order.length);
+    for (int a : order) {
+      ordered.add(group.get(a));
+    }
+    return ordered;
+  }
+
+  private static long cell(MosaicTile tile, int dl, int da, int db) {
+    double[] lab = tile.getLabColor();
+    long l = (long) Math.floor(lab[0] / MAX_COLOR_DISTANCE) + dl;
+    long a = (long) Math.floor(lab[1] / MAX_COLOR_DISTANCE) + da;
+    long b = (long) Math.floor(lab[2] / MAX_COLOR_DISTANCE) + db;
+    // L is in [0, 100], a and b well within [-200, 200]
+    return (l + 64) << 32 | (a + 64) << 16 | (b + 64);
+  }
+
+  private static int find(int[] parent, int i) {
+    while (parent[i] != i) {
+      parent[i] = parent[parent[i]];
+      i = parent[i];
+    }
+    return i;
+  }
+
+}
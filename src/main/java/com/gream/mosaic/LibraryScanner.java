@@ -0,0 +1,247 @@
+package com.gream.mosaic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+import com.gream.mosaic.logging.Reporter;
+
+/**
+ * Finds the source images in a directory tree and hands each to a
+ * {@link Handler} as soon as it is found. Directories are listed and files
+ * handled by the same pool of threads, so analysis starts with the first
+ * image. At most {@link #TASKS_PER_THREAD} tasks per thread wait or run on the
+ * pool; beyond that the thread listing a directory handles its files itself,
+ * so listing cannot run ahead of decoding and no list of the whole library is
+ * built.
+ *
+ * A file is an image if its extension is one of {@link #EXTENSIONS} and its
+ * first bytes are the signature of one of those formats, which leaves out the
+ * image cache, sidecar files and other files before anything is decoded.
+ * Hidden files and directories are skipped, and so are links to directories,
+ * which could form cycles.
+ */
+public class LibraryScanner {
+
+  /**
+   * The extensions of the formats read, in lower case.
+   */
+  static final Set<String> EXTENSIONS = Collections.unmodifiableSet(new HashSet<String>(
+      Arrays.asList("jpg", "jpeg", "jpe", "png", "gif", "bmp", "tif", "tiff")));
+
+  static final int TASKS_PER_THREAD = 4;
+
+  private static final boolean TIFF = ImageIO.getImageReadersBySuffix("tiff").hasNext();
+
+  /**
+   * Receives the images found, on the scanner's threads.
+   */
+  public interface Handler {
+
+    void handle(File image);
+  }
+
+  private final int threads;
+  private final Reporter log;
+
+  private final AtomicLong directories = new AtomicLong();
+  private final AtomicLong images = new AtomicLong();
+  private final AtomicLong skipped = new AtomicLong();
+
+  /**
+   * @param threads the number of threads listing directories and handling
+   *                images
+   */
+  public LibraryScanner(int threads, Reporter log) {
+    this.threads = Math.max(1, threads);
+    this.log = log;
+  }
+
+  /**
+   * Hands every image under {@code root} to the handler and returns when all
+   * of them have been handled. Directories that cannot be read are reported
+   * and left out.
+   */
+  public void scan(final File root, final Handler handler) throws InterruptedException {
+    directories.set(0);
+    images.set(0);
+    skipped.set(0);
+    final ExecutorService pool = Executors.newFixedThreadPool(threads);
+    final Semaphore slots = new Semaphore(threads * TASKS_PER_THREAD);
+    final AtomicLong pending = new AtomicLong();
+    final CountDownLatch done = new CountDownLatch(1);
+    try {
+      submit(pool, slots, pending, done, new Runnable() {
+
+        public void run() {
+          list(root.toPath(), pool, slots, pending, done, handler);
+        }
+      });
+      done.await();
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * @return the directories listed by the last scan, the root included
+   */
+  public long getDirectories() {
+    return directories.get();
+  }
+
+  /**
+   * @return the images handed to the handler by the last scan
+   */
+  public long getImages() {
+    return images.get();
+  }
+
+  /**
+   * @return the files left out by the last scan for their extension or
+   *         signature
+   */
+  public long getSkipped() {
+    return skipped.get();
+  }
+
+  private void list(Path directory, ExecutorService pool, Semaphore slots, AtomicLong pending,
+      CountDownLatch done, final Handler handler) {
+    directories.incrementAndGet();
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+      for (final Path entry : entries) {
+        String name = entry.getFileName().toString();
+        if (name.startsWith(".")) {
+          continue;
+        }
+        BasicFileAttributes attributes;
+        try {
+          attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+          log.warn("Failed to read " + entry + ": " + e.getMessage());
+          continue;
+        }
+        if (attributes.isDirectory()) {
+          submit(pool, slots, pending, done, new Runnable() {
+
+            public void run() {
+              list(entry, pool, slots, pending, done, handler);
+            }
+          });
+        } else if (attributes.isSymbolicLink() ? Files.isRegularFile(entry) : attributes.isRegularFile()) {
+          if (!hasImageExtension(name)) {
+            skipped.incrementAndGet();
+            continue;
+          }
+          submit(pool, slots, pending, done, new Runnable() {
+
+            public void run() {
+              File file = entry.toFile();
+              if (hasImageSignature(file)) {
+                images.incrementAndGet();
+                handler.handle(file);
+              } else {
+                skipped.incrementAndGet();
+                if (log.isDebugEnabled()) {
+                  log.debug("Skipping " + file + ": not an image");
+                }
+              }
+            }
+          });
+        }
+      }
+    } catch (IOException | DirectoryIteratorException e) {
+      log.warn("Failed to list directory " + directory + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Runs a task on the pool, counting it until it has finished; the last task
+   * to finish releases {@link #scan(File, Handler)}. When all slots are taken
+   * the caller runs the task itself, which never blocks a pool thread that
+   * the queued tasks wait for.
+   */
+  private static void submit(ExecutorService pool, final Semaphore slots, final AtomicLong pending,
+      final CountDownLatch done, final Runnable task) {
+    if (!slots.tryAcquire()) {
+      task.run();
+      return;
+    }
+    pending.incrementAndGet();
+    pool.execute(new Runnable() {
+
+      public void run() {
+        try {
+          task.run();
+        } finally {
+          slots.release();
+          if (pending.decrementAndGet() == 0) {
+            done.countDown();
+          }
+        }
+      }
+    });
+  }
+
+  static boolean hasImageExtension(String name) {
+    int dot = name.lastIndexOf('.');
+    if (dot < 0) {
+      return false;
+    }
+    String extension = name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    return EXTENSIONS.contains(extension) && (TIFF || !extension.startsWith("tif"));
+  }
+
+  /**
+   * @return whether the file starts with the signature of a JPEG, PNG, GIF,
+   *         BMP or TIFF image
+   */
+  static boolean hasImageSignature(File file) {
+    byte[] head = new byte[8];
+    int n = 0;
+    try (InputStream in = Files.newInputStream(file.toPath())) {
+      for (int read; n < head.length && (read = in.read(head, n, head.length - n)) > 0;) {
+        n += read;
+      }
+    } catch (IOException e) {
+      // Unreadable; let the decoder report it
+      return true;
+    }
+    int b0 = head[0] & 0xFF;
+    int b1 = head[1] & 0xFF;
+    if (n >= 3 && b0 == 0xFF && b1 == 0xD8 && (head[2] & 0xFF) == 0xFF) {
+      return true;
+    }
+    if (n >= 8 && b0 == 0x89 && b1 == 'P' && head[2] == 'N' && head[3] == 'G' && head[4] == '\r'
+        && head[5] == '\n' && head[6] == 0x1A && head[7] == '\n') {
+      return true;
+    }
+    if (n >= 4 && b0 == 'G' && b1 == 'I' && head[2] == 'F' && head[3] == '8') {
+      return true;
+    }
+    if (n >= 2 && b0 == 'B' && b1 == 'M') {
+      return true;
+    }
+    return n >= 4 && ((b0 == 'I' && b1 == 'I' && head[2] == 42 && head[3] == 0)
+        || (b0 == 'M' && b1 == 'M' && head[2] == 0 && head[3] == 42));
+  }
+
+}
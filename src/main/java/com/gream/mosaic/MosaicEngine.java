@@ -0,0 +1,1846 @@
+package com.gream.mosaic;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Stroke;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+
+import com.gream.mosaic.datastructures.KdTree;
+import com.gream.mosaic.datastructures.MappedKdTree;
+import com.gream.mosaic.datastructures.MosaicBinaryTree;
+import com.gream.mosaic.datastructures.VpTree;
+import com.gream.mosaic.domainobjects.MosaicTile;
+import com.gream.mosaic.logging.Reporter;
+import com.gream.mosaic.logging.Reporter.Level;
+import com.gream.mosaic.matching.AuctionAssignment;
+import com.gream.mosaic.matching.CandidateRanker;
+import com.gream.mosaic.matching.GreedyMatcher;
+import com.gream.mosaic.matching.MappedMatcher;
+import com.gream.mosaic.metrics.Metrics;
+import com.gream.mosaic.metrics.Metrics.Counter;
+import com.gream.mosaic.metrics.Metrics.Phase;
+import com.gream.mosaic.utils.ColorMetric;
+import com.gream.mosaic.utils.ColorSpaceUtils;
+import com.gream.mosaic.utils.FileUtils;
+import com.gream.mosaic.utils.ImageUtils;
+import com.gream.mosaic.utils.JpegDcAnalyser;
+import com.gream.mosaic.utils.ParallelPngWriter;
+import com.gream.mosaic.utils.PngStripWriter;
+import com.gream.mosaic.utils.SummedAreaTable;
+
+/**
+ * Builds picture mosaics from a library of source images. The work is split
+ * into stages that can be called separately:
+ * <ol>
+ * <li>{@link #buildIndex()} analyses the library and writes the image cache,</li>
+ * <li>{@link #loadIndex()} reads the image cache,</li>
+ * <li>{@link #match(BufferedImage, MosaicOptions)} picks a tile for every
+ * cell,</li>
+ * <li>{@link #render(MosaicPlan, MosaicOptions)} draws the tiles and</li>
+ * <li>{@link #encode(BufferedImage, File)} writes the result.</li>
+ * </ol>
+ * Once the index is loaded an engine can render any number of mosaics, also
+ * concurrently; pre-scaled thumbnails are shared between renders of the same
+ * tile size, up to a memory budget. Errors are reported as
+ * {@link MosaicException}s.
+ */
+public class MosaicEngine {
+
+  public static final String IMAGE_CACHE_CSV = "imageCache.csv";
+  public static final String IMAGE_INDEX = "imageIndex.bin";
+
+  // Rows of blocks that may wait between two pipelined stages
+  private static final int PIPELINE_DEPTH = 8;
+  // The level ImageIO's PNG writer uses by default, also used for PNGs we
+  // compress ourselves
+  private static final int PNG_COMPRESSION_LEVEL = 4;
+  private static final int END_OF_ROWS = -1;
+  // Longest side of a preview in pixels
+  private static final int PREVIEW_SIZE = 1024;
+  private static final long DEFAULT_THUMBNAIL_CACHE_BYTES = 256L << 20;
+
+  private final String directory;
+  private volatile Library library = new Library(Collections.<MosaicTile> emptyList(), null, null, null);
+  private Reporter log = Reporter.SILENT;
+  private Metrics metrics = new Metrics();
+  private int indexThreads = Runtime.getRuntime().availableProcessors();
+  private int encodeThreads;
+  private long thumbnailCacheBytes = DEFAULT_THUMBNAIL_CACHE_BYTES;
+
+  /**
+   * Everything read from one version of the image cache. A render works on the
+   * library that was loaded when it started; none of it is modified by
+   * matching, so any number of renders can share it.
+   */
+  private static final class Library {
+    final List<MosaicTile> tiles;
+    final MosaicBinaryTree tree;
+    final KdTree kdTree;
+    // Side of the colour grid every tile has, 0 if they do not all have one
+    final int grid;
+    final VpTree gridTree;
+    // Thumbnails of every tile, by the size they are scaled to
+    final ThumbnailCache thumbnails = new ThumbnailCache();
+    // Cached candidate rankings, one set per perceptual metric
+    final Map<ColorMetric, CandidateRanker> rankers = new ConcurrentHashMap<ColorMetric, CandidateRanker>();
+    // The out-of-core index; when set, tiles is empty and so are the trees
+    final MappedKdTree mapped;
+    // The tiles of a plan read from a file; when set, tiles is empty and so
+    // are the trees
+    final List<String> planPaths;
+
+    Library(List<MosaicTile> tiles, MosaicBinaryTree tree, KdTree kdTree, MappedKdTree mapped) {
+      this.tiles = tiles;
+      this.tree = tree;
+      this.kdTree = kdTree;
+      this.grid = commonGridSize(tiles);
+      this.gridTree = grid > 0 ? new VpTree(tiles) : null;
+      this.mapped = mapped;
+      this.planPaths = null;
+    }
+
+    Library(List<String> planPaths) {
+      this.tiles = Collections.emptyList();
+      this.tree = null;
+      this.kdTree = null;
+      this.grid = 0;
+      this.gridTree = null;
+      this.mapped = null;
+      this.planPaths = planPaths;
+    }
+
+    int size() {
+      return mapped != null ? mapped.size() : planPaths != null ? planPaths.size() : tiles.size();
+    }
+
+    /**
+     * @return the average colour of the tile, or null if only its path is
+     *         known
+     */
+    Color colorOf(int tile) {
+      return tiles.isEmpty() ? null : tiles.get(tile).getAverageColors();
+    }
+
+    String pathOf(int tile) {
+      return mapped != null ? mapped.getPath(tile)
+          : planPaths != null ? planPaths.get(tile) : tiles.get(tile).getPath();
+    }
+
+    private static int commonGridSize(List<MosaicTile> tiles) {
+      int grid = tiles.isEmpty() ? 0 : tiles.get(0).getGridSize();
+      for (MosaicTile tile : tiles) {
+        if (tile.getGridSize() != grid) {
+          return 0;
+        }
+      }
+      return grid;
+    }
+  }
+
+  /**
+   * Least recently used sets of thumbnails of the whole library, one per size,
+   * up to a byte budget; a set that alone is over the budget is not kept.
+   */
+  private static final class ThumbnailCache {
+
+    private final LinkedHashMap<Long, BufferedImage[]> sets = new LinkedHashMap<Long, BufferedImage[]>(16, 0.75f,
+        true);
+    private long bytes;
+
+    /**
+     * @param key the width in the upper and the height in the lower 32 bits
+     */
+    synchronized BufferedImage[] get(long key) {
+      return sets.get(key);
+    }
+
+    synchronized void put(long key, BufferedImage[] set, long budget) {
+      if (sets.containsKey(key) || bytes(key, set.length) > budget) {
+        return;
+      }
+      sets.put(key, set);
+      bytes += bytes(key, set.length);
+      Iterator<Map.Entry<Long, BufferedImage[]>> eldest = sets.entrySet().iterator();
+      while (bytes > budget && eldest.hasNext()) {
+        Map.Entry<Long, BufferedImage[]> evicted = eldest.next();
+        eldest.remove();
+        bytes -= bytes(evicted.getKey(), evicted.getValue().length);
+      }
+    }
+
+    /**
+     * @return the memory taken by {@code tiles} ARGB thumbnails of the size
+     *         in the key
+     */
+    static long bytes(long key, int tiles) {
+      return (key >>> 32) * (key & 0xFFFFFFFFL) * 4 * tiles;
+    }
+  }
+
+  /**
+   * @param directory the directory holding the source images and the image
+   *                  cache
+   */
+  public MosaicEngine(String directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Sets where progress, warnings and debug output go. Silent by default.
+   */
+  public void setReporter(Reporter log) {
+    this.log = log;
+  }
+
+  /**
+   * @return the timings and counters of everything this engine did
+   */
+  public Metrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Records into the given metrics instead, e.g. to keep one report across
+   * several engines.
+   */
+  public void setMetrics(Metrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * @param threads the number of threads scanning and analysing the library
+   *                when the index is built; defaults to the number of
+   *                processors
+   */
+  public void setIndexThreads(int threads) {
+    this.indexThreads = Math.max(1, threads);
+  }
+
+  /**
+   * @param threads the number of threads compressing PNG output with a
+   *                {@link ParallelPngWriter}; 0, the default, writes it with
+   *                ImageIO
+   */
+  public void setEncodeThreads(int threads) {
+    this.encodeThreads = Math.max(0, threads);
+  }
+
+  /**
+   * @param bytes the most memory kept for thumbnails of the whole library
+   *              between renders, 256 MB by default; a mosaic whose tile size
+   *              does not fit only loads the tiles it uses
+   */
+  public void setThumbnailCacheBytes(long bytes) {
+    this.thumbnailCacheBytes = Math.max(0, bytes);
+  }
+
+  public File getImageCacheFile() {
+    return new File(directory + "/" + IMAGE_CACHE_CSV);
+  }
+
+  /**
+   * @return the source tiles of the loaded index, in image cache order
+   */
+  public List<MosaicTile> getTiles() {
+    return library.tiles;
+  }
+
+  /**
+   * @return the side of the colour grid stored for every tile of the loaded
+   *         index, 0 if there is none
+   */
+  public int getIndexGrid() {
+    return library.grid;
+  }
+
+  /**
+   * Analyses every image in the library directory and writes the image cache.
+   */
+  public void buildIndex() throws MosaicException {
+    buildIndex(0);
+  }
+
+  /**
+   * Like {@link #buildIndex()}, also storing the average colours of a
+   * {@code grid} by {@code grid} raster over every image, for matching with
+   * {@link MosaicOptions#setGrid(int)}.
+   */
+  public void buildIndex(int grid) throws MosaicException {
+    buildIndex(grid, null);
+  }
+
+  /**
+   * Like {@link #buildIndex(int)}, leaving out near-duplicate images.
+   *
+   * @param duplicates decides which near-duplicates are kept, null to keep
+   *                   every image
+   */
+  @SuppressWarnings("try")
+  public void buildIndex(int grid, DuplicateFilter duplicates) throws MosaicException {
+    try (Metrics.Timer timer = metrics.start(Phase.INDEX)) {
+      analyseLibrary(grid, duplicates);
+    }
+  }
+
+  private void analyseLibrary(int grid, DuplicateFilter duplicates) throws MosaicException {
+    log.info("Analysing images in directory: " + directory);
+
+    File dirFile = new File(directory);
+    log.debug("Directory path: " + dirFile.getAbsolutePath());
+    log.debug("Directory exists: " + dirFile.exists());
+    log.debug("Is directory: " + dirFile.isDirectory());
+    log.debug("Can read: " + dirFile.canRead());
+
+    if (!dirFile.isDirectory() || !dirFile.canRead()) {
+      StringBuilder message = new StringBuilder();
+      message.append("Failed to list files in directory: " + directory);
+      message.append("\nDirectory exists: " + dirFile.exists() + ", Is directory: " + dirFile.isDirectory()
+          + ", Can read: " + dirFile.canRead());
+      if (dirFile.exists() && dirFile.isDirectory() && !dirFile.canRead()) {
+        message.append("\nPermission denied: The directory exists but you don't have read permissions.");
+        message.append("\nOn macOS, this may be due to privacy/security restrictions.");
+        message.append("\nSolutions:");
+        message.append(
+            "\n  1. Grant 'Full Disk Access' or 'Files and Folders' permission to Terminal/Java in System Preferences > Security & Privacy");
+        message.append(
+            "\n  2. Move the directory to a location you have full access to (e.g., ~/Desktop or ~/Documents)");
+        message.append("\n  3. Check directory permissions: chmod +r \"" + directory + "\"");
+      } else {
+        message.append("\nDirectory may not exist, may not be accessible, or may not be a directory.");
+      }
+      throw new MosaicException(message.toString());
+    }
+
+    // Images are analysed as the scan finds them, in no particular order
+    final List<MosaicTile> found = Collections.synchronizedList(new ArrayList<MosaicTile>());
+    final boolean hash = duplicates != null;
+    LibraryScanner scanner = new LibraryScanner(indexThreads, log);
+    try (final Reporter.Progress progress = log.startTask("Analysing images", 0, "files")) {
+      scanner.scan(dirFile, new LibraryScanner.Handler() {
+
+        @SuppressWarnings("try")
+        public void handle(File f) {
+          // Analysed on the scanner's threads, not the one timing the phase
+          try (Metrics.Timer cpu = metrics.startWorker(Phase.INDEX)) {
+            found.add(analyse(f.getPath(), f, grid, hash));
+            metrics.increment(Counter.FILES_DECODED);
+          } catch (Exception e) {
+            log.warn("Failed to process file " + f.getPath() + ": " + e.getMessage());
+            if (log.isDebugEnabled()) {
+              log.debug(e.toString());
+            }
+          }
+          progress.increment();
+        }
+      });
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MosaicException("Interrupted while analysing images in " + directory, e);
+    }
+    metrics.add(Counter.FILES_SKIPPED, scanner.getSkipped());
+    log.info("Found " + scanner.getImages() + " images in " + scanner.getDirectories() + " directories, skipped "
+        + scanner.getSkipped() + " other files");
+
+    // Number the tiles in path order, so that rebuilding the cache of an
+    // unchanged library gives the same cache
+    List<MosaicTile> tiles = new ArrayList<MosaicTile>(found);
+    Collections.sort(tiles, (a, b) -> a.getPath().compareTo(b.getPath()));
+    for (int i = 0; i < tiles.size(); i++) {
+      tiles.get(i).setId(Integer.toString(i));
+    }
+    if (duplicates != null) {
+      tiles = removeDuplicates(tiles, duplicates);
+    }
+
+    StringBuffer sb = new StringBuffer();
+    for (MosaicTile m : tiles) {
+      sb.append(m.toCSV());
+      sb.append('\n');
+    }
+    try {
+      String imageCacheFile = getImageCacheFile().getPath();
+      log.debug("Saving image cache to: " + imageCacheFile);
+      FileUtils.saveFile(imageCacheFile, sb.toString());
+      log.info("Saved image cache with " + tiles.size() + " tiles");
+    } catch (IOException e) {
+      throw new MosaicException("Error saving image cache file: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Analyses one source image. When only its average colour is needed,
+   * baseline JPEGs are read from their DC coefficients instead of being
+   * decoded.
+   */
+  private MosaicTile analyse(String id, File f, int grid, boolean hash) throws Exception {
+    if (grid == 0 && !hash) {
+      Color average = JpegDcAnalyser.getAverageRGB(f);
+      if (average != null) {
+        metrics.increment(Counter.JPEG_DC_ANALYSED);
+        return new MosaicTile(id, f.getPath(), average);
+      }
+    }
+    return new MosaicTile(id, f, grid, hash);
+  }
+
+  private List<MosaicTile> removeDuplicates(List<MosaicTile> tiles, DuplicateFilter duplicates) {
+    DuplicateFilter.Result result = duplicates.filter(tiles);
+    int largest = 0;
+    for (List<MosaicTile> cluster : result.getClusters()) {
+      largest = Math.max(largest, cluster.size());
+      if (log.isDebugEnabled()) {
+        StringBuilder message = new StringBuilder("Near-duplicates:");
+        for (int i = 0; i < cluster.size(); i++) {
+          message.append(' ').append(new File(cluster.get(i).getPath()).getName())
+              .append(i < duplicates.getKeep() ? " (kept)" : "");
+        }
+        log.debug(message.toString());
+      }
+    }
+    metrics.add(Counter.NEAR_DUPLICATES, result.getRemoved());
+    log.info("Removed " + result.getRemoved() + " near-duplicates in " + result.getClusters().size()
+        + " groups (largest " + largest + "): " + tiles.size() + " -> " + result.getKept().size() + " images ("
+        + String.format(Locale.ROOT, "%.1f%%", tiles.isEmpty() ? 0.0 : 100.0 * result.getRemoved() / tiles.size())
+        + " fewer)");
+    return result.getKept();
+  }
+
+  /**
+   * Reads the image cache and builds the search trees. A match or render that
+   * is already running finishes against the previous index.
+   */
+  @SuppressWarnings("try")
+  public void loadIndex() throws MosaicException {
+    try (Metrics.Timer timer = metrics.start(Phase.LOAD_INDEX)) {
+      TreeBuilder tb = new TreeBuilder(getImageCacheFile().getPath());
+      MosaicBinaryTree tree;
+      try {
+        tree = tb.build();
+      } catch (Exception e) {
+        throw new MosaicException("Failed to load image cache " + getImageCacheFile() + ": " + e.getMessage(), e);
+      }
+      warnSkipped(tb);
+      List<MosaicTile> tiles = Collections.unmodifiableList(tb.getTiles());
+      KdTree kdTree = new KdTree(new ArrayList<MosaicTile>(tiles));
+      metrics.addCpuNanos(Phase.LOAD_INDEX, kdTree.getBuildCpuNanos());
+      library = new Library(tiles, tree, kdTree, null);
+    }
+  }
+
+  private void warnSkipped(TreeBuilder tb) {
+    if (tb.getSkipped() > 0) {
+      log.warn("Skipped " + tb.getSkipped() + " unreadable lines of the image cache " + getImageCacheFile()
+          + ", rebuild it with -cache_rebuild");
+    }
+  }
+
+  public File getMappedIndexFile() {
+    return new File(directory + "/" + IMAGE_INDEX);
+  }
+
+  /**
+   * Writes the out-of-core index for the image cache, streaming it so that
+   * libraries larger than the heap fit. Needed before
+   * {@link #loadMappedIndex(long)} and again whenever the image cache
+   * changes.
+   */
+  @SuppressWarnings("try")
+  public void buildMappedIndex() throws MosaicException {
+    try (Metrics.Timer timer = metrics.start(Phase.INDEX)) {
+      File indexFile = getMappedIndexFile();
+      log.info("Writing out-of-core index: " + indexFile);
+      TreeBuilder tb = new TreeBuilder(getImageCacheFile().getPath());
+      int tiles = tb.writeMappedIndex(indexFile);
+      warnSkipped(tb);
+      log.info("Saved out-of-core index with " + tiles + " tiles (" + (indexFile.length() / 1024) + " KB)");
+    } catch (IOException | RuntimeException e) {
+      throw new MosaicException("Failed to write out-of-core index " + getMappedIndexFile() + ": " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Maps the out-of-core index instead of reading the image cache into the
+   * heap. Only the upper levels of its kd-tree are resident; leaf pages are
+   * read on demand and cached up to the given budget, and thumbnails are
+   * loaded only for the tiles a mosaic uses. Matching is greedy on the average
+   * colour.
+   *
+   * @param pageCacheBytes the most bytes of decoded leaf pages kept in memory
+   */
+  @SuppressWarnings("try")
+  public void loadMappedIndex(long pageCacheBytes) throws MosaicException {
+    try (Metrics.Timer timer = metrics.start(Phase.LOAD_INDEX)) {
+      MappedKdTree mapped = MappedKdTree.open(getMappedIndexFile(), pageCacheBytes);
+      library = new Library(Collections.<MosaicTile> emptyList(), null, null, mapped);
+      log.info("Mapped out-of-core index with " + mapped.size() + " tiles");
+    } catch (IOException e) {
+      throw new MosaicException("Failed to open out-of-core index " + getMappedIndexFile() + ": " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Saves a plan made by {@link #match(BufferedImage, MosaicOptions)} with the
+   * paths of the tiles it uses, so that it can be drawn again with other
+   * styling options without the image cache.
+   */
+  public void savePlan(MosaicPlan plan, File file) throws MosaicException {
+    Library library = this.library;
+    MosaicPlan saved = plan;
+    if (plan.getTilePaths() == null) {
+      // Number the tiles used in the order they are first met
+      int blocks = plan.getBlocks();
+      saved = new MosaicPlan(blocks, plan.getTileWidth(), plan.getTileHeight());
+      Map<Integer, Integer> used = new HashMap<Integer, Integer>();
+      List<String> paths = new ArrayList<String>();
+      for (int i = 0; i < blocks; i++) {
+        for (int j = 0; j < blocks; j++) {
+          int size = plan.getCellSize(i, j);
+          if (size == 0) {
+            continue;
+          }
+          Integer tile = used.get(plan.getTile(i, j));
+          if (tile == null) {
+            tile = paths.size();
+            used.put(plan.getTile(i, j), tile);
+            paths.add(library.pathOf(plan.getTile(i, j)));
+          }
+          saved.setCellSize(i, j, size);
+          saved.setTile(i, j, tile);
+          saved.setSectionColor(i, j, plan.getSectionColor(i, j));
+        }
+      }
+      saved.setTilePaths(paths);
+    }
+    try {
+      saved.write(file);
+    } catch (IOException e) {
+      throw new MosaicException("Failed to save match plan " + file.getAbsolutePath() + ": " + e.getMessage(), e);
+    }
+    log.info("Saved match plan with " + saved.getCells() + " tiles of " + saved.getTilePaths().size()
+        + " source images to: " + file.getAbsolutePath());
+  }
+
+  /**
+   * Reads a plan saved by {@link #savePlan(MosaicPlan, File)}. It is drawn from
+   * the source images it names, so neither the image cache nor an index has
+   * to be loaded to render it.
+   */
+  @SuppressWarnings("try")
+  public MosaicPlan loadPlan(File file) throws MosaicException {
+    try (Metrics.Timer timer = metrics.start(Phase.LOAD_INDEX)) {
+      MosaicPlan plan = MosaicPlan.read(file);
+      log.info("Loaded match plan with " + plan.getCells() + " tiles of " + plan.getTilePaths().size()
+          + " source images");
+      return plan;
+    } catch (IOException e) {
+      throw new MosaicException("Failed to read match plan " + file.getAbsolutePath() + ": " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Reads an input image, with a descriptive error if that is not possible.
+   */
+  public BufferedImage readInput(File f) throws MosaicException {
+    return readInput(f, log);
+  }
+
+  @SuppressWarnings("try")
+  private BufferedImage readInput(File f, Reporter log) throws MosaicException {
+    log.debug("Reading input image file: " + f.getAbsolutePath());
+
+    if (!f.exists()) {
+      throw new MosaicException("Input file does not exist: " + f.getAbsolutePath()
+          + "\nPlease check that the file path is correct and includes the file extension (e.g., .png, .jpg)");
+    }
+
+    if (!f.isFile()) {
+      throw new MosaicException("Input path is not a file: " + f.getAbsolutePath());
+    }
+
+    if (!f.canRead()) {
+      throw new MosaicException("Cannot read input file (permission denied): " + f.getAbsolutePath());
+    }
+
+    BufferedImage img;
+    try (Metrics.Timer timer = metrics.start(Phase.DECODE)) {
+      img = ImageIO.read(f);
+    } catch (IOException e) {
+      throw new MosaicException("Failed to read image file " + f.getAbsolutePath() + ": " + e.getMessage(), e);
+    }
+
+    if (img == null) {
+      throw new MosaicException("Failed to read image file. The file may not be a valid image format."
+          + "\nSupported formats: JPG, PNG, BMP"
+          + "\nFile: " + f.getAbsolutePath());
+    }
+
+    metrics.increment(Counter.FILES_DECODED);
+    log.debug("Successfully loaded input image: " + img.getWidth() + "x" + img.getHeight() + " pixels");
+    return img;
+  }
+
+  /**
+   * Reads an input image from a stream, e.g. the body of a network request.
+   */
+  @SuppressWarnings("try")
+  public BufferedImage readInput(InputStream in) throws MosaicException {
+    BufferedImage img;
+    try (Metrics.Timer timer = metrics.start(Phase.DECODE)) {
+      img = ImageIO.read(in);
+    } catch (IOException e) {
+      throw new MosaicException("Failed to read image: " + e.getMessage(), e);
+    }
+    if (img == null) {
+      throw new MosaicException("Not a readable image");
+    }
+    metrics.increment(Counter.FILES_DECODED);
+    return img;
+  }
+
+  /**
+   * Picks a source tile for every cell of the mosaic.
+   */
+  public MosaicPlan match(BufferedImage img, MosaicOptions options) throws MosaicException {
+    return match(img, options, log);
+  }
+
+  private MosaicPlan match(BufferedImage img, MosaicOptions options, Reporter log) throws MosaicException {
+    Library library = this.library;
+    MosaicPlan plan = newPlan(library, img, options, log);
+    assign(library, img, plan, options, log, null);
+    return plan;
+  }
+
+  /**
+   * Checks the options against the library and lays out the cells of a plan
+   * for the input.
+   */
+  private MosaicPlan newPlan(Library library, BufferedImage img, MosaicOptions options, Reporter log)
+      throws MosaicException {
+    if (library.size() == 0) {
+      throw new MosaicException("No source images loaded, call loadIndex() first");
+    }
+    int blocks = options.getBlocks();
+    if (blocks < 1 || img.getWidth() < blocks || img.getHeight() < blocks) {
+      throw new MosaicException("Cannot split a " + img.getWidth() + "x" + img.getHeight() + " image into "
+          + blocks + "x" + blocks + " tiles");
+    }
+
+    int tileWidth = img.getWidth() / blocks;
+    int tileHeight = img.getHeight() / blocks;
+    log.debug("Tile dimensions: " + tileWidth + "x" + tileHeight + " pixels per tile");
+    log.debug("Total tiles: " + blocks + "x" + blocks + " = " + (blocks * blocks) + " tiles");
+
+    if (library.mapped != null) {
+      String unsupported = options.isOptimal() ? "-optimal"
+          : options.getGrid() > 0 ? "-grid"
+              : options.getColorMetric() != ColorMetric.CIE76 ? "-color_metric"
+                  : options.getSearchBudget() > 0 ? "-search_budget" : options.getNoise() > 0 ? "-noise" : null;
+      if (unsupported != null) {
+        throw new MosaicException(unsupported + " is not supported with an out-of-core index");
+      }
+    }
+    if (options.getNoise() > 0) {
+      // Noise steers the binary tree only, which these modes do not search
+      String unsupported = options.isOptimal() && (options.isConsume() || options.getMaxUsage() > 0) ? "-optimal"
+          : options.getGrid() > 0 ? "-grid"
+              : options.getColorMetric() != ColorMetric.CIE76 ? "-color_metric"
+                  : options.getSearchBudget() > 0 ? "-search_budget" : null;
+      if (unsupported != null) {
+        throw new MosaicException("-noise is not supported with " + unsupported);
+      }
+    }
+    if (options.getGrid() > 0 && options.getGrid() != library.grid) {
+      throw new MosaicException("The image cache has no " + options.getGrid() + "x" + options.getGrid()
+          + " colour grid, rebuild it with -cache_rebuild -grid " + options.getGrid());
+    }
+
+    MosaicPlan plan = new MosaicPlan(blocks, tileWidth, tileHeight);
+    if (options.getAdaptiveLevels() > 0) {
+      layoutAdaptively(img, plan, options);
+      log.info("Adaptive layout: " + plan.getCells() + " tiles instead of " + (blocks * blocks));
+    }
+
+    log.info("Finding best matches for " + plan.getCells() + " tiles...");
+    if (options.getDiversityRadius() > 1 || options.getMaxUsage() > 0) {
+      log.info("Diversity settings: radius=" + options.getDiversityRadius() + ", maxUsage="
+          + (options.getMaxUsage() > 0 ? options.getMaxUsage() : "unlimited"));
+    }
+    return plan;
+  }
+
+  /**
+   * Receives the rows of blocks of a plan as they are matched.
+   */
+  private interface RowListener {
+
+    /**
+     * Called once every cell whose top left block is in the row has its tile,
+     * for each row in order.
+     */
+    void matched(int row);
+  }
+
+  /**
+   * Picks a tile for every cell of the plan.
+   *
+   * @param rows told about every row as it is finished, or null to match in
+   *             the usual order, column by column
+   */
+  @SuppressWarnings("try")
+  private void assign(Library library, BufferedImage img, MosaicPlan plan, MosaicOptions options, Reporter log,
+      RowListener rows) throws MosaicException {
+    try (Metrics.Timer timer = metrics.start(Phase.MATCH)) {
+      if (library.mapped != null) {
+        assignFromMappedIndex(library.mapped, img, plan, options, log, rows);
+      } else if (options.isOptimal() && (options.isConsume() || options.getMaxUsage() > 0)) {
+        assignOptimally(library, img, plan, options, log);
+        for (int j = 0; rows != null && j < plan.getBlocks(); j++) {
+          rows.matched(j);
+        }
+      } else {
+        assignGreedily(library, img, plan, options, log, rows);
+      }
+    } catch (IllegalStateException e) {
+      throw new MosaicException(e.getMessage(), e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MosaicException("Interrupted while matching", e);
+    }
+  }
+
+  /**
+   * Merges blocks into cells of up to 2^levels blocks per side where the input
+   * is flat. Every aligned square of that size is a quadtree root and is split
+   * into four while its colour standard deviation is above the threshold or
+   * it does not fit the grid; the variance of each square comes from a
+   * summed-area table, so the whole layout costs one pass over the input.
+   */
+  private static void layoutAdaptively(BufferedImage img, MosaicPlan plan, MosaicOptions options) {
+    int blocks = plan.getBlocks();
+    SummedAreaTable table = new SummedAreaTable(img, plan.getTileWidth(), plan.getTileHeight(), blocks);
+    double maxVariance = options.getAdaptiveThreshold() * options.getAdaptiveThreshold();
+    int root = 1 << options.getAdaptiveLevels();
+    for (int i = 0; i < blocks; i += root) {
+      for (int j = 0; j < blocks; j += root) {
+        subdivide(table, plan, i, j, root, maxVariance);
+      }
+    }
+  }
+
+  private static void subdivide(SummedAreaTable table, MosaicPlan plan, int i, int j, int size,
+      double maxVariance) {
+    int blocks = plan.getBlocks();
+    if (size == 1) {
+      return;
+    }
+    if (i + size <= blocks && j + size <= blocks && table.getVariance(i, j, size) <= maxVariance) {
+      plan.setCellSize(i, j, size);
+      return;
+    }
+    int half = size / 2;
+    for (int x = i; x < i + size && x < blocks; x += half) {
+      for (int y = j; y < j + size && y < blocks; y += half) {
+        subdivide(table, plan, x, y, half, maxVariance);
+      }
+    }
+  }
+
+  private void assignGreedily(Library library, BufferedImage img, MosaicPlan plan, MosaicOptions options,
+      Reporter log, RowListener rows) throws InterruptedException {
+    int blocks = plan.getBlocks();
+    int tileWidth = plan.getTileWidth();
+    int tileHeight = plan.getTileHeight();
+
+    CandidateRanker ranker = null;
+    if (options.getColorMetric() != ColorMetric.CIE76) {
+      ranker = library.rankers.computeIfAbsent(options.getColorMetric(),
+          metric -> new CandidateRanker(library.kdTree, metric));
+    }
+    int grid = options.getGrid();
+    GreedyMatcher matcher = new GreedyMatcher(library.tiles.size(), library.tree, library.kdTree, ranker,
+        grid > 0 ? library.gridTree : null, options, log);
+    float[] cellGrid = grid > 0 ? new float[3 * grid * grid] : null;
+
+    int[] blockRgbs = new int[tileWidth * tileHeight];
+    try (Reporter.Progress progress = log.startTask("Finding matches", plan.getCells(), "tiles")) {
+      for (int outer = 0; outer < blocks; outer++) {
+        checkInterrupted();
+        for (int inner = 0; inner < blocks; inner++) {
+          int i = rows == null ? outer : inner;
+          int j = rows == null ? inner : outer;
+          int size = plan.getCellSize(i, j);
+          if (size == 0) {
+            continue;
+          }
+          int width = tileWidth * size;
+          int height = tileHeight * size;
+          int[] rgbs = size == 1 ? blockRgbs : new int[width * height];
+          img.getRGB(i * tileWidth, j * tileHeight, width, height, rgbs, 0, width);
+
+          Color originalSectionColor = ImageUtils.getAverageRGB(rgbs);
+          MosaicTile targetTile = new MosaicTile(originalSectionColor.getRed(), originalSectionColor.getGreen(),
+              originalSectionColor.getBlue());
+          if (cellGrid != null) {
+            ColorSpaceUtils.rgbToLab(ImageUtils.getGridRGB(rgbs, width, height, grid), cellGrid);
+          }
+          plan.setTile(i, j, matcher.match(targetTile, cellGrid, i, j));
+          // Store the original image section color for stroke coloring
+          plan.setSectionColor(i, j, originalSectionColor);
+
+          progress.increment();
+        }
+        if (rows != null) {
+          rows.matched(outer);
+        }
+      }
+    }
+
+    metrics.add(Counter.NODES_VISITED, matcher.getNodesVisited());
+    metrics.add(Counter.RETRIES, matcher.getRetries());
+    metrics.add(Counter.STALE_RESETS, matcher.getStaleResets());
+    metrics.add(Counter.RANKING_HITS, matcher.getRankingHits());
+    metrics.add(Counter.RANKING_MISSES, matcher.getRankingMisses());
+    if (matcher.getRecallSamples() > 0) {
+      metrics.add(Counter.RECALL_SAMPLES, matcher.getRecallSamples());
+      metrics.add(Counter.RECALL_HITS, matcher.getRecallHits());
+      log.info(String.format(Locale.ROOT, "Approximate search recall: %.1f%% of %d sampled queries",
+          100.0 * matcher.getRecallHits() / matcher.getRecallSamples(), matcher.getRecallSamples()));
+    }
+  }
+
+  private void assignFromMappedIndex(MappedKdTree mapped, BufferedImage img, MosaicPlan plan, MosaicOptions options,
+      Reporter log, RowListener rows) throws InterruptedException {
+    int blocks = plan.getBlocks();
+    int tileWidth = plan.getTileWidth();
+    int tileHeight = plan.getTileHeight();
+    MappedMatcher matcher = new MappedMatcher(mapped, plan.getCells(), options, log);
+
+    int[] blockRgbs = new int[tileWidth * tileHeight];
+    try (Reporter.Progress progress = log.startTask("Finding matches", plan.getCells(), "tiles")) {
+      for (int outer = 0; outer < blocks; outer++) {
+        checkInterrupted();
+        for (int inner = 0; inner < blocks; inner++) {
+          int i = rows == null ? outer : inner;
+          int j = rows == null ? inner : outer;
+          int size = plan.getCellSize(i, j);
+          if (size == 0) {
+            continue;
+          }
+          int[] rgbs = size == 1 ? blockRgbs : new int[tileWidth * size * tileHeight * size];
+          img.getRGB(i * tileWidth, j * tileHeight, tileWidth * size, tileHeight * size, rgbs, 0, tileWidth * size);
+          Color c = ImageUtils.getAverageRGB(rgbs);
+          plan.setTile(i, j, matcher.match(new MosaicTile(c.getRed(), c.getGreen(), c.getBlue()), i, j));
+          plan.setSectionColor(i, j, c);
+          progress.increment();
+        }
+        if (rows != null) {
+          rows.matched(outer);
+        }
+      }
+    }
+
+    metrics.add(Counter.RETRIES, matcher.getRetries());
+    metrics.add(Counter.PAGE_HITS, matcher.getPageHits());
+    metrics.add(Counter.PAGE_MISSES, matcher.getPageMisses());
+    long lookups = matcher.getPageHits() + matcher.getPageMisses();
+    MappedKdTree.PageCache pages = mapped.getPageCache();
+    log.info(String.format(Locale.ROOT, "Page cache: %.1f%% of %d page reads hit, %d pages (%d KB of %d KB) resident",
+        lookups > 0 ? 100.0 * matcher.getPageHits() / lookups : 0.0, lookups, pages.getResidentPages(),
+        pages.getBytes() / 1024, pages.getBudget() / 1024));
+  }
+
+  /**
+   * Fills the mosaic with a globally optimal assignment: every source image is
+   * used at most once (-consume) or at most max_usage times, and the summed
+   * colour error over all tiles is minimal.
+   */
+  private void assignOptimally(Library library, BufferedImage img, MosaicPlan plan, MosaicOptions options,
+      Reporter log) throws InterruptedException {
+    List<MosaicTile> tiles = library.tiles;
+    int blocks = plan.getBlocks();
+    int tileWidth = plan.getTileWidth();
+    int tileHeight = plan.getTileHeight();
+    MosaicTile[] targets = new MosaicTile[plan.getCells()];
+    // Column and row of the top left block of every target
+    int[] columns = new int[targets.length];
+    int[] rows = new int[targets.length];
+    int[] blockRgbs = new int[tileWidth * tileHeight];
+    int cell = 0;
+    for (int i = 0; i < blocks; i++) {
+      checkInterrupted();
+      for (int j = 0; j < blocks; j++) {
+        int size = plan.getCellSize(i, j);
+        if (size == 0) {
+          continue;
+        }
+        int[] rgbs = size == 1 ? blockRgbs : new int[tileWidth * size * tileHeight * size];
+        img.getRGB(i * tileWidth, j * tileHeight, tileWidth * size, tileHeight * size, rgbs, 0, tileWidth * size);
+        Color c = ImageUtils.getAverageRGB(rgbs);
+        plan.setSectionColor(i, j, c);
+        targets[cell] = new MosaicTile(c.getRed(), c.getGreen(), c.getBlue());
+        columns[cell] = i;
+        rows[cell] = j;
+        cell++;
+      }
+    }
+
+    int capacity = options.isConsume() ? 1 : options.getMaxUsage();
+    log.info("Computing optimal assignment of " + tiles.size() + " images (each used at most " + capacity
+        + " time(s))...");
+    AuctionAssignment assignment = new AuctionAssignment(tiles, library.kdTree, capacity);
+    MosaicTile[] assigned = assignment.assign(targets);
+
+    for (int t = 0; t < targets.length; t++) {
+      plan.setTile(columns[t], rows[t], assigned[t].getIndex());
+    }
+    log.info("Mean squared LAB error per tile: " + (assignment.getTotalError() / targets.length));
+  }
+
+  /**
+   * Receives a preview of a mosaic as soon as its tiles are matched, while the
+   * full mosaic is still to be drawn.
+   */
+  public interface PreviewListener {
+
+    /**
+     * Called on the thread that matched the tiles; the mosaic is drawn once it
+     * returns, or concurrently in a pipelined run.
+     */
+    void preview(BufferedImage preview);
+  }
+
+  /**
+   * Draws a quick, low-resolution version of a plan without loading any
+   * thumbnails: every cell is filled with the average colour of its tile,
+   * tinted as the mosaic is, and the longer side is at most
+   * {@value #PREVIEW_SIZE} pixels but at least a pixel per block. Tiles of a
+   * plan read from a file, whose colours are not known, show the input
+   * colour instead.
+   */
+  public BufferedImage preview(MosaicPlan plan, MosaicOptions options) {
+    return preview(plan.getTilePaths() != null ? new Library(plan.getTilePaths()) : this.library, plan, options);
+  }
+
+  @SuppressWarnings("try")
+  private BufferedImage preview(Library library, MosaicPlan plan, MosaicOptions options) {
+    try (Metrics.Timer timer = metrics.start(Phase.PREVIEW)) {
+      int blocks = plan.getBlocks();
+      int fullWidth = plan.getTileWidth() * blocks;
+      int fullHeight = plan.getTileHeight() * blocks;
+      double scale = Math.min(1, (double) PREVIEW_SIZE / Math.max(fullWidth, fullHeight));
+      int width = Math.max(blocks, (int) Math.round(fullWidth * scale));
+      int height = Math.max(blocks, (int) Math.round(fullHeight * scale));
+      int tint = options.getTint();
+
+      BufferedImage preview = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+      Graphics2D g = preview.createGraphics();
+      for (int i = 0; i < blocks; i++) {
+        for (int j = 0; j < blocks; j++) {
+          int size = plan.getCellSize(i, j);
+          if (size == 0) {
+            continue;
+          }
+          Color section = plan.getSectionColor(i, j);
+          Color tile = library.colorOf(plan.getTile(i, j));
+          if (tile == null) {
+            tile = section;
+          }
+          g.setColor(new Color(blend(tile.getRed(), section.getRed(), tint),
+              blend(tile.getGreen(), section.getGreen(), tint), blend(tile.getBlue(), section.getBlue(), tint)));
+          int x0 = i * width / blocks;
+          int y0 = j * height / blocks;
+          g.fillRect(x0, y0, (i + size) * width / blocks - x0, (j + size) * height / blocks - y0);
+        }
+      }
+      g.dispose();
+      return preview;
+    }
+  }
+
+  // The tile colour with the tint drawn over it at the given alpha
+  private static int blend(int tile, int tint, int alpha) {
+    return (tile * (255 - alpha) + tint * alpha + 127) / 255;
+  }
+
+  /**
+   * Stops a job between rows once its thread is interrupted, e.g. by
+   * {@link Future#cancel(boolean)} when a server request times out.
+   */
+  private static void checkInterrupted() throws InterruptedException {
+    if (Thread.interrupted()) {
+      throw new InterruptedException();
+    }
+  }
+
+  /**
+   * Draws the tiles of a plan.
+   */
+  public BufferedImage render(MosaicPlan plan, MosaicOptions options) throws MosaicException {
+    return render(plan, options, log);
+  }
+
+  private BufferedImage render(MosaicPlan plan, MosaicOptions options, Reporter log) throws MosaicException {
+    try {
+      return renderInterruptibly(plan, options, log);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MosaicException("Interrupted while drawing the mosaic", e);
+    }
+  }
+
+  @SuppressWarnings("try")
+  private BufferedImage renderInterruptibly(MosaicPlan plan, MosaicOptions options, Reporter log)
+      throws InterruptedException {
+    Library library = plan.getTilePaths() != null ? new Library(plan.getTilePaths()) : this.library;
+    int blocks = plan.getBlocks();
+    int tileWidth = plan.getTileWidth();
+    int tileHeight = plan.getTileHeight();
+    int padding = options.getPadding();
+    int tintAmount = options.getTint();
+    boolean circle = options.isCircle();
+
+    BufferedImage[] cache = null;
+    Map<Integer, Map<Integer, BufferedImage>> planThumbnails = Collections.emptyMap();
+    if (tintAmount < 255) {
+      if (!library.tiles.isEmpty()) {
+        cache = getThumbnails(library, Math.max(1, tileWidth - padding * 2), Math.max(1, tileHeight - padding * 2),
+            log);
+      }
+      if (cache == null || plan.getCells() < blocks * blocks) {
+        // The whole library at every size would not fit; load what the plan
+        // uses
+        planThumbnails = loadPlanThumbnails(library, plan, padding, cache == null ? 1 : 2, log);
+      }
+    }
+
+    try (Metrics.Timer timer = metrics.start(Phase.RENDER)) {
+      BufferedImage rendered = draw(library, plan, options, cache, planThumbnails, log);
+      metrics.increment(Counter.MOSAICS);
+      return rendered;
+    }
+  }
+
+  private BufferedImage draw(Library library, MosaicPlan plan, MosaicOptions options, BufferedImage[] cache,
+      Map<Integer, Map<Integer, BufferedImage>> planThumbnails, Reporter log) throws InterruptedException {
+    int blocks = plan.getBlocks();
+
+    log.info("Building mosaic image...");
+
+    TileDrawer drawer = new TileDrawer(library, plan, options, cache, planThumbnails, log);
+    try (Reporter.Progress progress = log.startTask("Building mosaic", plan.getCells(), "tiles")) {
+      for (int i = 0; i < blocks; i++) {
+        checkInterrupted();
+        for (int j = 0; j < blocks; j++) {
+          if (drawer.drawCell(i, j)) {
+            progress.increment();
+          }
+        }
+      }
+    }
+    return drawer.finish();
+  }
+
+  /**
+   * Draws the cells of a plan onto a new mosaic, in any order.
+   */
+  private final class TileDrawer {
+
+    private final Library library;
+    private final MosaicPlan plan;
+    private final MosaicOptions options;
+    private final BufferedImage[] cache;
+    private final Map<Integer, Map<Integer, BufferedImage>> planThumbnails;
+    private final Reporter log;
+    private final BufferedImage image;
+    private final Graphics2D g;
+    private int thumbnailHits;
+    private int thumbnailMisses;
+
+    /**
+     * @param cache          thumbnails for single-block cells by tile index, or
+     *                       null to take them from planThumbnails as well
+     * @param planThumbnails thumbnails by tile index, keyed by the side of the
+     *                       cell in blocks
+     */
+    TileDrawer(Library library, MosaicPlan plan, MosaicOptions options, BufferedImage[] cache,
+        Map<Integer, Map<Integer, BufferedImage>> planThumbnails, Reporter log) {
+      this.library = library;
+      this.plan = plan;
+      this.options = options;
+      this.cache = cache;
+      this.planThumbnails = planThumbnails;
+      this.log = log;
+
+      int blocks = plan.getBlocks();
+      image = new BufferedImage(plan.getTileWidth() * blocks, plan.getTileHeight() * blocks,
+          BufferedImage.TYPE_INT_ARGB);
+      g = image.createGraphics();
+      g.setBackground(Color.white);
+      g.clearRect(0, 0, image.getWidth(), image.getHeight());
+      RenderingHints rh = g.getRenderingHints();
+      rh.put(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+      g.setRenderingHints(rh);
+      Stroke s = new BasicStroke(options.getStroke());
+      g.setStroke(s);
+    }
+
+    /**
+     * Draws the cell whose top left block is column {@code i}, row {@code j}.
+     *
+     * @return false if that block is part of a larger cell
+     */
+    boolean drawCell(int i, int j) {
+      int size = plan.getCellSize(i, j);
+      if (size == 0) {
+        return false;
+      }
+      int tileWidth = plan.getTileWidth();
+      int tileHeight = plan.getTileHeight();
+      int padding = options.getPadding();
+      int tintAmount = options.getTint();
+      boolean circle = options.isCircle();
+      int cellWidth = tileWidth * size;
+      int cellHeight = tileHeight * size;
+
+      Rectangle rectangleWithoutPadding = new Rectangle((i * tileWidth) + padding, (j * tileHeight) + padding,
+          cellWidth - padding * 2, cellHeight - padding * 2);
+      Rectangle fullRectangle = new Rectangle(i * tileWidth, j * tileHeight, cellWidth, cellHeight);
+
+      int currentTile = plan.getTile(i, j);
+
+      if (tintAmount < 255) {
+
+        // If the tint amount is not 255, then we should still draw
+        // the image.
+
+        // Use cached image instead of reading from disk
+        BufferedImage currentMosaicTileImage;
+        if (size == 1 && cache != null) {
+          currentMosaicTileImage = cache[currentTile];
+        } else {
+          Map<Integer, BufferedImage> sized = planThumbnails.get(size);
+          currentMosaicTileImage = sized != null ? sized.get(currentTile) : null;
+        }
+        if (currentMosaicTileImage != null) {
+          thumbnailHits++;
+        } else {
+          thumbnailMisses++;
+          // Fallback to disk read if not in cache (shouldn't happen)
+          String path = library.pathOf(currentTile);
+          log.warn("Image not found in cache: " + path);
+          currentMosaicTileImage = loadThumbnail(path, Math.max(1, cellWidth - padding * 2),
+              Math.max(1, cellHeight - padding * 2), log);
+        }
+
+        if (circle) {
+          Ellipse2D ellipse = new Ellipse2D.Float();
+          ellipse.setFrame(rectangleWithoutPadding);
+          g.setClip(ellipse);
+        }
+
+        g.drawImage(currentMosaicTileImage, rectangleWithoutPadding.x, rectangleWithoutPadding.y,
+            rectangleWithoutPadding.width, rectangleWithoutPadding.height, null);
+
+      }
+
+      if (tintAmount > 0) {
+
+        // Render the tint using the average color of the original image section
+
+        Color c = plan.getSectionColor(i, j);
+        Color newColor = new Color(c.getRed(), c.getGreen(), c.getBlue(), tintAmount);
+        g.setColor(newColor);
+        g.fillRect(fullRectangle.x, fullRectangle.y, fullRectangle.width, fullRectangle.height);
+
+      }
+
+      // Use the average color of the original image section, not the tile
+      g.setColor(plan.getSectionColor(i, j));
+
+      if (circle) {
+        Rectangle2D rect = new Rectangle2D.Float();
+        rect.setRect(fullRectangle.x, fullRectangle.y, fullRectangle.width, fullRectangle.height);
+        g.setClip(rect);
+        g.drawOval(rectangleWithoutPadding.x, rectangleWithoutPadding.y, rectangleWithoutPadding.width,
+            rectangleWithoutPadding.height);
+      } else {
+        g.drawRect(rectangleWithoutPadding.x, rectangleWithoutPadding.y, rectangleWithoutPadding.width,
+            rectangleWithoutPadding.height);
+      }
+      return true;
+    }
+
+    BufferedImage getImage() {
+      return image;
+    }
+
+    /**
+     * @return the mosaic
+     */
+    BufferedImage finish() {
+      g.dispose();
+      metrics.add(Counter.THUMBNAIL_HITS, thumbnailHits);
+      metrics.add(Counter.THUMBNAIL_MISSES, thumbnailMisses);
+      return image;
+    }
+  }
+
+  /**
+   * Determines the output format from the file extension, PNG if unknown.
+   */
+  public static String getFormat(File outputFile) {
+    String fileName = outputFile.getName().toLowerCase();
+    String format = "png"; // default
+    if (fileName.endsWith(".jpg") || fileName.endsWith(".jpeg")) {
+      format = "jpeg";
+    } else if (fileName.endsWith(".png")) {
+      format = "png";
+    } else if (fileName.endsWith(".bmp")) {
+      format = "bmp";
+    }
+    return format;
+  }
+
+  /**
+   * Writes a rendered mosaic in the format given by the file extension.
+   */
+  public void encode(BufferedImage toSave, File outputFile) throws MosaicException {
+    encode(toSave, outputFile, log);
+  }
+
+  @SuppressWarnings("try")
+  private void encode(BufferedImage toSave, File outputFile, Reporter log) throws MosaicException {
+    log.info("Saving output image to: " + outputFile.getAbsolutePath());
+    log.debug("Output image dimensions: " + toSave.getWidth() + "x" + toSave.getHeight() + " pixels");
+
+    String format = getFormat(outputFile);
+    log.debug("Detected output format: " + format.toUpperCase());
+
+    // Check if writer is available
+    ImageWriter writer = null;
+    Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+    if (writers.hasNext()) {
+      writer = writers.next();
+    }
+
+    if (writer == null) {
+      throw new MosaicException("No " + format.toUpperCase() + " writer available."
+          + "\nAvailable writers: " + java.util.Arrays.toString(ImageIO.getWriterFormatNames()));
+    }
+
+    log.debug("Using ImageWriter: " + writer.getClass().getName());
+
+    // Convert image if needed for format compatibility (JPEG doesn't support alpha)
+    BufferedImage imageToSave = toSave;
+    if (format.equals("jpeg") && toSave.getType() != BufferedImage.TYPE_INT_RGB) {
+      log.debug("Converting image from type " + toSave.getType() + " to TYPE_INT_RGB for JPEG compatibility");
+      imageToSave = toRgb(toSave);
+    }
+
+    boolean saved;
+    try (Metrics.Timer timer = metrics.start(Phase.ENCODE)) {
+      if (format.equals("png") && encodeThreads > 0) {
+        log.debug("Compressing on " + encodeThreads + " threads");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile), 1 << 16)) {
+          writeParallelPng(imageToSave, out);
+        }
+        saved = true;
+      } else {
+        saved = ImageIO.write(imageToSave, format, outputFile);
+      }
+    } catch (IOException e) {
+      throw new MosaicException("Failed to save image " + outputFile.getAbsolutePath() + ": " + e.getMessage(), e);
+    }
+    if (!saved) {
+      throw new MosaicException("Failed to save image. ImageIO.write returned false."
+          + "\nAttempted format: " + format
+          + "\nImage type: " + imageToSave.getType()
+          + "\nAvailable writers for " + format + ": " + java.util.Arrays.toString(ImageIO.getWriterFormatNames()));
+    }
+
+    reportSaved(outputFile, log);
+  }
+
+  private void reportSaved(File outputFile, Reporter log) throws MosaicException {
+    if (!outputFile.exists()) {
+      throw new MosaicException("Output file was not created: " + outputFile.getAbsolutePath());
+    }
+    long fileSize = outputFile.length();
+    metrics.add(Counter.BYTES_WRITTEN, fileSize);
+    log.info("Successfully saved output image!");
+    log.info("File size: " + (fileSize / 1024) + " KB (" + fileSize + " bytes)");
+    log.info("Output file: " + outputFile.getAbsolutePath());
+  }
+
+  /**
+   * Writes a rendered mosaic to a stream, e.g. to answer a network request.
+   *
+   * @param format an ImageIO format name such as "png" or "jpeg"
+   */
+  @SuppressWarnings("try")
+  public void encode(BufferedImage toSave, String format, OutputStream out) throws MosaicException {
+    BufferedImage imageToSave = toSave;
+    if (format.equals("jpeg") && toSave.getType() != BufferedImage.TYPE_INT_RGB) {
+      imageToSave = toRgb(toSave);
+    }
+    CountingOutputStream counted = new CountingOutputStream(out);
+    try (Metrics.Timer timer = metrics.start(Phase.ENCODE)) {
+      if (format.equals("png") && encodeThreads > 0) {
+        writeParallelPng(imageToSave, counted);
+      } else if (!ImageIO.write(imageToSave, format, counted)) {
+        throw new MosaicException("No " + format.toUpperCase() + " writer available.");
+      }
+      counted.flush();
+      metrics.add(Counter.BYTES_WRITTEN, counted.count);
+    } catch (IOException e) {
+      throw new MosaicException("Failed to write " + format + " image: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Writes a PNG on the encode threads, counting their CPU time towards the
+   * encode phase timed by the caller.
+   */
+  private void writeParallelPng(BufferedImage image, OutputStream out) throws IOException {
+    ParallelPngWriter writer = new ParallelPngWriter(encodeThreads, PNG_COMPRESSION_LEVEL);
+    try {
+      writer.write(image, out);
+    } finally {
+      metrics.addCpuNanos(Phase.ENCODE, writer.getCpuNanos());
+    }
+  }
+
+  private static class CountingOutputStream extends FilterOutputStream {
+
+    long count;
+
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
+
+  // JPEG doesn't support alpha
+  private static BufferedImage toRgb(BufferedImage image) {
+    BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+    Graphics2D g2 = rgb.createGraphics();
+    g2.drawImage(image, 0, 0, null);
+    g2.dispose();
+    return rgb;
+  }
+
+  /**
+   * Runs every stage for a single input.
+   */
+  public void createMosaic(File input, File output, MosaicOptions options) throws MosaicException {
+    createMosaic(input, output, options, null);
+  }
+
+  /**
+   * Runs every stage for a single input, handing a
+   * {@link #preview(MosaicPlan, MosaicOptions)} to the listener as soon as the
+   * tiles are matched.
+   *
+   * @param previews told about the preview, or null
+   */
+  public void createMosaic(File input, File output, MosaicOptions options, PreviewListener previews)
+      throws MosaicException {
+    BufferedImage img = readInput(input);
+    MosaicPlan plan = match(img, options);
+    if (previews != null) {
+      previews.preview(preview(plan, options));
+    }
+    encode(render(plan, options), output);
+  }
+
+  /**
+   * Runs every stage for a single input like
+   * {@link #createMosaic(File, File, MosaicOptions)}, but with the stages
+   * overlapped: matching, thumbnail loading, drawing and encoding each run on
+   * their own thread and hand rows of blocks to the next stage through bounded
+   * queues, so thumbnails are decoded as soon as their row is matched and a
+   * PNG is compressed strip by strip while the rows below are still drawn.
+   * The depth of every queue is recorded in the metrics.
+   *
+   * Cells are matched row by row rather than column by column, so with
+   * {@link MosaicOptions#isConsume()} or a diversity rule a few tiles can
+   * differ from the sequential run. Formats other than PNG are encoded once
+   * the whole mosaic is drawn.
+   */
+  public void createMosaicPipelined(File input, File output, MosaicOptions options) throws MosaicException {
+    createMosaicPipelined(input, output, options, null);
+  }
+
+  /**
+   * Runs the stages overlapped like
+   * {@link #createMosaicPipelined(File, File, MosaicOptions)}, handing a
+   * {@link #preview(MosaicPlan, MosaicOptions)} to the listener as soon as the
+   * last row is matched.
+   *
+   * @param previews told about the preview, or null
+   */
+  public void createMosaicPipelined(File input, final File output, final MosaicOptions options,
+      final PreviewListener previews) throws MosaicException {
+    final Library library = this.library;
+    final BufferedImage img = readInput(input, log);
+    final MosaicPlan plan = newPlan(library, img, options, log);
+    final int blocks = plan.getBlocks();
+    final int tileWidth = plan.getTileWidth();
+    final int tileHeight = plan.getTileHeight();
+    final int padding = options.getPadding();
+    final boolean thumbnails = options.getTint() < 255;
+
+    // Reuse the pre-scaled library if another mosaic of this size loaded it,
+    // otherwise load only the tiles each row uses
+    final BufferedImage[] cache = thumbnails && library.mapped == null ? library.thumbnails
+        .get(((long) Math.max(1, tileWidth - padding * 2) << 32) | Math.max(1, tileHeight - padding * 2)) : null;
+    final Map<Integer, Map<Integer, BufferedImage>> planThumbnails =
+        new ConcurrentHashMap<Integer, Map<Integer, BufferedImage>>();
+    final TileDrawer drawer = new TileDrawer(library, plan, options, cache, planThumbnails, log);
+    final BufferedImage image = drawer.getImage();
+    // A square outline reaches up to half the stroke and a pixel of
+    // anti-aliasing out of its cell; circles are clipped to theirs
+    final int lag = options.isCircle() ? 0
+        : Math.max(0, (int) Math.ceil((options.getStroke() / 2.0 + 1 - padding) / tileHeight));
+
+    final int[] lastStrip = new int[0];
+    // With a preview wanted, matching is not held back to the pace of drawing
+    final StageQueue<Integer> matched = new StageQueue<Integer>(Metrics.Queue.THUMBNAILS,
+        previews != null ? blocks + 1 : PIPELINE_DEPTH, metrics);
+    final StageQueue<Integer> loaded = new StageQueue<Integer>(Metrics.Queue.RENDER, PIPELINE_DEPTH, metrics);
+    final StageQueue<int[]> strips = new StageQueue<int[]>(Metrics.Queue.ENCODE, PIPELINE_DEPTH, metrics);
+
+    log.info("Building mosaic image while matching...");
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    CompletionService<Void> stages = new ExecutorCompletionService<Void>(pool);
+    try {
+      stages.submit(new Callable<Void>() {
+
+        public Void call() throws Exception {
+          assign(library, img, plan, options, log, new RowListener() {
+
+            public void matched(int row) {
+              try {
+                matched.put(row);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException();
+              }
+            }
+          });
+          matched.put(END_OF_ROWS);
+          if (previews != null) {
+            previews.preview(preview(library, plan, options));
+          }
+          return null;
+        }
+      });
+      stages.submit(new Callable<Void>() {
+
+        @SuppressWarnings("try")
+        public Void call() throws Exception {
+          try (Metrics.Timer timer = metrics.start(Phase.THUMBNAILS)) {
+            Set<Long> attempted = new HashSet<Long>();
+            for (Integer row; (row = matched.take()) != END_OF_ROWS;) {
+              for (int i = 0; thumbnails && i < blocks; i++) {
+                int size = plan.getCellSize(i, row);
+                int tile = plan.getTile(i, row);
+                if (size == 0 || (size == 1 && cache != null) || !attempted.add(((long) size << 32) | tile)) {
+                  continue;
+                }
+                BufferedImage thumbnail = loadThumbnail(library.pathOf(tile),
+                    Math.max(1, tileWidth * size - padding * 2), Math.max(1, tileHeight * size - padding * 2), log);
+                if (thumbnail != null) {
+                  planThumbnails.computeIfAbsent(size, k -> new ConcurrentHashMap<Integer, BufferedImage>())
+                      .put(tile, thumbnail);
+                }
+              }
+              loaded.put(row);
+            }
+            loaded.put(END_OF_ROWS);
+          }
+          return null;
+        }
+      });
+      stages.submit(new Callable<Void>() {
+
+        @SuppressWarnings("try")
+        public Void call() throws Exception {
+          try (Metrics.Timer timer = metrics.start(Phase.RENDER);
+              Reporter.Progress progress = log.startTask("Building mosaic", plan.getCells(), "tiles")) {
+            int emitted = 0;
+            for (Integer row; (row = loaded.take()) != END_OF_ROWS;) {
+              for (int i = 0; i < blocks; i++) {
+                if (drawer.drawCell(i, row)) {
+                  progress.increment();
+                }
+              }
+              int done = (row + 1 - lag) * tileHeight;
+              if (done > emitted) {
+                strips.put(new int[] { emitted, done });
+                emitted = done;
+              }
+            }
+            drawer.finish();
+            if (emitted < image.getHeight()) {
+              strips.put(new int[] { emitted, image.getHeight() });
+            }
+            strips.put(lastStrip);
+          }
+          metrics.increment(Counter.MOSAICS);
+          return null;
+        }
+      });
+      stages.submit(new Callable<Void>() {
+
+        @SuppressWarnings("try")
+        public Void call() throws Exception {
+          if (!getFormat(output).equals("png")) {
+            while (strips.take() != lastStrip) {
+              // The encoder needs the whole image
+            }
+            encode(image, output, log);
+            return null;
+          }
+          log.info("Saving output image to: " + output.getAbsolutePath());
+          try (Metrics.Timer timer = metrics.start(Phase.ENCODE);
+              OutputStream out = new BufferedOutputStream(new FileOutputStream(output), 1 << 16);
+              PngStripWriter writer = new PngStripWriter(out, image.getWidth(), image.getHeight(),
+                  PNG_COMPRESSION_LEVEL)) {
+            for (int[] strip; (strip = strips.take()) != lastStrip;) {
+              writer.write(image, strip[0], strip[1]);
+            }
+          } catch (IOException e) {
+            throw new MosaicException("Failed to save image " + output.getAbsolutePath() + ": " + e.getMessage(), e);
+          }
+          reportSaved(output, log);
+          return null;
+        }
+      });
+
+      for (int i = 0; i < 4; i++) {
+        try {
+          stages.take().get();
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          throw cause instanceof MosaicException ? (MosaicException) cause
+              : new MosaicException(String.valueOf(cause), cause);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MosaicException("Interrupted while building " + output.getAbsolutePath(), e);
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Renders many inputs against the loaded index. Each output is written to
+   * {@code outputDir} under the name of its input.
+   *
+   * @param threads the number of mosaics rendered at the same time
+   * @return the inputs that failed, with the reason, in input order
+   */
+  public Map<File, MosaicException> renderAll(List<File> inputs, final File outputDir, final MosaicOptions options,
+      int threads) throws InterruptedException {
+    if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+      MosaicException e = new MosaicException("Cannot create output directory: " + outputDir.getAbsolutePath());
+      Map<File, MosaicException> failures = new LinkedHashMap<File, MosaicException>();
+      for (File input : inputs) {
+        failures.put(input, e);
+      }
+      return failures;
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+    Map<File, Future<?>> jobs = new LinkedHashMap<File, Future<?>>();
+    try (Reporter.Progress progress = log.startTask("Rendered", inputs.size(), "mosaics")) {
+      for (final File input : inputs) {
+        jobs.put(input, pool.submit(new java.util.concurrent.Callable<Void>() {
+
+          public Void call() throws MosaicException {
+            try {
+              renderQuietly(input, new File(outputDir, input.getName()), options);
+            } finally {
+              progress.increment();
+            }
+            return null;
+          }
+        }));
+      }
+
+      Map<File, MosaicException> failures = new LinkedHashMap<File, MosaicException>();
+      for (Map.Entry<File, Future<?>> job : jobs.entrySet()) {
+        try {
+          job.getValue().get();
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          failures.put(job.getKey(), cause instanceof MosaicException ? (MosaicException) cause
+              : new MosaicException(String.valueOf(cause), cause));
+        }
+      }
+      return failures;
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private void renderQuietly(File input, File output, MosaicOptions options) throws MosaicException {
+    // Only the progress over all inputs is shown
+    Reporter quiet = log.withLevel(Level.WARN);
+    BufferedImage img = readInput(input, quiet);
+    encode(render(match(img, options, quiet), options, quiet), output, quiet);
+  }
+
+  /**
+   * @return the thumbnails of the given size, indexed by tile index, loading
+   *         them on first use; null if they would not fit in the thumbnail
+   *         cache
+   */
+  private BufferedImage[] getThumbnails(Library library, int width, int height, Reporter log)
+      throws InterruptedException {
+    long key = ((long) width << 32) | height;
+    BufferedImage[] cached = library.thumbnails.get(key);
+    if (cached != null) {
+      return cached;
+    }
+    if (ThumbnailCache.bytes(key, library.tiles.size()) > thumbnailCacheBytes) {
+      log.debug("Thumbnails of " + width + "x" + height + " for the whole library exceed the cache of "
+          + (thumbnailCacheBytes >> 20) + " MB, loading only those used");
+      return null;
+    }
+    // Two renders of a new size may both load it; only one set is kept
+    BufferedImage[] loaded = loadThumbnails(library.tiles, width, height, log);
+    library.thumbnails.put(key, loaded, thumbnailCacheBytes);
+    return loaded;
+  }
+
+  /**
+   * Thumbnails for the tiles of one plan: those in cells of at least
+   * {@code minSize} blocks, i.e. the larger cells of an adaptive layout, or
+   * every cell when the library is too large to pre-load. Each image is decoded
+   * once and scaled to every size it is used at.
+   *
+   * @return thumbnails by tile index, keyed by the side of the cell in blocks
+   */
+  @SuppressWarnings("try")
+  private Map<Integer, Map<Integer, BufferedImage>> loadPlanThumbnails(Library library, MosaicPlan plan,
+      int padding, int minSize, Reporter log) throws InterruptedException {
+    Map<Integer, List<Integer>> sizesByTile = new LinkedHashMap<Integer, List<Integer>>();
+    Map<Integer, Map<Integer, BufferedImage>> thumbnails = new LinkedHashMap<Integer, Map<Integer, BufferedImage>>();
+    for (int i = 0; i < plan.getBlocks(); i++) {
+      for (int j = 0; j < plan.getBlocks(); j++) {
+        Integer size = plan.getCellSize(i, j);
+        if (size >= minSize) {
+          List<Integer> sizes = sizesByTile.computeIfAbsent(plan.getTile(i, j), k -> new ArrayList<Integer>());
+          if (!sizes.contains(size)) {
+            sizes.add(size);
+          }
+          thumbnails.computeIfAbsent(size, k -> new HashMap<Integer, BufferedImage>());
+        }
+      }
+    }
+
+    try (Metrics.Timer timer = metrics.start(Phase.THUMBNAILS)) {
+      for (Map.Entry<Integer, List<Integer>> entry : sizesByTile.entrySet()) {
+        checkInterrupted();
+        String path = library.pathOf(entry.getKey());
+        BufferedImage original = readThumbnailSource(path, log);
+        if (original == null) {
+          continue;
+        }
+        for (int size : entry.getValue()) {
+          int width = Math.max(1, plan.getTileWidth() * size - padding * 2);
+          int height = Math.max(1, plan.getTileHeight() * size - padding * 2);
+          thumbnails.get(size).put(entry.getKey(), original.getWidth() == width && original.getHeight() == height
+              ? original : scaleImagePreservingAspectRatio(original, width, height));
+        }
+      }
+    }
+    log.debug("Loaded " + sizesByTile.size() + " images for " + thumbnails.size() + " tile sizes");
+    return thumbnails;
+  }
+
+  /**
+   * Loads source images into an in-memory cache, pre-scaled to tile size for
+   * performance.
+   * This avoids reading images from disk for each tile during rendering.
+   *
+   * @return thumbnails indexed by tile index; null where the image could not be
+   *         loaded
+   */
+  @SuppressWarnings("try")
+  private BufferedImage[] loadThumbnails(List<MosaicTile> tiles, int targetWidth, int targetHeight,
+      Reporter log) throws InterruptedException {
+    try (Metrics.Timer timer = metrics.start(Phase.THUMBNAILS)) {
+      return loadThumbnailSet(tiles, targetWidth, targetHeight, log);
+    }
+  }
+
+  private BufferedImage[] loadThumbnailSet(List<MosaicTile> tiles, int targetWidth, int targetHeight,
+      Reporter log) throws InterruptedException {
+    log.info("Pre-loading source images into memory cache...");
+    BufferedImage[] cache = new BufferedImage[tiles.size()];
+    int loaded = 0;
+    int failed = 0;
+
+    try (Reporter.Progress progress = log.startTask("Loading images", tiles.size(), "images")) {
+      for (MosaicTile tile : tiles) {
+        checkInterrupted();
+        BufferedImage scaled = loadThumbnail(tile.getPath(), targetWidth, targetHeight, log);
+        if (scaled != null) {
+          cache[tile.getIndex()] = scaled;
+          loaded++;
+        } else {
+          failed++;
+        }
+        progress.increment();
+      }
+    }
+
+    log.info("Loaded " + loaded + " images into memory cache");
+    if (failed > 0) {
+      log.warn("Failed to load " + failed + " images (they will be skipped)");
+    }
+
+    return cache;
+  }
+
+  private BufferedImage loadThumbnail(String imagePath, int targetWidth, int targetHeight, Reporter log) {
+    BufferedImage original = readThumbnailSource(imagePath, log);
+    if (original == null) {
+      return null;
+    }
+    // Pre-scale image to tile size (accounting for padding)
+    if (original.getWidth() == targetWidth && original.getHeight() == targetHeight) {
+      return original;
+    }
+    try {
+      return scaleImagePreservingAspectRatio(original, targetWidth, targetHeight);
+    } catch (Exception e) {
+      log.debug("Error loading image " + imagePath + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * @return the decoded source image, null if it cannot be read
+   */
+  private BufferedImage readThumbnailSource(String imagePath, Reporter log) {
+    try {
+      File imageFile = new File(imagePath);
+      if (imageFile.exists() && imageFile.isFile()) {
+        BufferedImage original = ImageIO.read(imageFile);
+        if (original != null) {
+          metrics.increment(Counter.FILES_DECODED);
+          return original;
+        } else {
+          log.debug("Failed to read image: " + imagePath);
+        }
+      } else {
+        log.debug("Image file not found: " + imagePath);
+      }
+    } catch (Exception e) {
+      log.debug("Error loading image " + imagePath + ": " + e.getMessage());
+    }
+    return null;
+  }
+
+  /**
+   * Scales an image to fit within target dimensions while preserving aspect
+   * ratio.
+   * The image is scaled to fill the target area and then cropped/centered to fit
+   * exactly.
+   * This prevents stretching/distortion of source images.
+   *
+   * @param original     The original image to scale
+   * @param targetWidth  Target width in pixels
+   * @param targetHeight Target height in pixels
+   * @return Scaled and cropped image with preserved aspect ratio
+   */
+  private static BufferedImage scaleImagePreservingAspectRatio(BufferedImage original, int targetWidth,
+      int targetHeight) {
+    int originalWidth = original.getWidth();
+    int originalHeight = original.getHeight();
+
+    // Calculate scaling factor to fill the target area (scale to cover, not fit)
+    double scaleX = (double) targetWidth / originalWidth;
+    double scaleY = (double) targetHeight / originalHeight;
+    double scale = Math.max(scaleX, scaleY); // Use larger scale to ensure we fill the area
+
+    // Calculate scaled dimensions
+    int scaledWidth = (int) Math.round(originalWidth * scale);
+    int scaledHeight = (int) Math.round(originalHeight * scale);
+
+    // Create scaled image
+    BufferedImage scaled = new BufferedImage(scaledWidth, scaledHeight, BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g2 = scaled.createGraphics();
+    g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+    g2.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+    g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    g2.drawImage(original, 0, 0, scaledWidth, scaledHeight, null);
+    g2.dispose();
+
+    // Crop to exact target size (center crop)
+    int cropX = (scaledWidth - targetWidth) / 2;
+    int cropY = (scaledHeight - targetHeight) / 2;
+
+    BufferedImage cropped = scaled.getSubimage(cropX, cropY, targetWidth, targetHeight);
+
+    // Create final image with exact target dimensions
+    BufferedImage result = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g3 = result.createGraphics();
+    g3.drawImage(cropped, 0, 0, null);
+    g3.dispose();
+
+    return result;
+  }
+
+}
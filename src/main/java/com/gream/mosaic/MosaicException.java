@@ -0,0 +1,19 @@
+package com.gream.mosaic;
+
+/**
+ * Thrown by {@link MosaicEngine} when a mosaic cannot be produced, e.g. an
+ * unreadable input or a library that runs out of images.
+ */
+public class MosaicException extends Exception {
+
+  private static final long serialVersionUID = 1L;
+
+  public MosaicException(String message) {
+    super(message);
+  }
+
+  public MosaicException(String message, Throwable cause) {
+    super(message, cause);
+  }
+
+}
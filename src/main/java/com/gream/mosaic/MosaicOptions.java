@@ -0,0 +1,198 @@
+package com.gream.mosaic;
+
+import com.gream.mosaic.utils.ColorMetric;
+
+/**
+ * Settings for a single mosaic render. The defaults are the same as the
+ * command line defaults.
+ */
+public class MosaicOptions {
+
+  private int blocks = 50;
+  private double noise = 0;
+  private int tint = 0;
+  private int padding = 0;
+  private int stroke = 0;
+  private boolean circle;
+  private boolean consume;
+  private boolean adjacencyBan;
+  private int diversityRadius = 1;
+  private int maxUsage = 0;
+  private boolean optimal;
+  private int searchBudget = 0;
+  private ColorMetric colorMetric = ColorMetric.CIE76;
+  private int grid = 0;
+  private int adaptiveLevels = 0;
+  private double adaptiveThreshold = 12;
+  private boolean verbose;
+
+  /**
+   * @return the number of tiles per row/ column
+   */
+  public int getBlocks() {
+    return blocks;
+  }
+
+  public void setBlocks(int blocks) {
+    this.blocks = blocks;
+  }
+
+  /**
+   * @return the chance of noise in [0, 1.0]
+   */
+  public double getNoise() {
+    return noise;
+  }
+
+  public void setNoise(double noise) {
+    this.noise = Math.max(0, Math.min(1, noise));
+  }
+
+  /**
+   * @return the alpha of the tint drawn over each tile in [0, 255]
+   */
+  public int getTint() {
+    return tint;
+  }
+
+  public void setTint(int tint) {
+    this.tint = Math.max(0, Math.min(255, tint));
+  }
+
+  public int getPadding() {
+    return padding;
+  }
+
+  public void setPadding(int padding) {
+    this.padding = padding;
+  }
+
+  public int getStroke() {
+    return stroke;
+  }
+
+  public void setStroke(int stroke) {
+    this.stroke = stroke;
+  }
+
+  public boolean isCircle() {
+    return circle;
+  }
+
+  public void setCircle(boolean circle) {
+    this.circle = circle;
+  }
+
+  public boolean isConsume() {
+    return consume;
+  }
+
+  public void setConsume(boolean consume) {
+    this.consume = consume;
+  }
+
+  public boolean isAdjacencyBan() {
+    return adjacencyBan;
+  }
+
+  public void setAdjacencyBan(boolean adjacencyBan) {
+    this.adjacencyBan = adjacencyBan;
+  }
+
+  public int getDiversityRadius() {
+    return diversityRadius;
+  }
+
+  public void setDiversityRadius(int diversityRadius) {
+    this.diversityRadius = diversityRadius;
+  }
+
+  /**
+   * @return the maximum number of uses per source image, 0 for unlimited
+   */
+  public int getMaxUsage() {
+    return maxUsage;
+  }
+
+  public void setMaxUsage(int maxUsage) {
+    this.maxUsage = maxUsage;
+  }
+
+  public boolean isOptimal() {
+    return optimal;
+  }
+
+  public void setOptimal(boolean optimal) {
+    this.optimal = optimal;
+  }
+
+  /**
+   * @return the most tree nodes a nearest neighbour search may check, 0 for an
+   *         exact search
+   */
+  public int getSearchBudget() {
+    return searchBudget;
+  }
+
+  public void setSearchBudget(int searchBudget) {
+    this.searchBudget = Math.max(0, searchBudget);
+  }
+
+  /**
+   * @return the metric tiles are matched with; anything but CIE76 re-ranks the
+   *         nearest candidates by LAB distance
+   */
+  public ColorMetric getColorMetric() {
+    return colorMetric;
+  }
+
+  public void setColorMetric(ColorMetric colorMetric) {
+    this.colorMetric = colorMetric;
+  }
+
+  /**
+   * @return the side of the colour grid cells are matched with, 0 to match on
+   *         the average colour alone
+   */
+  public int getGrid() {
+    return grid;
+  }
+
+  public void setGrid(int grid) {
+    this.grid = Math.max(0, grid);
+  }
+
+  /**
+   * @return how many times blocks may be merged 2x2 into larger cells where
+   *         the input is flat, so cells are up to 2^levels blocks wide; 0 for
+   *         a uniform grid
+   */
+  public int getAdaptiveLevels() {
+    return adaptiveLevels;
+  }
+
+  public void setAdaptiveLevels(int adaptiveLevels) {
+    this.adaptiveLevels = Math.max(0, Math.min(8, adaptiveLevels));
+  }
+
+  /**
+   * @return the standard deviation of the colour values, in RGB levels, above
+   *         which a merged cell is split again
+   */
+  public double getAdaptiveThreshold() {
+    return adaptiveThreshold;
+  }
+
+  public void setAdaptiveThreshold(double adaptiveThreshold) {
+    this.adaptiveThreshold = Math.max(0, adaptiveThreshold);
+  }
+
+  public boolean isVerbose() {
+    return verbose;
+  }
+
+  public void setVerbose(boolean verbose) {
+    this.verbose = verbose;
+  }
+
+}
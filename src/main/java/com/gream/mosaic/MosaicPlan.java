@@ -0,0 +1,233 @@
+package com.gream.mosaic;
+
+import java.awt.Color;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The output of the match stage: which source tile goes in every cell of the
+ * mosaic, and the average colour of the input under that cell.
+ *
+ * Cells are laid on a grid of {@code blocks x blocks} blocks. By default every
+ * cell is one block; an adaptive layout merges square, aligned groups of
+ * blocks into larger cells, which are addressed by their top left block.
+ *
+ * A plan can be saved with {@link #write(File)} and read back with
+ * {@link #read(File)} to draw it again with other styling, without the image
+ * cache. A plan read from a file carries the paths of its tiles, and its tile
+ * indices refer to those paths instead of to the image cache.
+ */
+public class MosaicPlan {
+
+  private static final String HEADER = "mosaicplan";
+  private static final int VERSION = 1;
+
+  private final int blocks;
+  private final int tileWidth;
+  private final int tileHeight;
+  private final int[][] tiles;
+  private final Color[][] sectionColors;
+  // Side of the cell in blocks at its top left block, 0 for the other blocks
+  // it covers; null while every cell is a single block
+  private int[][] cellSizes;
+  private int cells;
+  // Source file of every tile index, null while the indices are image cache
+  // positions
+  private List<String> tilePaths;
+
+  public MosaicPlan(int blocks, int tileWidth, int tileHeight) {
+    this.blocks = blocks;
+    this.tileWidth = tileWidth;
+    this.tileHeight = tileHeight;
+    this.tiles = new int[blocks][blocks];
+    this.sectionColors = new Color[blocks][blocks];
+    this.cells = blocks * blocks;
+  }
+
+  public int getBlocks() {
+    return blocks;
+  }
+
+  public int getTileWidth() {
+    return tileWidth;
+  }
+
+  public int getTileHeight() {
+    return tileHeight;
+  }
+
+  /**
+   * @return the number of cells, {@code blocks * blocks} unless blocks were
+   *         merged
+   */
+  public int getCells() {
+    return cells;
+  }
+
+  /**
+   * @return the side in blocks of the cell whose top left block is column
+   *         {@code i}, row {@code j}; 0 if that block is part of a larger cell
+   */
+  public int getCellSize(int i, int j) {
+    return cellSizes == null ? 1 : cellSizes[i][j];
+  }
+
+  /**
+   * Makes the {@code size x size} blocks from column {@code i}, row {@code j}
+   * one cell. The blocks must not be part of another merged cell.
+   */
+  public void setCellSize(int i, int j, int size) {
+    if (size < 1 || i + size > blocks || j + size > blocks) {
+      throw new IllegalArgumentException("A cell of " + size + "x" + size + " blocks at " + i + "," + j
+          + " does not fit " + blocks + "x" + blocks + " blocks");
+    }
+    if (cellSizes == null) {
+      if (size == 1) {
+        return;
+      }
+      cellSizes = new int[blocks][blocks];
+      for (int[] column : cellSizes) {
+        Arrays.fill(column, 1);
+      }
+    }
+    for (int x = i; x < i + size; x++) {
+      for (int y = j; y < j + size; y++) {
+        cells -= cellSizes[x][y] > 0 ? 1 : 0;
+        cellSizes[x][y] = 0;
+      }
+    }
+    cellSizes[i][j] = size;
+    cells++;
+  }
+
+  /**
+   * @return the index of the source tile in column {@code i}, row {@code j}
+   */
+  public int getTile(int i, int j) {
+    return tiles[i][j];
+  }
+
+  public void setTile(int i, int j, int tileIndex) {
+    tiles[i][j] = tileIndex;
+  }
+
+  /**
+   * @return the average colour of the input section under column {@code i},
+   *         row {@code j}
+   */
+  public Color getSectionColor(int i, int j) {
+    return sectionColors[i][j];
+  }
+
+  public void setSectionColor(int i, int j, Color color) {
+    sectionColors[i][j] = color;
+  }
+
+  /**
+   * @return the source file of every tile index, or null if the indices are
+   *         positions in the image cache
+   */
+  public List<String> getTilePaths() {
+    return tilePaths;
+  }
+
+  public void setTilePaths(List<String> tilePaths) {
+    this.tilePaths = tilePaths == null ? null : Collections.unmodifiableList(new ArrayList<String>(tilePaths));
+  }
+
+  /**
+   * Writes the plan as text: a header with the grid and tile size, the path of
+   * every tile on a line of its own, then one line per cell with its top left
+   * block, its size, its tile and the hex RGB section colour.
+   *
+   * @throws IllegalStateException if the tile paths are not set
+   */
+  public void write(File file) throws IOException {
+    if (tilePaths == null) {
+      throw new IllegalStateException("The tile paths of the plan are not set");
+    }
+    try (Writer out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+      out.write(HEADER + "," + VERSION + "," + blocks + "," + tileWidth + "," + tileHeight + "," + tilePaths.size()
+          + "\n");
+      for (String path : tilePaths) {
+        out.write(path);
+        out.write('\n');
+      }
+      for (int i = 0; i < blocks; i++) {
+        for (int j = 0; j < blocks; j++) {
+          int size = getCellSize(i, j);
+          if (size > 0) {
+            out.write(i + "," + j + "," + size + "," + tiles[i][j] + ","
+                + String.format("%06x", sectionColors[i][j].getRGB() & 0xFFFFFF) + "\n");
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads a plan written by {@link #write(File)}.
+   */
+  public static MosaicPlan read(File file) throws IOException {
+    try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      String line = in.readLine();
+      String[] header = line == null ? new String[0] : line.split(",");
+      if (header.length != 6 || !header[0].equals(HEADER)) {
+        throw new IOException("Not a mosaic plan");
+      }
+      if (Integer.parseInt(header[1]) != VERSION) {
+        throw new IOException("Unsupported mosaic plan version " + header[1]);
+      }
+      MosaicPlan plan = new MosaicPlan(Integer.parseInt(header[2]), Integer.parseInt(header[3]),
+          Integer.parseInt(header[4]));
+      int tileCount = Integer.parseInt(header[5]);
+      List<String> paths = new ArrayList<String>(tileCount);
+      for (int t = 0; t < tileCount; t++) {
+        if ((line = in.readLine()) == null) {
+          throw new IOException("Expected " + tileCount + " tile paths, found " + t);
+        }
+        paths.add(line);
+      }
+      plan.setTilePaths(paths);
+
+      int cells = 0;
+      while ((line = in.readLine()) != null) {
+        if (line.trim().isEmpty()) {
+          continue;
+        }
+        String[] l = line.split(",");
+        if (l.length != 5) {
+          throw new IOException("Bad cell: " + line);
+        }
+        int i = Integer.parseInt(l[0]);
+        int j = Integer.parseInt(l[1]);
+        int tile = Integer.parseInt(l[3]);
+        if (tile < 0 || tile >= tileCount) {
+          throw new IOException("Bad tile in cell: " + line);
+        }
+        plan.setCellSize(i, j, Integer.parseInt(l[2]));
+        plan.setTile(i, j, tile);
+        plan.setSectionColor(i, j, new Color(Integer.parseInt(l[4], 16)));
+        cells++;
+      }
+      if (cells != plan.getCells()) {
+        throw new IOException("Expected " + plan.getCells() + " cells, found " + cells);
+      }
+      return plan;
+    } catch (CharacterCodingException e) {
+      throw new IOException("Not a mosaic plan", e);
+    } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+      throw new IOException("Bad mosaic plan: " + e.getMessage(), e);
+    }
+  }
+
+}
@@ -0,0 +1,42 @@
+package com.gream.mosaic;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.gream.mosaic.metrics.Metrics;
+
+/**
+ * A bounded hand-over queue between two stages of a pipelined run. It blocks
+ * the producer when the consumer falls behind and records its depth and the
+ * waits on either side in the metrics.
+ */
+final class StageQueue<T> {
+
+  private final BlockingQueue<T> items;
+  private final Metrics.Queue name;
+  private final Metrics metrics;
+
+  StageQueue(Metrics.Queue name, int capacity, Metrics metrics) {
+    this.items = new ArrayBlockingQueue<T>(capacity);
+    this.name = name;
+    this.metrics = metrics;
+  }
+
+  void put(T item) throws InterruptedException {
+    boolean waited = !items.offer(item);
+    if (waited) {
+      items.put(item);
+    }
+    metrics.recordPut(name, items.size(), waited);
+  }
+
+  T take() throws InterruptedException {
+    T item = items.poll();
+    if (item == null) {
+      metrics.recordEmptyWait(name);
+      item = items.take();
+    }
+    return item;
+  }
+
+}
@@ -2,8 +2,13 @@ package com.gream.mosaic;
 
 import java.awt.Color;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
+import com.gream.mosaic.datastructures.MappedKdTree;
 import com.gream.mosaic.datastructures.MosaicBinaryTree;
 import com.gream.mosaic.datastructures.MosaicNode;
 import com.gream.mosaic.datastructures.Queue;
@@ -12,51 +17,189 @@ import com.gream.mosaic.domainobjects.MosaicTile;
 public class TreeBuilder {
 
   private Queue<MosaicTile> objs;
+  private List<MosaicTile> tiles;
   private MosaicNode root;
   private String imageCachePath;
-  private double noiseFactor;
+  private int skipped;
 
-  public TreeBuilder(String imageCachePath, double noiseFactor) {
+  public TreeBuilder(String imageCachePath) {
     this.objs = new Queue<MosaicTile>();
+    this.tiles = new ArrayList<MosaicTile>();
     this.imageCachePath = imageCachePath;
-    this.noiseFactor = noiseFactor;
+  }
+
+  /**
+   * Builds a tree over tiles that were already read, e.g. by an earlier
+   * builder. The tiles keep their indices.
+   */
+  public TreeBuilder(List<MosaicTile> tiles) {
+    this.objs = new Queue<MosaicTile>();
+    this.tiles = tiles;
   }
 
   public MosaicBinaryTree build() throws Exception {
 
+    if (imageCachePath != null) {
+      readTiles();
+    }
+    if (tiles.size() < 2) {
+      throw new IllegalStateException("At least two source images are needed, found " + tiles.size());
+    }
+    for (MosaicTile tile : tiles) {
+      objs.enqueue(tile);
+    }
+
+    root = new MosaicNode(objs.dequeue(), objs.dequeue());
+
+    MosaicTile next = objs.dequeue();
+    while (next != null) {
+      MosaicNode closer = (MosaicNode) MosaicNode.min(root.getLeft(), root.getRight(), next);
+      while (!closer.isLeaf()) {
+        closer = (MosaicNode) MosaicNode.min(closer.getLeft(), closer.getRight(), next);
+      }
+      closer.setLeft(new MosaicNode(closer.getContents()));
+      closer.setRight(new MosaicNode(next));
+      closer.setContents(MosaicNode.merge(closer.getContents(), next));
+
+      next = objs.dequeue();
+    }
+    return new MosaicBinaryTree(root);
+  }
+
+  private void readTiles() throws Exception {
+    tiles.clear();
+    skipped = 0;
     try (BufferedReader br = new BufferedReader(new FileReader(this.imageCachePath))) {
       String line;
       while ((line = br.readLine()) != null) {
         if (line.trim().isEmpty()) {
           continue; // Skip empty lines
         }
-        String[] l = line.split(",");
-        if (l.length >= 5) {
+        String[] l = splitLine(line);
+        MosaicTile tile;
+        try {
           int r = Integer.parseInt(l[1]);
           int g = Integer.parseInt(l[2]);
           int b = Integer.parseInt(l[3]);
 
           Color averageColors = new Color(r, g, b);
-          objs.enqueue(new MosaicTile(l[0], l[4], averageColors));
+          tile = new MosaicTile(l[0], l[4], averageColors);
+          if (l.length > 5) {
+            tile.setGridColors(parseGrid(l));
+          }
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+          skipped++; // One bad line must not lose the whole library
+          continue;
         }
+        tile.setIndex(tiles.size());
+        tiles.add(tile);
       }
     }
+  }
 
-    root = new MosaicNode(objs.dequeue(), objs.dequeue());
+  /**
+   * Streams the image cache into a {@link MappedKdTree} file without holding
+   * the tiles in memory. Tile indices are the positions in
+   * {@link #getTiles()}, unreadable lines left out alike; colour grids are not
+   * stored.
+   *
+   * @return the number of tiles written
+   */
+  public int writeMappedIndex(File indexFile) throws IOException {
+    MappedKdTree.Writer writer = new MappedKdTree.Writer(indexFile);
+    skipped = 0;
+    try (BufferedReader br = new BufferedReader(new FileReader(this.imageCachePath))) {
+      String line;
+      while ((line = br.readLine()) != null) {
+        if (line.trim().isEmpty()) {
+          continue;
+        }
+        String[] l = splitLine(line);
+        int r, g, b;
+        try {
+          r = Integer.parseInt(l[1]);
+          g = Integer.parseInt(l[2]);
+          b = Integer.parseInt(l[3]);
+          if (l.length > 5) {
+            parseGrid(l);
+          }
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+          skipped++; // As in build(), so that tile indices agree
+          continue;
+        }
+        writer.add(r, g, b, l[4]);
+      }
+    } catch (IOException | RuntimeException e) {
+      writer.discard();
+      throw e;
+    }
+    return writer.finish();
+  }
 
-    MosaicTile next = objs.dequeue();
-    while (next != null) {
-      MosaicNode closer = (MosaicNode) MosaicNode.min(root.getLeft(), root.getRight(), next);
-      while (!closer.isLeaf()) {
-        closer = (MosaicNode) MosaicNode.min(closer.getLeft(), closer.getRight(), next);
+  /**
+   * Splits an image cache line on commas. A field in double quotes may hold
+   * commas, and doubled quotes inside it stand for one, as written by
+   * {@link MosaicTile#toCSV()}.
+   */
+  static String[] splitLine(String line) {
+    if (line.indexOf('"') < 0) {
+      return line.split(",");
+    }
+    List<String> fields = new ArrayList<String>();
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (quoted && c == '"') {
+        if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+          field.append('"');
+          i++;
+        } else {
+          quoted = false;
+        }
+      } else if (c == '"' && field.length() == 0) {
+        quoted = true;
+      } else if (c == ',' && !quoted) {
+        fields.add(field.toString());
+        field.setLength(0);
+      } else {
+        field.append(c);
       }
-      closer.setLeft(new MosaicNode(closer.getContents()));
-      closer.setRight(new MosaicNode(next));
-      closer.setContents(MosaicNode.merge(closer.getContents(), next));
+    }
+    fields.add(field.toString());
+    return fields.toArray(new String[fields.size()]);
+  }
 
-      next = objs.dequeue();
+  /**
+   * Reads the optional colour grid following the path: its size, then one hex
+   * RGB value per cell.
+   */
+  private static int[] parseGrid(String[] l) {
+    int grid = Integer.parseInt(l[5]);
+    if (grid < 1 || l.length != 6 + grid * grid) {
+      throw new IllegalArgumentException("Bad colour grid for image " + l[0]);
+    }
+    int[] cells = new int[grid * grid];
+    for (int i = 0; i < cells.length; i++) {
+      cells[i] = Integer.parseInt(l[6 + i], 16);
     }
-    return new MosaicBinaryTree(root, noiseFactor);
+    return cells;
+  }
+
+  /**
+   * @return the number of image cache lines the last call to {@link #build()}
+   *         or {@link #writeMappedIndex(File)} could not read and left out
+   */
+  public int getSkipped() {
+    return skipped;
+  }
+
+  /**
+   * @return the source tiles read by the last call to {@link #build()}, in
+   *         image cache order
+   */
+  public List<MosaicTile> getTiles() {
+    return tiles;
   }
 
 }
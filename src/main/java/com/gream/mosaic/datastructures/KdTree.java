@@ -1,66 +1,307 @@
 package com.gream.mosaic.datastructures;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
 
 import com.gream.mosaic.domainobjects.MosaicTile;
+import com.gream.mosaic.metrics.Metrics;
 
 /**
  * KD-tree implementation for efficient nearest neighbor search in 3D color
  * space (LAB).
- * A KD-tree partitions space along alternating dimensions, making it ideal for
- * nearest neighbor queries in multi-dimensional spaces like LAB color space.
- * 
- * This provides better performance than a simple binary tree for color
- * matching,
- * especially with large numbers of source images.
+ * A KD-tree partitions space along one dimension per level, making it ideal
+ * for nearest neighbor queries in multi-dimensional spaces like LAB color
+ * space.
+ *
+ * The tree is implicit and array backed: the colours live in one flat array
+ * in tree order, every node splits its range in half at the median of its
+ * widest dimension, and the children of node {@code i} are {@code 2i + 1} and
+ * {@code 2i + 2}. All leaves sit at the same depth and hold a bucket of at
+ * most {@value #LEAF_SIZE} colours that is scanned linearly. Medians are found
+ * with a selection algorithm rather than a sort, so a level costs O(n), and
+ * large subtrees are built in parallel.
+ *
+ * The tree itself is never modified after construction, so one tree can serve
+ * any number of concurrent searches. Usage limits are tracked per job by a
+ * {@link Capacity} overlay.
+ *
+ * Besides the exact search there is a best-bin-first search that gives up
+ * after a fixed number of leaf checks: unexplored branches wait in a priority
+ * queue ordered by their distance from the target, and the search stops when
+ * the budget is spent or no branch can hold anything closer.
  */
 public class KdTree {
 
-    private KdNode root;
-    private int dimension = 3; // LAB has 3 dimensions: L, a, b
+    // Most colours in one leaf bucket
+    static final int LEAF_SIZE = 16;
+
+    // Subtrees with fewer colours than this are built on the current thread
+    private static final int PARALLEL_THRESHOLD = 1 << 15;
+
+    private final MosaicTile[] tiles; // in tree order
+    private final double[] coords; // L, a, b of tiles[i] at 3i
+    private final int[] indices; // MosaicTile.getIndex() of tiles[i]
+    private final int internalNodes;
+    private final byte[] splitDimension; // by internal node
+    private final double[] splitValue; // by internal node
+    private final int[] leafStart; // first position of every leaf, plus the end
+    private final LongAdder buildCpuNanos = new LongAdder(); // on pool threads
+
+    // Position of every tile, by MosaicTile.getIndex() when those are unique
+    // and dense, otherwise by identity
+    private int[] positionByIndex;
+    private Map<MosaicTile, Integer> positionByTile;
 
     public KdTree(List<MosaicTile> tiles) {
         if (tiles == null || tiles.isEmpty()) {
             throw new IllegalArgumentException("Cannot build KD-tree from empty tile list");
         }
-        root = buildTree(tiles, 0);
+        int n = tiles.size();
+        this.tiles = tiles.toArray(new MosaicTile[n]);
+        this.coords = new double[3 * n];
+        for (int i = 0; i < n; i++) {
+            double[] lab = this.tiles[i].getLabColor();
+            coords[3 * i] = lab[0];
+            coords[3 * i + 1] = lab[1];
+            coords[3 * i + 2] = lab[2];
+        }
+
+        // Halving a range never leaves more than ceil(size / 2) behind, so at
+        // this depth every leaf fits in a bucket
+        int depth = 0;
+        while ((n + (1 << depth) - 1) >> depth > LEAF_SIZE) {
+            depth++;
+        }
+        int leaves = 1 << depth;
+        internalNodes = leaves - 1;
+        splitDimension = new byte[internalNodes];
+        splitValue = new double[internalNodes];
+        leafStart = new int[leaves + 1];
+
+        BuildTask build = new BuildTask(0, 0, n);
+        if (n >= PARALLEL_THRESHOLD) {
+            ForkJoinPool.commonPool().invoke(build);
+        } else {
+            build.compute();
+        }
+
+        indices = new int[n];
+        for (int i = 0; i < n; i++) {
+            indices[i] = this.tiles[i].getIndex();
+        }
+        indexPositions();
+    }
+
+    /**
+     * @return the CPU time pool threads spent building the tree, not that of
+     *         the constructing thread; 0 for trees small enough to be built on
+     *         that thread alone, or if the JVM cannot measure thread CPU time
+     */
+    public long getBuildCpuNanos() {
+        return buildCpuNanos.sum();
     }
 
     /**
-     * Recursively builds the KD-tree by partitioning tiles along alternating
-     * dimensions.
+     * Partitions the range of one node around its median and recurses into
+     * both halves, forking the larger ones.
      */
-    private KdNode buildTree(List<MosaicTile> tiles, int depth) {
-        if (tiles.isEmpty()) {
+    private class BuildTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int node;
+        private final int lo;
+        private final int hi;
+
+        BuildTask(int node, int lo, int hi) {
+            this.node = node;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            // Pool threads count their own CPU time, the constructing thread's
+            // is its caller's; a measurement never spans a fork
+            boolean pooled = Thread.currentThread() instanceof ForkJoinWorkerThread;
+            long cpuStart = pooled ? Metrics.currentThreadCpuNanos() : 0;
+            BuildTask[] forks = build();
+            if (pooled) {
+                buildCpuNanos.add(Metrics.currentThreadCpuNanos() - cpuStart);
+            }
+            if (forks != null) {
+                invokeAll(forks[0], forks[1]);
+            }
+        }
+
+        /**
+         * Builds the node, and its whole subtree if that is small.
+         *
+         * @return the children still to be built in parallel, or null
+         */
+        private BuildTask[] build() {
+            if (node >= internalNodes) {
+                int leaf = node - internalNodes;
+                leafStart[leaf] = lo;
+                if (leaf == internalNodes) {
+                    leafStart[leaf + 1] = hi;
+                }
+                return null;
+            }
+            int axis = widestDimension(lo, hi);
+            int median = (lo + hi) >>> 1;
+            select(lo, hi, median, axis);
+            splitDimension[node] = (byte) axis;
+            splitValue[node] = coords[3 * median + axis];
+
+            BuildTask left = new BuildTask(2 * node + 1, lo, median);
+            BuildTask right = new BuildTask(2 * node + 2, median, hi);
+            if (hi - lo >= PARALLEL_THRESHOLD) {
+                return new BuildTask[] { left, right };
+            }
+            left.build();
+            right.build();
             return null;
         }
+    }
 
-        if (tiles.size() == 1) {
-            return new KdNode(tiles.get(0));
+    /**
+     * @return the dimension in which the colours in [lo, hi) are spread the
+     *         most
+     */
+    private int widestDimension(int lo, int hi) {
+        double[] min = { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE };
+        double[] max = { -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+        for (int i = lo; i < hi; i++) {
+            for (int d = 0; d < 3; d++) {
+                double value = coords[3 * i + d];
+                if (value < min[d]) {
+                    min[d] = value;
+                }
+                if (value > max[d]) {
+                    max[d] = value;
+                }
+            }
         }
+        int axis = 0;
+        for (int d = 1; d < 3; d++) {
+            if (max[d] - min[d] > max[axis] - min[axis]) {
+                axis = d;
+            }
+        }
+        return axis;
+    }
 
-        // Select dimension to split on (alternate between L, a, b)
-        int axis = depth % dimension;
+    /**
+     * Hoare's selection: reorders [lo, hi) so that position k holds the colour
+     * that would be there if the range were sorted on the axis, with nothing
+     * greater before it and nothing smaller after it. Linear on average.
+     */
+    private void select(int lo, int hi, int k, int axis) {
+        int left = lo;
+        int right = hi - 1;
+        while (right > left) {
+            double pivot = medianOfThree(coords[3 * left + axis], coords[3 * ((left + right) >>> 1) + axis],
+                    coords[3 * right + axis]);
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (coords[3 * i + axis] < pivot) {
+                    i++;
+                }
+                while (coords[3 * j + axis] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
 
-        // Find median along the selected axis
-        tiles.sort((t1, t2) -> {
-            double[] lab1 = t1.getLabColor();
-            double[] lab2 = t2.getLabColor();
-            return Double.compare(lab1[axis], lab2[axis]);
-        });
+    private static double medianOfThree(double a, double b, double c) {
+        if (a < b) {
+            return b < c ? b : Math.max(a, c);
+        }
+        return a < c ? a : Math.max(b, c);
+    }
 
-        int median = tiles.size() / 2;
-        KdNode node = new KdNode(tiles.get(median));
+    private void swap(int i, int j) {
+        MosaicTile tile = tiles[i];
+        tiles[i] = tiles[j];
+        tiles[j] = tile;
+        for (int d = 0; d < 3; d++) {
+            double value = coords[3 * i + d];
+            coords[3 * i + d] = coords[3 * j + d];
+            coords[3 * j + d] = value;
+        }
+    }
 
-        // Recursively build left and right subtrees
-        List<MosaicTile> leftTiles = new ArrayList<>(tiles.subList(0, median));
-        List<MosaicTile> rightTiles = new ArrayList<>(tiles.subList(median + 1, tiles.size()));
+    private void indexPositions() {
+        int n = tiles.length;
+        int[] byIndex = new int[n];
+        Arrays.fill(byIndex, -1);
+        for (int i = 0; i < n; i++) {
+            int index = indices[i];
+            if (index < 0 || index >= n || byIndex[index] != -1) {
+                positionByTile = new IdentityHashMap<>(n);
+                for (int j = 0; j < n; j++) {
+                    positionByTile.put(tiles[j], j);
+                }
+                return;
+            }
+            byIndex[index] = i;
+        }
+        positionByIndex = byIndex;
+    }
 
-        node.left = buildTree(leftTiles, depth + 1);
-        node.right = buildTree(rightTiles, depth + 1);
+    /**
+     * @return the position of the tile in tree order, or -1 if it is not in
+     *         this tree
+     */
+    private int positionOf(MosaicTile tile) {
+        if (positionByIndex != null) {
+            int index = tile.getIndex();
+            if (index < 0 || index >= positionByIndex.length || tiles[positionByIndex[index]] != tile) {
+                return -1;
+            }
+            return positionByIndex[index];
+        }
+        Integer position = positionByTile.get(tile);
+        return position != null ? position : -1;
+    }
 
-        return node;
+    /**
+     * @return the leaf node holding the given position
+     */
+    private int leafOf(int position) {
+        int low = 0;
+        int high = internalNodes; // last leaf
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (leafStart[mid] <= position) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return internalNodes + low;
     }
 
     /**
@@ -68,86 +309,494 @@ public class KdTree {
      * Uses a branch-and-bound algorithm to efficiently prune the search space.
      */
     public MosaicTile findNearest(MosaicTile target) {
-        if (root == null) {
-            return null;
+        NearestNeighborSearch search = new NearestNeighborSearch(target.getLabColor());
+        search(0, 0, search);
+        return search.nearest >= 0 ? tiles[search.nearest] : null;
+    }
+
+    /**
+     * Recursive nearest neighbor search with branch-and-bound pruning. The
+     * lower bound on a subtree is the squared distance to the cell it covers,
+     * kept up to date one axis at a time.
+     */
+    private void search(int node, double cellDistance, NearestNeighborSearch search) {
+        search.visited++;
+        if (node >= internalNodes) {
+            scanLeaf(node, null, null, search);
+            return;
         }
 
-        NearestNeighborSearch search = new NearestNeighborSearch();
-        search(target, root, 0, search);
-        return search.nearest != null ? search.nearest.tile : null;
+        int axis = splitDimension[node];
+        double axisDistance = search.target[axis] - splitValue[node];
+        int nearChild = axisDistance < 0 ? 2 * node + 1 : 2 * node + 2;
+        int farChild = axisDistance < 0 ? 2 * node + 2 : 2 * node + 1;
+        search(nearChild, cellDistance, search);
+
+        double offset = search.offsets[axis];
+        double farDistance = cellDistance - offset * offset + axisDistance * axisDistance;
+        if (farDistance < search.bestDistance) {
+            search.offsets[axis] = axisDistance;
+            search(farChild, farDistance, search);
+            search.offsets[axis] = offset;
+        }
     }
 
     /**
-     * Recursive nearest neighbor search with branch-and-bound pruning.
+     * Compares every colour in a leaf bucket with the best so far.
+     *
+     * @param capacity when not null, only tiles with capacity left that are not
+     *                 excluded are candidates
      */
-    private void search(MosaicTile target, KdNode node, int depth, NearestNeighborSearch search) {
-        if (node == null) {
-            return;
+    private void scanLeaf(int node, Capacity capacity, BitSet excluded, NearestNeighborSearch search) {
+        int leaf = node - internalNodes;
+        int end = leafStart[leaf + 1];
+        double[] target = search.target;
+        for (int i = leafStart[leaf]; i < end; i++) {
+            if (capacity != null && !capacity.isUsable(i, excluded)) {
+                continue;
+            }
+            double dL = target[0] - coords[3 * i];
+            double dA = target[1] - coords[3 * i + 1];
+            double dB = target[2] - coords[3 * i + 2];
+            double distance = dL * dL + dA * dA + dB * dB;
+            if (distance < search.bestDistance) {
+                search.bestDistance = distance;
+                search.nearest = i;
+            }
         }
+        search.visited += end - leafStart[leaf];
+    }
 
-        // Calculate distance to current node
-        double distance = MosaicTile.getDistance(target, node.tile);
-        if (distance < search.bestDistance) {
-            search.bestDistance = distance;
-            search.nearest = node;
+    /**
+     * Approximate nearest neighbor search that scans at most
+     * {@code maxChecks} leaf buckets, closest branches first. The result is
+     * exact when the search ends before the budget is spent.
+     *
+     * @param maxChecks the most leaves to check, 0 for an exact search
+     */
+    public MosaicTile findNearestApproximate(MosaicTile target, int maxChecks) {
+        if (maxChecks <= 0) {
+            return findNearest(target);
         }
+        NearestNeighborSearch search = new NearestNeighborSearch(target.getLabColor());
+        searchBestBinFirst(maxChecks, null, null, new BranchQueue(), search);
+        return search.nearest >= 0 ? tiles[search.nearest] : null;
+    }
 
-        int axis = depth % dimension;
-        double[] targetLab = target.getLabColor();
-        double[] nodeLab = node.tile.getLabColor();
-        double axisDistance = targetLab[axis] - nodeLab[axis];
+    /**
+     * Best-bin-first search: walks down to a leaf along the nearer side,
+     * queueing every farther branch with a lower bound on its distance, then
+     * continues with the most promising queued branch. Every walk ends in one
+     * leaf scan; once the budget is spent the search stops as soon as it has a
+     * candidate.
+     *
+     * @param capacity when not null, only tiles with capacity left that are not
+     *                 excluded are candidates, and exhausted subtrees are skipped
+     */
+    private void searchBestBinFirst(int maxChecks, Capacity capacity, BitSet excluded, BranchQueue queue,
+            NearestNeighborSearch search) {
+        double[] target = search.target;
+        queue.clear();
+        queue.push(0, 0);
+        int leaves = 0;
+        while (queue.size > 0) {
+            double bound = queue.bounds[0];
+            if (bound >= search.bestDistance) {
+                // Nothing queued can be closer
+                return;
+            }
+            if (leaves >= maxChecks && search.nearest >= 0) {
+                return;
+            }
+            int node = queue.nodes[0];
+            queue.pop();
 
-        // Determine which side to search first (closer side)
-        KdNode nearChild = axisDistance < 0 ? node.left : node.right;
-        KdNode farChild = axisDistance < 0 ? node.right : node.left;
+            while (capacity == null || capacity.available[node] > 0) {
+                search.visited++;
+                if (node >= internalNodes) {
+                    scanLeaf(node, capacity, excluded, search);
+                    break;
+                }
+                int axis = splitDimension[node];
+                double axisDistance = target[axis] - splitValue[node];
+                int nearChild = axisDistance < 0 ? 2 * node + 1 : 2 * node + 2;
+                int farChild = axisDistance < 0 ? 2 * node + 2 : 2 * node + 1;
 
-        // Recursively search the closer side
-        if (nearChild != null) {
-            search(target, nearChild, depth + 1, search);
+                double farBound = Math.max(bound, axisDistance * axisDistance);
+                if (farBound < search.bestDistance) {
+                    queue.push(farChild, farBound);
+                }
+                node = nearChild;
+            }
+            leaves++;
         }
+    }
 
-        // Check if we need to search the farther side
-        // Only search if the hyperplane distance is less than current best distance
-        if (farChild != null && axisDistance * axisDistance < search.bestDistance) {
-            search(target, farChild, depth + 1, search);
+    /**
+     * Array-backed min-heap of unexplored branches, ordered by the lower bound
+     * on the distance of anything inside them.
+     */
+    private static class BranchQueue {
+        int[] nodes = new int[32];
+        double[] bounds = new double[32];
+        int size;
+
+        void clear() {
+            size = 0;
+        }
+
+        void push(int node, double bound) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                bounds = Arrays.copyOf(bounds, size * 2);
+            }
+            int i = size++;
+            while (i > 0 && bounds[(i - 1) / 2] > bound) {
+                int parent = (i - 1) / 2;
+                nodes[i] = nodes[parent];
+                bounds[i] = bounds[parent];
+                i = parent;
+            }
+            nodes[i] = node;
+            bounds[i] = bound;
+        }
+
+        void pop() {
+            size--;
+            int node = nodes[size];
+            double bound = bounds[size];
+            if (size == 0) {
+                return;
+            }
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && bounds[child + 1] < bounds[child]) {
+                    child++;
+                }
+                if (bounds[child] >= bound) {
+                    break;
+                }
+                nodes[i] = nodes[child];
+                bounds[i] = bounds[child];
+                i = child;
+            }
+            nodes[i] = node;
+            bounds[i] = bound;
         }
     }
 
     /**
-     * Helper class to track the nearest neighbor during search.
+     * Starts tracking usage for a new job, in which every tile can be used at
+     * most {@code perTile} times.
      */
-    private static class NearestNeighborSearch {
-        KdNode nearest = null;
-        double bestDistance = Double.MAX_VALUE;
+    public Capacity newCapacity(int perTile) {
+        if (perTile < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1, was " + perTile);
+        }
+        return new Capacity(perTile);
     }
 
     /**
-     * KD-tree node containing a tile and its children.
+     * Per-job usage state on top of a shared tree. Every node keeps a count of
+     * the tiles in its subtree that still have capacity left, so
+     * {@link #findNearestAvailable(MosaicTile, BitSet)} skips exhausted
+     * subtrees without visiting them. Not thread safe; use one per job.
      */
-    private static class KdNode {
-        MosaicTile tile;
-        KdNode left;
-        KdNode right;
+    public class Capacity {
+
+        // Every this many approximate queries the exact answer is computed too
+        private static final int RECALL_SAMPLE_INTERVAL = 64;
+
+        private final int[] remaining; // uses left per tile, by position
+        private final int[] available; // tiles in the subtree with uses left, by node
+        private final BranchQueue queue = new BranchQueue();
+        private long nodesVisited;
+        private long approximateQueries;
+        private long recallSamples;
+        private long recallHits;
+
+        private Capacity(int perTile) {
+            remaining = new int[tiles.length];
+            available = new int[2 * internalNodes + 1];
+            Arrays.fill(remaining, perTile);
+            for (int leaf = 0; leaf <= internalNodes; leaf++) {
+                available[internalNodes + leaf] = leafStart[leaf + 1] - leafStart[leaf];
+            }
+            for (int node = internalNodes - 1; node >= 0; node--) {
+                available[node] = available[2 * node + 1] + available[2 * node + 2];
+            }
+        }
+
+        /**
+         * Finds the nearest tile that still has capacity left and is not in the
+         * excluded set.
+         *
+         * @param target   the colour to match
+         * @param excluded indices ({@link MosaicTile#getIndex()}) of tiles to skip
+         *                 for this query only, may be null
+         * @return the nearest available tile, or null if every tile is exhausted
+         *         or excluded
+         */
+        public MosaicTile findNearestAvailable(MosaicTile target, BitSet excluded) {
+            return findNearestAvailable(target, excluded, 0);
+        }
+
+        /**
+         * Like {@link #findNearestAvailable(MosaicTile, BitSet)}, but scans at
+         * most {@code maxChecks} leaf buckets with a best-bin-first search. A
+         * sample of these queries is repeated exactly to measure the recall.
+         *
+         * @param maxChecks the most leaves to check, 0 for an exact search
+         */
+        public MosaicTile findNearestAvailable(MosaicTile target, BitSet excluded, int maxChecks) {
+            double[] targetLab = target.getLabColor();
+            NearestNeighborSearch search = new NearestNeighborSearch(targetLab);
+            if (maxChecks <= 0) {
+                searchAvailable(0, 0, excluded, search);
+                nodesVisited += search.visited;
+                return search.nearest >= 0 ? tiles[search.nearest] : null;
+            }
+
+            searchBestBinFirst(maxChecks, this, excluded, queue, search);
+            nodesVisited += search.visited;
+            if (++approximateQueries % RECALL_SAMPLE_INTERVAL == 0) {
+                NearestNeighborSearch exact = new NearestNeighborSearch(targetLab);
+                searchAvailable(0, 0, excluded, exact);
+                recallSamples++;
+                if (search.bestDistance <= exact.bestDistance) {
+                    recallHits++;
+                }
+            }
+            return search.nearest >= 0 ? tiles[search.nearest] : null;
+        }
 
-        KdNode(MosaicTile tile) {
-            this.tile = tile;
+        /**
+         * @return the number of tree nodes and leaf entries searches with this
+         *         overlay have visited
+         */
+        public long getNodesVisited() {
+            return nodesVisited;
+        }
+
+        /**
+         * @return how many approximate queries were checked against an exact
+         *         search
+         */
+        public long getRecallSamples() {
+            return recallSamples;
+        }
+
+        /**
+         * @return how many of the checked approximate queries found a tile as
+         *         close as the exact search did
+         */
+        public long getRecallHits() {
+            return recallHits;
+        }
+
+        boolean isUsable(int position, BitSet excluded) {
+            return remaining[position] > 0 && (excluded == null || !excluded.get(indices[position]));
+        }
+
+        /**
+         * Branch-and-bound search that never descends into a subtree whose tiles
+         * have all been used up.
+         */
+        private void searchAvailable(int node, double cellDistance, BitSet excluded,
+                NearestNeighborSearch search) {
+            if (available[node] == 0) {
+                return;
+            }
+            search.visited++;
+            if (node >= internalNodes) {
+                scanLeaf(node, this, excluded, search);
+                return;
+            }
+
+            int axis = splitDimension[node];
+            double axisDistance = search.target[axis] - splitValue[node];
+            int nearChild = axisDistance < 0 ? 2 * node + 1 : 2 * node + 2;
+            int farChild = axisDistance < 0 ? 2 * node + 2 : 2 * node + 1;
+            searchAvailable(nearChild, cellDistance, excluded, search);
+
+            double offset = search.offsets[axis];
+            double farDistance = cellDistance - offset * offset + axisDistance * axisDistance;
+            if (farDistance < search.bestDistance) {
+                search.offsets[axis] = axisDistance;
+                searchAvailable(farChild, farDistance, excluded, search);
+                search.offsets[axis] = offset;
+            }
+        }
+
+        /**
+         * Uses up one unit of a tile's capacity. Once a tile is exhausted the
+         * availability counts on the path to the root are updated, so later
+         * queries prune it for free.
+         *
+         * @return false if the tile had no capacity left
+         */
+        public boolean consume(MosaicTile tile) {
+            int position = positionOf(tile);
+            if (position < 0) {
+                throw new IllegalArgumentException("Tile is not part of this tree: " + tile);
+            }
+            if (remaining[position] == 0) {
+                return false;
+            }
+            remaining[position]--;
+            if (remaining[position] == 0) {
+                for (int node = leafOf(position); node > 0; node = (node - 1) / 2) {
+                    available[node]--;
+                }
+                available[0]--;
+            }
+            return true;
+        }
+
+        /**
+         * @return how many more times the tile can be consumed
+         */
+        public int getRemaining(MosaicTile tile) {
+            int position = positionOf(tile);
+            return position >= 0 ? remaining[position] : 0;
         }
     }
 
     /**
-     * Marks all nodes as not stale (resets the stale flag).
-     * This is used when adjacency ban is enabled.
+     * Finds the k nearest neighbors to the target tile in LAB color space,
+     * ordered from closest to farthest. Fewer than k tiles are returned when the
+     * tree holds fewer than k tiles.
      */
-    public void unstale() {
-        unstaleNode(root);
+    public List<MosaicTile> findKNearest(MosaicTile target, int k) {
+        List<MosaicTile> result = new ArrayList<>();
+        if (k <= 0) {
+            return result;
+        }
+
+        KNearestSearch search = new KNearestSearch(k);
+        searchK(target.getLabColor(), 0, 0, new double[3], search);
+
+        // Repeatedly taking the worst off the max-heap yields the reverse order
+        int[] ordered = new int[search.size];
+        for (int i = ordered.length - 1; i >= 0; i--) {
+            ordered[i] = search.positions[0];
+            search.removeWorst();
+        }
+        for (int position : ordered) {
+            result.add(tiles[position]);
+        }
+        return result;
     }
 
-    private void unstaleNode(KdNode node) {
-        if (node == null)
+    /**
+     * Recursive k-nearest neighbor search. A subtree is pruned once k candidates
+     * are known and its cell is farther away than the worst of them.
+     */
+    private void searchK(double[] targetLab, int node, double cellDistance, double[] offsets,
+            KNearestSearch search) {
+        if (node >= internalNodes) {
+            int leaf = node - internalNodes;
+            for (int i = leafStart[leaf]; i < leafStart[leaf + 1]; i++) {
+                double dL = targetLab[0] - coords[3 * i];
+                double dA = targetLab[1] - coords[3 * i + 1];
+                double dB = targetLab[2] - coords[3 * i + 2];
+                search.offer(i, dL * dL + dA * dA + dB * dB);
+            }
             return;
-        // Note: KD-tree nodes don't have a stale flag, but we can add one if needed
-        // For now, this is a placeholder for compatibility with the existing interface
-        unstaleNode(node.left);
-        unstaleNode(node.right);
+        }
+
+        int axis = splitDimension[node];
+        double axisDistance = targetLab[axis] - splitValue[node];
+        int nearChild = axisDistance < 0 ? 2 * node + 1 : 2 * node + 2;
+        int farChild = axisDistance < 0 ? 2 * node + 2 : 2 * node + 1;
+        searchK(targetLab, nearChild, cellDistance, offsets, search);
+
+        double offset = offsets[axis];
+        double farDistance = cellDistance - offset * offset + axisDistance * axisDistance;
+        if (search.size < search.k || farDistance < search.distances[0]) {
+            offsets[axis] = axisDistance;
+            searchK(targetLab, farChild, farDistance, offsets, search);
+            offsets[axis] = offset;
+        }
+    }
+
+    /**
+     * Array-backed max-heap on distance holding the best k tiles found so far;
+     * the root is the worst of them.
+     */
+    private static class KNearestSearch {
+        final int k;
+        final int[] positions;
+        final double[] distances;
+        int size = 0;
+
+        KNearestSearch(int k) {
+            this.k = k;
+            this.positions = new int[k];
+            this.distances = new double[k];
+        }
+
+        void offer(int position, double distance) {
+            if (size < k) {
+                int i = size++;
+                while (i > 0 && distances[(i - 1) / 2] < distance) {
+                    int parent = (i - 1) / 2;
+                    positions[i] = positions[parent];
+                    distances[i] = distances[parent];
+                    i = parent;
+                }
+                positions[i] = position;
+                distances[i] = distance;
+            } else if (distance < distances[0]) {
+                siftDown(position, distance);
+            }
+        }
+
+        void removeWorst() {
+            size--;
+            if (size > 0) {
+                siftDown(positions[size], distances[size]);
+            }
+        }
+
+        private void siftDown(int position, double distance) {
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && distances[child + 1] > distances[child]) {
+                    child++;
+                }
+                if (distances[child] <= distance) {
+                    break;
+                }
+                positions[i] = positions[child];
+                distances[i] = distances[child];
+                i = child;
+            }
+            positions[i] = position;
+            distances[i] = distance;
+        }
+    }
+
+    /**
+     * Helper class to track the nearest neighbor during search.
+     */
+    private static class NearestNeighborSearch {
+        final double[] target;
+        final double[] offsets = new double[3]; // per axis, from the current cell
+        int nearest = -1; // position in tree order
+        double bestDistance = Double.MAX_VALUE;
+        int visited;
+
+        NearestNeighborSearch(double[] target) {
+            this.target = target;
+        }
     }
 }
@@ -0,0 +1,659 @@
+package com.gream.mosaic.datastructures;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.gream.mosaic.utils.ColorSpaceUtils;
+
+/**
+ * Kd-tree over the average colours of the source tiles that lives in a file
+ * and is memory mapped, for libraries too large to hold as
+ * {@link com.gream.mosaic.domainobjects.MosaicTile}s.
+ *
+ * The layout is the one of {@link KdTree}: an implicit tree whose leaves all
+ * sit at the same depth, split at the median of the widest dimension. Only
+ * the upper levels, one split per internal node and the start of every leaf,
+ * are read onto the heap. The leaves are pages of up to {@value #LEAF_SIZE}
+ * records of [L, a, b, tile index] that are decoded on demand through a
+ * {@link PageCache} with a fixed byte budget, and the file paths are read
+ * from a table at the end of the file only for the tiles a mosaic uses. Tile
+ * indices are the positions in the image cache the file was written from.
+ *
+ * The file is never modified once written, so one tree can serve any number
+ * of concurrent searches; each search keeps its buffers and page counts in
+ * its own {@link Search}.
+ */
+public class MappedKdTree {
+
+  // Most records in one leaf page
+  static final int LEAF_SIZE = 256;
+
+  private static final int MAGIC = 0x4D4B4454; // "MKDT"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 40;
+  private static final int RECORD_SIZE = 16;
+
+  // Mapped in chunks that overlap by a long, so no value straddles two
+  private static final long CHUNK = 1L << 30;
+
+  private final File file;
+  private final int size;
+  private final int internalNodes;
+  private final byte[] splitDimension; // by internal node
+  private final float[] splitValue; // by internal node
+  private final int[] leafStart; // first record of every leaf, plus the end
+  private final long recordsOffset;
+  private final long pathTableOffset;
+  private final long pathDataOffset;
+  private final MappedByteBuffer[] chunks;
+  private final PageCache pages;
+
+  private MappedKdTree(File file, long cacheBytes) throws IOException {
+    this.file = file;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+      long length = channel.size();
+      chunks = new MappedByteBuffer[(int) ((length + CHUNK - 1) / CHUNK)];
+      for (int i = 0; i < chunks.length; i++) {
+        long start = i * CHUNK;
+        chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK + 8, length - start));
+      }
+    }
+    if (chunks.length == 0 || getInt(0) != MAGIC) {
+      throw new IOException("Not an image index: " + file);
+    }
+    if (getInt(4) != VERSION) {
+      throw new IOException("Unsupported image index version " + getInt(4) + ": " + file);
+    }
+    size = getInt(8);
+    int leaves = getInt(12);
+    recordsOffset = getLong(16);
+    pathTableOffset = getLong(24);
+    pathDataOffset = getLong(32);
+
+    internalNodes = leaves - 1;
+    splitDimension = new byte[internalNodes];
+    splitValue = new float[internalNodes];
+    leafStart = new int[leaves + 1];
+    long position = HEADER_SIZE;
+    for (int i = 0; i < internalNodes; i++) {
+      splitDimension[i] = getByte(position++);
+    }
+    for (int i = 0; i < internalNodes; i++, position += 4) {
+      splitValue[i] = Float.intBitsToFloat(getInt(position));
+    }
+    for (int i = 0; i <= leaves; i++, position += 4) {
+      leafStart[i] = getInt(position);
+    }
+    pages = new PageCache(cacheBytes);
+  }
+
+  /**
+   * Maps an index written by {@link Writer}.
+   *
+   * @param cacheBytes the most bytes of decoded leaf pages kept on the heap
+   */
+  public static MappedKdTree open(File file, long cacheBytes) throws IOException {
+    return new MappedKdTree(file, cacheBytes);
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * @return the number of tiles in the index
+   */
+  public int size() {
+    return size;
+  }
+
+  public PageCache getPageCache() {
+    return pages;
+  }
+
+  /**
+   * @return the file path of the tile with the given index
+   */
+  public String getPath(int tile) {
+    if (tile < 0 || tile >= size) {
+      throw new IndexOutOfBoundsException("No tile " + tile + " in an index of " + size);
+    }
+    long start = getLong(pathTableOffset + 8L * tile);
+    long end = getLong(pathTableOffset + 8L * (tile + 1));
+    byte[] bytes = new byte[(int) (end - start)];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = getByte(pathDataOffset + start + i);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private byte getByte(long position) {
+    return chunks[(int) (position / CHUNK)].get((int) (position % CHUNK));
+  }
+
+  private int getInt(long position) {
+    return chunks[(int) (position / CHUNK)].getInt((int) (position % CHUNK));
+  }
+
+  private long getLong(long position) {
+    return chunks[(int) (position / CHUNK)].getLong((int) (position % CHUNK));
+  }
+
+  private float getFloat(long position) {
+    return chunks[(int) (position / CHUNK)].getFloat((int) (position % CHUNK));
+  }
+
+  /**
+   * @return a reusable search for up to k nearest tiles
+   */
+  public Search newSearch(int k) {
+    return new Search(k);
+  }
+
+  /**
+   * The k nearest tiles of one query at a time, with the page cache hits and
+   * misses of all queries so far. Tiles can be left out of the results, e.g.
+   * those that reached a usage limit, so the k found are the nearest of the
+   * rest. Not thread safe; use one per thread.
+   */
+  public class Search {
+
+    private int k;
+    private BitSet excluded;
+    private int[] tiles;
+    private double[] distances; // max-heap while searching, then ascending
+    private int found;
+    private final double[] target = new double[3];
+    private final double[] offsets = new double[3];
+    private long pageHits;
+    private long pageMisses;
+
+    Search(int k) {
+      setK(k);
+    }
+
+    /**
+     * Changes how many tiles the next queries find.
+     */
+    public void setK(int k) {
+      this.k = Math.max(1, Math.min(k, size));
+      if (tiles == null || tiles.length < this.k) {
+        tiles = new int[this.k];
+        distances = new double[this.k];
+      }
+    }
+
+    public int getK() {
+      return k;
+    }
+
+    /**
+     * Leaves the tiles whose bits are set out of the next queries; the set is
+     * read, not copied, so tiles can be added between queries.
+     *
+     * @param excluded the tile indices to skip, or null to find every tile
+     */
+    public void setExcluded(BitSet excluded) {
+      this.excluded = excluded;
+    }
+
+    /**
+     * Finds the k tiles closest to the LAB colour that are not excluded,
+     * exactly; fewer if there are not that many.
+     */
+    public void find(double[] lab) {
+      System.arraycopy(lab, 0, target, 0, 3);
+      Arrays.fill(offsets, 0);
+      found = 0;
+      search(0, 0);
+      // Taking the worst off the heap repeatedly leaves it in ascending order
+      for (int n = found; n > 1; n--) {
+        int tile = tiles[0];
+        double distance = distances[0];
+        siftDown(tiles[n - 1], distances[n - 1], n - 1);
+        tiles[n - 1] = tile;
+        distances[n - 1] = distance;
+      }
+    }
+
+    /**
+     * @return the number of tiles the last query found
+     */
+    public int size() {
+      return found;
+    }
+
+    /**
+     * @return the index of the i-th closest tile of the last query
+     */
+    public int tile(int i) {
+      return tiles[i];
+    }
+
+    /**
+     * @return the squared LAB distance of the i-th closest tile
+     */
+    public double distance(int i) {
+      return distances[i];
+    }
+
+    public long getPageHits() {
+      return pageHits;
+    }
+
+    public long getPageMisses() {
+      return pageMisses;
+    }
+
+    private double worst() {
+      return found < k ? Double.MAX_VALUE : distances[0];
+    }
+
+    private void search(int node, double cellDistance) {
+      if (node >= internalNodes) {
+        scan(node - internalNodes);
+        return;
+      }
+      int axis = splitDimension[node];
+      double axisDistance = target[axis] - splitValue[node];
+      int nearChild = axisDistance < 0 ? 2 * node + 1 : 2 * node + 2;
+      int farChild = axisDistance < 0 ? 2 * node + 2 : 2 * node + 1;
+      search(nearChild, cellDistance);
+
+      // The far cell is farther on this axis only; keep the others
+      double offset = offsets[axis];
+      double farDistance = cellDistance - offset * offset + axisDistance * axisDistance;
+      if (farDistance < worst()) {
+        offsets[axis] = axisDistance;
+        search(farChild, farDistance);
+        offsets[axis] = offset;
+      }
+    }
+
+    private void scan(int leaf) {
+      Page page = pages.get(leaf, this);
+      float[] coords = page.coords;
+      for (int i = 0; i < page.tiles.length; i++) {
+        if (excluded != null && excluded.get(page.tiles[i])) {
+          continue;
+        }
+        double dL = target[0] - coords[3 * i];
+        double dA = target[1] - coords[3 * i + 1];
+        double dB = target[2] - coords[3 * i + 2];
+        double distance = dL * dL + dA * dA + dB * dB;
+        if (found < k) {
+          int j = found++;
+          while (j > 0 && distances[(j - 1) / 2] < distance) {
+            int parent = (j - 1) / 2;
+            tiles[j] = tiles[parent];
+            distances[j] = distances[parent];
+            j = parent;
+          }
+          tiles[j] = page.tiles[i];
+          distances[j] = distance;
+        } else if (distance < distances[0]) {
+          siftDown(page.tiles[i], distance, found);
+        }
+      }
+    }
+
+    private void siftDown(int tile, double distance, int n) {
+      int i = 0;
+      while (true) {
+        int child = 2 * i + 1;
+        if (child >= n) {
+          break;
+        }
+        if (child + 1 < n && distances[child + 1] > distances[child]) {
+          child++;
+        }
+        if (distances[child] <= distance) {
+          break;
+        }
+        tiles[i] = tiles[child];
+        distances[i] = distances[child];
+        i = child;
+      }
+      tiles[i] = tile;
+      distances[i] = distance;
+    }
+  }
+
+  /**
+   * One decoded leaf.
+   */
+  static final class Page {
+    final float[] coords; // L, a, b of tiles[i] at 3i
+    final int[] tiles;
+
+    Page(float[] coords, int[] tiles) {
+      this.coords = coords;
+      this.tiles = tiles;
+    }
+
+    long bytes() {
+      // Two arrays and the page itself, with their headers
+      return 16L * tiles.length + 64;
+    }
+  }
+
+  private Page readPage(int leaf) {
+    int start = leafStart[leaf];
+    int count = leafStart[leaf + 1] - start;
+    float[] coords = new float[3 * count];
+    int[] tiles = new int[count];
+    long position = recordsOffset + (long) RECORD_SIZE * start;
+    for (int i = 0; i < count; i++, position += RECORD_SIZE) {
+      coords[3 * i] = getFloat(position);
+      coords[3 * i + 1] = getFloat(position + 4);
+      coords[3 * i + 2] = getFloat(position + 8);
+      tiles[i] = getInt(position + 12);
+    }
+    return new Page(coords, tiles);
+  }
+
+  /**
+   * Least recently used decoded leaf pages, up to a byte budget. The upper
+   * levels of the tree are always resident and not counted. Shared by all
+   * searches of a tree.
+   */
+  public class PageCache {
+
+    private final long budget;
+    private final LinkedHashMap<Integer, Page> resident = new LinkedHashMap<Integer, Page>(256, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    PageCache(long budget) {
+      this.budget = Math.max(0, budget);
+    }
+
+    Page get(int leaf, Search search) {
+      synchronized (this) {
+        Page page = resident.get(leaf);
+        if (page != null) {
+          hits++;
+          search.pageHits++;
+          return page;
+        }
+        misses++;
+        search.pageMisses++;
+      }
+      // Decode outside the lock; two searches may decode the same page
+      Page page = readPage(leaf);
+      synchronized (this) {
+        if (resident.put(leaf, page) == null) {
+          bytes += page.bytes();
+        }
+        Iterator<Map.Entry<Integer, Page>> eldest = resident.entrySet().iterator();
+        while (bytes > budget && eldest.hasNext()) {
+          Page evicted = eldest.next().getValue();
+          eldest.remove();
+          bytes -= evicted.bytes();
+          evictions++;
+        }
+      }
+      return page;
+    }
+
+    public long getBudget() {
+      return budget;
+    }
+
+    public synchronized long getBytes() {
+      return bytes;
+    }
+
+    public synchronized int getResidentPages() {
+      return resident.size();
+    }
+
+    public synchronized long getHits() {
+      return hits;
+    }
+
+    public synchronized long getMisses() {
+      return misses;
+    }
+
+    public synchronized long getEvictions() {
+      return evictions;
+    }
+  }
+
+  /**
+   * Collects the tiles of an image cache one at a time and writes them as an
+   * index. Holds three floats and a long per tile on the heap; the paths go
+   * to a temporary file next to the index until the tree is built.
+   */
+  public static class Writer {
+
+    private final File file;
+    private final File pathsFile;
+    private final OutputStream paths;
+    private float[] coords = new float[3 * 1024];
+    private long[] pathEnds = new long[1025];
+    private int size;
+    private final double[] lab = new double[3];
+
+    public Writer(File file) throws IOException {
+      this.file = file;
+      this.pathsFile = new File(file.getPath() + ".paths");
+      this.paths = new BufferedOutputStream(new FileOutputStream(pathsFile), 1 << 16);
+    }
+
+    /**
+     * Adds the next tile; its index is the number of tiles added before it.
+     */
+    public void add(int r, int g, int b, String path) throws IOException {
+      if (size == coords.length / 3) {
+        coords = Arrays.copyOf(coords, coords.length * 2);
+        pathEnds = Arrays.copyOf(pathEnds, (pathEnds.length - 1) * 2 + 1);
+      }
+      ColorSpaceUtils.rgbToLab(r, g, b, lab);
+      coords[3 * size] = (float) lab[0];
+      coords[3 * size + 1] = (float) lab[1];
+      coords[3 * size + 2] = (float) lab[2];
+      byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+      paths.write(bytes);
+      pathEnds[size + 1] = pathEnds[size] + bytes.length;
+      size++;
+    }
+
+    /**
+     * Gives up on the index, removing the temporary file.
+     */
+    public void discard() {
+      try {
+        paths.close();
+      } catch (IOException e) {
+        // Deleted anyway
+      }
+      pathsFile.delete();
+    }
+
+    /**
+     * Builds the tree and writes the index.
+     *
+     * @return the number of tiles written
+     */
+    public int finish() throws IOException {
+      paths.close();
+      try {
+        if (size == 0) {
+          throw new IOException("Cannot write an image index without tiles");
+        }
+        int[] tiles = new int[size];
+        for (int i = 0; i < size; i++) {
+          tiles[i] = i;
+        }
+
+        // As in KdTree: at this depth every leaf fits in a page
+        int depth = 0;
+        while ((size + (1 << depth) - 1) >> depth > LEAF_SIZE) {
+          depth++;
+        }
+        int leaves = 1 << depth;
+        byte[] splitDimension = new byte[leaves - 1];
+        float[] splitValue = new float[leaves - 1];
+        int[] leafStart = new int[leaves + 1];
+        build(tiles, 0, 0, size, leaves - 1, splitDimension, splitValue, leafStart);
+
+        long recordsOffset = HEADER_SIZE + 5L * (leaves - 1) + 4L * (leaves + 1);
+        recordsOffset = (recordsOffset + 15) & ~15L;
+        long pathTableOffset = recordsOffset + (long) RECORD_SIZE * size;
+        long pathDataOffset = pathTableOffset + 8L * (size + 1);
+
+        // Written aside and moved into place, so trees mapping the previous
+        // file keep reading it unchanged
+        File written = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(written), 1 << 16))) {
+          out.writeInt(MAGIC);
+          out.writeInt(VERSION);
+          out.writeInt(size);
+          out.writeInt(leaves);
+          out.writeLong(recordsOffset);
+          out.writeLong(pathTableOffset);
+          out.writeLong(pathDataOffset);
+          out.write(splitDimension);
+          for (float value : splitValue) {
+            out.writeFloat(value);
+          }
+          for (int start : leafStart) {
+            out.writeInt(start);
+          }
+          for (long i = out.size(); i < recordsOffset; i++) {
+            out.writeByte(0);
+          }
+          for (int i = 0; i < size; i++) {
+            out.writeFloat(coords[3 * i]);
+            out.writeFloat(coords[3 * i + 1]);
+            out.writeFloat(coords[3 * i + 2]);
+            out.writeInt(tiles[i]);
+          }
+          for (int i = 0; i <= size; i++) {
+            out.writeLong(pathEnds[i]);
+          }
+          try (InputStream in = new BufferedInputStream(new FileInputStream(pathsFile), 1 << 16)) {
+            byte[] buffer = new byte[1 << 16];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+              out.write(buffer, 0, read);
+            }
+          }
+        }
+        Files.move(written.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return size;
+      } finally {
+        pathsFile.delete();
+      }
+    }
+
+    private void build(int[] tiles, int node, int lo, int hi, int internalNodes, byte[] splitDimension,
+        float[] splitValue, int[] leafStart) {
+      if (node >= internalNodes) {
+        int leaf = node - internalNodes;
+        leafStart[leaf] = lo;
+        if (leaf == internalNodes) {
+          leafStart[leaf + 1] = hi;
+        }
+        return;
+      }
+      int axis = widestDimension(lo, hi);
+      int median = (lo + hi) >>> 1;
+      select(tiles, lo, hi, median, axis);
+      splitDimension[node] = (byte) axis;
+      splitValue[node] = coords[3 * median + axis];
+      build(tiles, 2 * node + 1, lo, median, internalNodes, splitDimension, splitValue, leafStart);
+      build(tiles, 2 * node + 2, median, hi, internalNodes, splitDimension, splitValue, leafStart);
+    }
+
+    private int widestDimension(int lo, int hi) {
+      float[] min = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+      float[] max = { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+      for (int i = lo; i < hi; i++) {
+        for (int d = 0; d < 3; d++) {
+          float value = coords[3 * i + d];
+          min[d] = Math.min(min[d], value);
+          max[d] = Math.max(max[d], value);
+        }
+      }
+      int axis = 0;
+      for (int d = 1; d < 3; d++) {
+        if (max[d] - min[d] > max[axis] - min[axis]) {
+          axis = d;
+        }
+      }
+      return axis;
+    }
+
+    /**
+     * Hoare's selection of position k on the axis, as in KdTree.
+     */
+    private void select(int[] tiles, int lo, int hi, int k, int axis) {
+      int left = lo;
+      int right = hi - 1;
+      while (right > left) {
+        float a = coords[3 * left + axis];
+        float b = coords[3 * ((left + right) >>> 1) + axis];
+        float c = coords[3 * right + axis];
+        float pivot = a < b ? (b < c ? b : Math.max(a, c)) : (a < c ? a : Math.max(b, c));
+        int i = left;
+        int j = right;
+        while (i <= j) {
+          while (coords[3 * i + axis] < pivot) {
+            i++;
+          }
+          while (coords[3 * j + axis] > pivot) {
+            j--;
+          }
+          if (i <= j) {
+            swap(tiles, i, j);
+            i++;
+            j--;
+          }
+        }
+        if (k <= j) {
+          right = j;
+        } else if (k >= i) {
+          left = i;
+        } else {
+          return;
+        }
+      }
+    }
+
+    private void swap(int[] tiles, int i, int j) {
+      int tile = tiles[i];
+      tiles[i] = tiles[j];
+      tiles[j] = tile;
+      for (int d = 0; d < 3; d++) {
+        float value = coords[3 * i + d];
+        coords[3 * i + d] = coords[3 * j + d];
+        coords[3 * j + d] = value;
+      }
+    }
+  }
+
+}
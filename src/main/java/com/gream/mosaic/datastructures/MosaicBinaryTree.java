@@ -1,56 +1,88 @@
 package com.gream.mosaic.datastructures;
 
-import java.util.Random;
-
 import com.gream.mosaic.domainobjects.MosaicTile;
 
+/**
+ * Binary tree of source tiles, each inner node holding the merged colour of
+ * its children. The tree is not modified by searches: which tiles are used up
+ * is tracked per job by a {@link TreeOverlay}, so one tree can serve any number
+ * of renders, also concurrently.
+ */
 public class MosaicBinaryTree extends BinaryTree<MosaicNode> {
 
-  private Random rnd = new Random();
-
-  private double noiseFactor;
+  private final int size;
 
-  public MosaicBinaryTree(MosaicNode root, double noiseFactor) {
+  public MosaicBinaryTree(MosaicNode root) {
     super(root);
-    this.noiseFactor = noiseFactor;
+    this.size = number(root, 0);
+  }
+
+  private static int number(MosaicNode node, int next) {
+    if (node == null) {
+      return next;
+    }
+    node.setId(next++);
+    next = number((MosaicNode) node.getLeft(), next);
+    return number((MosaicNode) node.getRight(), next);
+  }
+
+  /**
+   * @return the number of nodes in the tree
+   */
+  public int size() {
+    return size;
   }
 
-  public MosaicNode findClosest(MosaicTile toFind) {
+  /**
+   * @param tiles the number of source tiles, for the usage counts
+   * @param noiseFactor the chance in [0, 1.0] of descending left regardless
+   *                    of colour
+   * @return fresh per-job state in which no tile is used
+   */
+  public TreeOverlay newOverlay(int tiles, double noiseFactor) {
+    return new TreeOverlay(size, tiles, noiseFactor);
+  }
+
+  /**
+   * Descends to the closest leaf that the overlay does not mark as stale.
+   * Inner nodes whose children are both stale are marked on the way back up.
+   *
+   * @throws IllegalStateException if every tile is stale
+   */
+  public MosaicNode findClosest(MosaicTile toFind, TreeOverlay overlay) {
     MosaicNode closer = this.root;
+    int visited = 1;
     while (!closer.isLeaf()) {
+      visited++;
 
-      boolean isLeftStale = ((MosaicNode) closer.getLeft()).isStale();
-      boolean isRightStale = ((MosaicNode) closer.getRight()).isStale();
+      MosaicNode left = (MosaicNode) closer.getLeft();
+      MosaicNode right = (MosaicNode) closer.getRight();
+      boolean isLeftStale = overlay.isStale(left);
+      boolean isRightStale = overlay.isStale(right);
 
       if ((isLeftStale && isRightStale)) {
         if (closer == this.root) {
-          System.err.println("We ran out of images! Dang!");
-          System.exit(-1);
+          overlay.addNodesVisited(visited);
+          throw new IllegalStateException("We ran out of images! Dang!");
+        }
+        if (overlay.isConsumed(left) && overlay.isConsumed(right)) {
+          overlay.consume(closer);
+        } else {
+          overlay.exclude(closer);
         }
-        closer.setStale(true);
         closer = (MosaicNode) closer.getParent();
       } else if (isRightStale) {
-        closer = (MosaicNode) closer.getLeft();
+        closer = left;
       } else if (isLeftStale) {
-        closer = (MosaicNode) closer.getRight();
-      } else if (rnd.nextDouble() <= this.noiseFactor) {
-        closer = (MosaicNode) closer.getLeft();
+        closer = right;
+      } else if (overlay.nextNoise()) {
+        closer = left;
       } else {
-        closer = (MosaicNode) MosaicNode.min(closer.getLeft(), closer.getRight(), toFind);
+        closer = (MosaicNode) MosaicNode.min(left, right, toFind);
       }
     }
+    overlay.addNodesVisited(visited);
     return closer;
   }
 
-  public void unstale() {
-    unstaleNode(this.root);
-  }
-
-  private void unstaleNode(MosaicNode node) {
-    if (node == null) return;
-    node.setStale(false);
-    unstaleNode((MosaicNode) node.getLeft());
-    unstaleNode((MosaicNode) node.getRight());
-  }
-
 }
@@ -4,7 +4,7 @@ import com.gream.mosaic.domainobjects.MosaicTile;
 
 public class MosaicNode extends BinaryTreeNode<MosaicTile> {
 
-  private boolean stale;
+  private int id = -1; // dense position in the tree, indexes per-job state in a TreeOverlay
 
   public MosaicNode(MosaicTile contents) {
     super(contents);
@@ -31,12 +31,12 @@ public class MosaicNode extends BinaryTreeNode<MosaicTile> {
     return distance < distance2 ? n1 : n2;
   }
 
-  public boolean isStale() {
-    return stale;
+  public int getId() {
+    return id;
   }
 
-  public void setStale(boolean stale) {
-    this.stale = stale;
+  void setId(int id) {
+    this.id = id;
   }
 
 }
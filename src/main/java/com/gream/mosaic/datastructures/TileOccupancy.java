@@ -0,0 +1,79 @@
+package com.gream.mosaic.datastructures;
+
+import java.util.Arrays;
+
+/**
+ * Records where each source tile has been placed in the mosaic grid, keyed by
+ * the tile's dense integer index. Placements of a tile form a linked list
+ * stored in primitive arrays, so diversity checks cost O(uses of that tile)
+ * instead of a scan of the whole (2r+1)^2 neighbourhood.
+ */
+public class TileOccupancy {
+
+  private final int[] head; // most recent placement per tile, -1 if unused
+  private int[] next;
+  private int[] rows;
+  private int[] cols;
+  private int size;
+
+  public TileOccupancy(int tiles, int expectedPlacements) {
+    this.head = new int[tiles];
+    Arrays.fill(head, -1);
+    int capacity = Math.max(16, expectedPlacements);
+    this.next = new int[capacity];
+    this.rows = new int[capacity];
+    this.cols = new int[capacity];
+  }
+
+  /**
+   * Records that the tile was placed at the given grid position.
+   */
+  public void place(int tile, int row, int col) {
+    if (size == next.length) {
+      int capacity = size * 2;
+      next = Arrays.copyOf(next, capacity);
+      rows = Arrays.copyOf(rows, capacity);
+      cols = Arrays.copyOf(cols, capacity);
+    }
+    rows[size] = row;
+    cols[size] = col;
+    next[size] = head[tile];
+    head[tile] = size;
+    size++;
+  }
+
+  /**
+   * @return true if the tile has been placed at another position within the
+   *         given (circular) radius
+   */
+  public boolean isWithinRadius(int tile, int row, int col, int radius) {
+    int radiusSquared = radius * radius;
+    for (int p = head[tile]; p >= 0; p = next[p]) {
+      int dr = rows[p] - row;
+      int dc = cols[p] - col;
+      int distanceSquared = dr * dr + dc * dc;
+      if (distanceSquared > 0 && distanceSquared <= radiusSquared) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Calculates a penalty score based on how close placements of the same
+   * tile are: every other placement in the (2r+1)^2 window around the position
+   * adds 1000 / (distance + 1), so closer duplicates weigh more.
+   */
+  public double getPenalty(int tile, int row, int col, int radius) {
+    double totalPenalty = 0.0;
+    for (int p = head[tile]; p >= 0; p = next[p]) {
+      int dr = rows[p] - row;
+      int dc = cols[p] - col;
+      if ((dr != 0 || dc != 0) && Math.abs(dr) <= radius && Math.abs(dc) <= radius) {
+        totalPenalty += 1000.0 / (Math.sqrt(dr * dr + dc * dc) + 1.0);
+      }
+    }
+    return totalPenalty;
+  }
+
+}
@@ -0,0 +1,99 @@
+package com.gream.mosaic.datastructures;
+
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * The per-job state of a search over a shared {@link MosaicBinaryTree}: which
+ * nodes are used up for the whole job, which are ruled out for the current
+ * cell only, and how often every tile has been used. Creating a new overlay is
+ * all it takes to start a job from scratch. Not thread safe; use one per job.
+ */
+public class TreeOverlay {
+
+  private final BitSet consumed;
+  private final BitSet excluded;
+  private final int[] usageCounts;
+  private final double noiseFactor;
+  private final Random rnd = new Random();
+
+  private long nodesVisited;
+  private long staleResets;
+
+  TreeOverlay(int nodes, int tiles, double noiseFactor) {
+    this.consumed = new BitSet(nodes);
+    this.excluded = new BitSet(nodes);
+    this.usageCounts = new int[tiles];
+    this.noiseFactor = noiseFactor;
+  }
+
+  public boolean isStale(MosaicNode node) {
+    return consumed.get(node.getId()) || excluded.get(node.getId());
+  }
+
+  boolean isConsumed(MosaicNode node) {
+    return consumed.get(node.getId());
+  }
+
+  /**
+   * Rules the node out for the rest of the job.
+   */
+  public void consume(MosaicNode node) {
+    consumed.set(node.getId());
+  }
+
+  /**
+   * Rules the node out until {@link #clearExclusions()}.
+   */
+  public void exclude(MosaicNode node) {
+    excluded.set(node.getId());
+  }
+
+  /**
+   * Makes every node that was only excluded available again; consumed nodes
+   * stay stale.
+   */
+  public void clearExclusions() {
+    if (!excluded.isEmpty()) {
+      excluded.clear();
+      staleResets++;
+    }
+  }
+
+  /**
+   * Records one more use of a tile.
+   *
+   * @return the number of times the tile has now been used
+   */
+  public int recordUse(int tileIndex) {
+    return ++usageCounts[tileIndex];
+  }
+
+  public int getUses(int tileIndex) {
+    return usageCounts[tileIndex];
+  }
+
+  /**
+   * @return the number of tree nodes searches with this overlay have stepped
+   *         through
+   */
+  public long getNodesVisited() {
+    return nodesVisited;
+  }
+
+  /**
+   * @return how often {@link #clearExclusions()} had something to clear
+   */
+  public long getStaleResets() {
+    return staleResets;
+  }
+
+  void addNodesVisited(int nodes) {
+    nodesVisited += nodes;
+  }
+
+  boolean nextNoise() {
+    return noiseFactor > 0 && rnd.nextDouble() <= noiseFactor;
+  }
+
+}
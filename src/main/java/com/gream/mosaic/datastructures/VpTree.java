@@ -0,0 +1,386 @@
+package com.gream.mosaic.datastructures;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.gream.mosaic.domainobjects.MosaicTile;
+
+/**
+ * Vantage-point tree over the colour grids of the source tiles
+ * ({@link MosaicTile#getGridLab()}), for nearest neighbour searches in the
+ * 12 to 27 dimensions of a 2x2 or 3x3 grid, where a kd-tree has little left to
+ * prune.
+ *
+ * Every node picks one tile as vantage point and splits the others at the
+ * median of their distance to it, so a search can skip a side by the triangle
+ * inequality alone. Distances are Euclidean over all cells in LAB. The tree is
+ * array backed: the grids sit in one flat array in tree order and small ranges
+ * end in buckets that are scanned linearly. It is never modified after
+ * construction, so one tree can serve any number of concurrent searches.
+ */
+public class VpTree {
+
+  private static final int LEAF_SIZE = 16;
+
+  private final int dimensions;
+  private final MosaicTile[] tiles; // in tree order
+  private final float[] points; // grid of tiles[i] at dimensions * i
+
+  // Per node: the vantage point sits at lo, inside holds [lo + 1, mid) and
+  // outside [mid, hi); a leaf has radius -1 and covers [lo, hi)
+  private int nodes;
+  private int[] lo;
+  private int[] mid;
+  private int[] hi;
+  private double[] radius;
+  private int[] inside;
+  private int[] outside;
+
+  /**
+   * @param tiles tiles that all have a colour grid of the same size
+   */
+  public VpTree(List<MosaicTile> tiles) {
+    if (tiles == null || tiles.isEmpty()) {
+      throw new IllegalArgumentException("Cannot build VP-tree from empty tile list");
+    }
+    int n = tiles.size();
+    float[] first = tiles.get(0).getGridLab();
+    if (first == null) {
+      throw new IllegalArgumentException("Tile has no colour grid: " + tiles.get(0));
+    }
+    this.dimensions = first.length;
+    this.tiles = tiles.toArray(new MosaicTile[n]);
+
+    int capacity = Math.max(1, 2 * n / LEAF_SIZE + 1);
+    lo = new int[capacity];
+    mid = new int[capacity];
+    hi = new int[capacity];
+    radius = new double[capacity];
+    inside = new int[capacity];
+    outside = new int[capacity];
+
+    int[] order = new int[n];
+    for (int i = 0; i < n; i++) {
+      float[] grid = this.tiles[i].getGridLab();
+      if (grid == null || grid.length != dimensions) {
+        throw new IllegalArgumentException("Tile has no colour grid of the same size: " + this.tiles[i]);
+      }
+      order[i] = i;
+    }
+    double[] distances = new double[n];
+    build(order, distances, 0, n, new Random(n));
+
+    // Lay the grids out in tree order
+    MosaicTile[] sorted = new MosaicTile[n];
+    points = new float[n * dimensions];
+    for (int i = 0; i < n; i++) {
+      sorted[i] = this.tiles[order[i]];
+      System.arraycopy(sorted[i].getGridLab(), 0, points, i * dimensions, dimensions);
+    }
+    System.arraycopy(sorted, 0, this.tiles, 0, n);
+  }
+
+  /**
+   * @return the node built over order[from, to)
+   */
+  private int build(int[] order, double[] distances, int from, int to, Random random) {
+    int node = newNode();
+    lo[node] = from;
+    hi[node] = to;
+    if (to - from <= LEAF_SIZE) {
+      radius[node] = -1;
+      return node;
+    }
+
+    swap(order, distances, from, from + random.nextInt(to - from));
+    float[] vantage = tiles[order[from]].getGridLab();
+    for (int i = from + 1; i < to; i++) {
+      distances[i] = Math.sqrt(distanceSquared(vantage, tiles[order[i]].getGridLab()));
+    }
+    int median = (from + 1 + to) >>> 1;
+    select(order, distances, from + 1, to, median);
+    mid[node] = median;
+    radius[node] = distances[median];
+
+    int in = build(order, distances, from + 1, median, random);
+    int out = build(order, distances, median, to, random);
+    inside[node] = in;
+    outside[node] = out;
+    return node;
+  }
+
+  private int newNode() {
+    if (nodes == lo.length) {
+      int capacity = nodes * 2;
+      lo = Arrays.copyOf(lo, capacity);
+      mid = Arrays.copyOf(mid, capacity);
+      hi = Arrays.copyOf(hi, capacity);
+      radius = Arrays.copyOf(radius, capacity);
+      inside = Arrays.copyOf(inside, capacity);
+      outside = Arrays.copyOf(outside, capacity);
+    }
+    return nodes++;
+  }
+
+  /**
+   * Hoare's selection on the distances of order[from, to), so that position k
+   * holds the median with nothing farther before it and nothing closer after.
+   */
+  private static void select(int[] order, double[] distances, int from, int to, int k) {
+    int left = from;
+    int right = to - 1;
+    while (right > left) {
+      double pivot = distances[(left + right) >>> 1];
+      int i = left;
+      int j = right;
+      while (i <= j) {
+        while (distances[i] < pivot) {
+          i++;
+        }
+        while (distances[j] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          swap(order, distances, i, j);
+          i++;
+          j--;
+        }
+      }
+      if (k <= j) {
+        right = j;
+      } else if (k >= i) {
+        left = i;
+      } else {
+        return;
+      }
+    }
+  }
+
+  private static void swap(int[] order, double[] distances, int i, int j) {
+    int o = order[i];
+    order[i] = order[j];
+    order[j] = o;
+    double d = distances[i];
+    distances[i] = distances[j];
+    distances[j] = d;
+  }
+
+  /**
+   * @return the number of values in every grid, three per cell
+   */
+  public int getDimensions() {
+    return dimensions;
+  }
+
+  /**
+   * Finds the k tiles whose colour grids are closest to the query, ordered
+   * from closest to farthest.
+   *
+   * @param query     [L, a, b] per grid cell, as {@link MosaicTile#getGridLab()}
+   * @param maxChecks the most leaf buckets to scan once k candidates are
+   *                  known, 0 for an exact search
+   */
+  public MosaicTile[] findKNearest(float[] query, int k, int maxChecks) {
+    if (query.length != dimensions) {
+      throw new IllegalArgumentException("Query has " + query.length + " values, the tree " + dimensions);
+    }
+    KNearest search = new KNearest(Math.min(k, tiles.length));
+    search(query, maxChecks, search);
+
+    // Repeatedly taking the worst off the max-heap yields the reverse order
+    MosaicTile[] result = new MosaicTile[search.size];
+    for (int i = result.length - 1; i >= 0; i--) {
+      result[i] = tiles[search.positions[0]];
+      search.removeWorst();
+    }
+    return result;
+  }
+
+  /**
+   * Best-first search: walks down along the side the query falls on, queueing
+   * the other side with a lower bound on its distance, then continues with
+   * the most promising queued branch until none can hold anything closer than
+   * the k-th candidate, or the budget is spent.
+   */
+  private void search(float[] query, int maxChecks, KNearest search) {
+    BranchQueue queue = new BranchQueue();
+    queue.push(0, 0);
+    int leaves = 0;
+    while (queue.size > 0) {
+      double bound = queue.bounds[0];
+      if (bound >= search.worst()) {
+        return;
+      }
+      if (maxChecks > 0 && leaves >= maxChecks && search.size == search.k) {
+        return;
+      }
+      int node = queue.nodes[0];
+      queue.pop();
+
+      while (radius[node] >= 0) {
+        double d = Math.sqrt(distanceSquared(query, lo[node]));
+        search.offer(lo[node], d);
+        // Anything inside is at most radius from the vantage point, anything
+        // outside at least radius
+        if (d < radius[node]) {
+          double outsideBound = Math.max(bound, radius[node] - d);
+          if (outsideBound < search.worst()) {
+            queue.push(outside[node], outsideBound);
+          }
+          node = inside[node];
+        } else {
+          double insideBound = Math.max(bound, d - radius[node]);
+          if (insideBound < search.worst()) {
+            queue.push(inside[node], insideBound);
+          }
+          node = outside[node];
+        }
+      }
+      for (int i = lo[node]; i < hi[node]; i++) {
+        search.offer(i, Math.sqrt(distanceSquared(query, i)));
+      }
+      leaves++;
+    }
+  }
+
+  private double distanceSquared(float[] query, int position) {
+    int offset = position * dimensions;
+    double sum = 0;
+    for (int i = 0; i < dimensions; i++) {
+      double d = query[i] - points[offset + i];
+      sum += d * d;
+    }
+    return sum;
+  }
+
+  /**
+   * @return the squared Euclidean distance between two colour grids
+   */
+  public static double distanceSquared(float[] a, float[] b) {
+    double sum = 0;
+    for (int i = 0; i < a.length; i++) {
+      double d = a[i] - b[i];
+      sum += d * d;
+    }
+    return sum;
+  }
+
+  /**
+   * Array-backed min-heap of unexplored branches, ordered by the lower bound
+   * on the distance of anything inside them.
+   */
+  private static class BranchQueue {
+    int[] nodes = new int[32];
+    double[] bounds = new double[32];
+    int size;
+
+    void push(int node, double bound) {
+      if (size == nodes.length) {
+        nodes = Arrays.copyOf(nodes, size * 2);
+        bounds = Arrays.copyOf(bounds, size * 2);
+      }
+      int i = size++;
+      while (i > 0 && bounds[(i - 1) / 2] > bound) {
+        int parent = (i - 1) / 2;
+        nodes[i] = nodes[parent];
+        bounds[i] = bounds[parent];
+        i = parent;
+      }
+      nodes[i] = node;
+      bounds[i] = bound;
+    }
+
+    void pop() {
+      size--;
+      int node = nodes[size];
+      double bound = bounds[size];
+      if (size == 0) {
+        return;
+      }
+      int i = 0;
+      while (true) {
+        int child = 2 * i + 1;
+        if (child >= size) {
+          break;
+        }
+        if (child + 1 < size && bounds[child + 1] < bounds[child]) {
+          child++;
+        }
+        if (bounds[child] >= bound) {
+          break;
+        }
+        nodes[i] = nodes[child];
+        bounds[i] = bounds[child];
+        i = child;
+      }
+      nodes[i] = node;
+      bounds[i] = bound;
+    }
+  }
+
+  /**
+   * Array-backed max-heap on distance holding the best k positions found so
+   * far; the root is the worst of them.
+   */
+  private static class KNearest {
+    final int k;
+    final int[] positions;
+    final double[] distances;
+    int size;
+
+    KNearest(int k) {
+      this.k = k;
+      this.positions = new int[k];
+      this.distances = new double[k];
+    }
+
+    double worst() {
+      return size < k ? Double.MAX_VALUE : distances[0];
+    }
+
+    void offer(int position, double distance) {
+      if (size < k) {
+        int i = size++;
+        while (i > 0 && distances[(i - 1) / 2] < distance) {
+          int parent = (i - 1) / 2;
+          positions[i] = positions[parent];
+          distances[i] = distances[parent];
+          i = parent;
+        }
+        positions[i] = position;
+        distances[i] = distance;
+      } else if (distance < distances[0]) {
+        siftDown(position, distance);
+      }
+    }
+
+    void removeWorst() {
+      size--;
+      if (size > 0) {
+        siftDown(positions[size], distances[size]);
+      }
+    }
+
+    private void siftDown(int position, double distance) {
+      int i = 0;
+      while (true) {
+        int child = 2 * i + 1;
+        if (child >= size) {
+          break;
+        }
+        if (child + 1 < size && distances[child + 1] > distances[child]) {
+          child++;
+        }
+        if (distances[child] <= distance) {
+          break;
+        }
+        positions[i] = positions[child];
+        distances[i] = distances[child];
+        i = child;
+      }
+      positions[i] = position;
+      distances[i] = distance;
+    }
+  }
+}
@@ -1,10 +1,15 @@
 package com.gream.mosaic.domainobjects;
 
 import java.awt.Color;
+import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
 
 import com.gream.mosaic.utils.ColorSpaceUtils;
 import com.gream.mosaic.utils.ImageUtils;
+import com.gream.mosaic.utils.PerceptualHash;
 
 public class MosaicTile {
 
@@ -12,6 +17,10 @@ public class MosaicTile {
   private double[] labColor; // LAB color space values for perceptual matching
   private String id;
   private String path;
+  private int index = -1; // dense position in the source tile list, -1 for non-source tiles
+  private int[] gridColors; // packed RGB per grid cell, row by row, null without a grid
+  private float[] gridLab; // [L, a, b] per grid cell
+  private long perceptualHash; // structure of the image, see PerceptualHash
 
   public MosaicTile(String id, File f) throws Exception {
     this.id = id;
@@ -20,6 +29,35 @@ public class MosaicTile {
     this.labColor = ColorSpaceUtils.rgbToLab(this.averageColors);
   }
 
+  /**
+   * Analyses an image file, also recording the average colours of a
+   * {@code grid} by {@code grid} raster laid over it.
+   */
+  public MosaicTile(String id, File f, int grid) throws Exception {
+    this(id, f, grid, false);
+  }
+
+  /**
+   * Like {@link #MosaicTile(String, File, int)}, also computing the
+   * perceptual hash of the image when {@code hash} is set.
+   */
+  public MosaicTile(String id, File f, int grid, boolean hash) throws Exception {
+    BufferedImage img = ImageIO.read(f);
+    if (img == null) {
+      throw new IOException("Not a readable image");
+    }
+    this.id = id;
+    this.path = f.getPath();
+    this.averageColors = ImageUtils.getAverageRGB(img);
+    this.labColor = ColorSpaceUtils.rgbToLab(this.averageColors);
+    if (grid > 0) {
+      setGridColors(ImageUtils.getGridRGB(img, grid));
+    }
+    if (hash) {
+      this.perceptualHash = PerceptualHash.compute(img);
+    }
+  }
+
   public MosaicTile(String id, String path, Color averageColors) throws Exception {
     this.id = id;
     this.path = path;
@@ -48,12 +86,78 @@ public class MosaicTile {
     this.id = id;
   }
 
+  public int getIndex() {
+    return index;
+  }
+
+  public void setIndex(int index) {
+    this.index = index;
+  }
+
+  /**
+   * @return the side of the colour grid, 0 if the tile has none
+   */
+  public int getGridSize() {
+    return gridColors != null ? (int) Math.round(Math.sqrt(gridColors.length)) : 0;
+  }
+
+  /**
+   * @return packed RGB per grid cell, row by row, or null
+   */
+  public int[] getGridColors() {
+    return gridColors;
+  }
+
+  /**
+   * @param gridColors packed RGB per cell of a square grid, row by row
+   */
+  public void setGridColors(int[] gridColors) {
+    this.gridColors = gridColors;
+    this.gridLab = new float[3 * gridColors.length];
+    ColorSpaceUtils.rgbToLab(gridColors, gridLab);
+  }
+
+  /**
+   * @return [L, a, b] per grid cell, row by row, or null
+   */
+  public float[] getGridLab() {
+    return gridLab;
+  }
+
+  /**
+   * @return the perceptual hash of the image, 0 unless it was computed when
+   *         the image was analysed
+   */
+  public long getPerceptualHash() {
+    return perceptualHash;
+  }
+
+  /**
+   * @return the image cache line of the tile: id, average RGB, path and the
+   *         optional colour grid. A path with commas or quotes is quoted, with
+   *         its quotes doubled.
+   */
   public String toCSV() {
-    return this.id + ","
+    String csv = this.id + ","
         + this.averageColors.getRed() + ","
         + this.averageColors.getGreen() + ","
         + this.averageColors.getBlue() + ","
-        + this.path;
+        + quote(this.path);
+    if (gridColors == null) {
+      return csv;
+    }
+    StringBuilder sb = new StringBuilder(csv).append(',').append(getGridSize());
+    for (int rgb : gridColors) {
+      sb.append(',').append(String.format("%06x", rgb & 0xFFFFFF));
+    }
+    return sb.toString();
+  }
+
+  private static String quote(String field) {
+    if (field.indexOf(',') < 0 && field.indexOf('"') < 0) {
+      return field;
+    }
+    return '"' + field.replace("\"", "\"\"") + '"';
   }
 
   public int getR() {
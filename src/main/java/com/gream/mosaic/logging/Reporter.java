@@ -0,0 +1,362 @@
+package com.gream.mosaic.logging;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log messages and progress that never block the caller on console I/O.
+ * Messages are queued and written by a background ticker; progress is a
+ * counter the working thread bumps and the ticker reads at a fixed interval,
+ * so a render loop pays for an add, not for a print per tile. At most
+ * {@link #MAX_LINES_PER_TICK} queued lines are written per tick; when the
+ * queue overflows, debug and info lines are dropped and counted while
+ * warnings and errors are written directly.
+ * <p>
+ * Progress redraws a single line when writing to a console and prints a line
+ * every few seconds otherwise. Call {@link #close()} before the JVM exits to
+ * flush what is still queued.
+ */
+public class Reporter implements AutoCloseable {
+
+  public enum Level {
+    DEBUG("[DEBUG] "),
+    INFO("[INFO] "),
+    WARN("[WARNING] "),
+    ERROR("[ERROR] "),
+    OFF("");
+
+    private final String tag;
+
+    Level(String tag) {
+      this.tag = tag;
+    }
+  }
+
+  /**
+   * Reports nothing.
+   */
+  public static final Reporter SILENT = new Reporter(null, Level.OFF, false);
+
+  static final int MAX_LINES_PER_TICK = 200;
+  private static final int QUEUE_CAPACITY = 10000;
+  // Without a console a progress line is printed at most this often
+  private static final long PLAIN_PROGRESS_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+  private final Sink sink;
+  private final Level level;
+  private final boolean owner;
+
+  /**
+   * Starts a reporter with its own ticker thread.
+   *
+   * @param out          where debug and info messages and progress go
+   * @param err          where warnings and errors go
+   * @param level        the least severe level written
+   * @param tickInterval milliseconds between writes
+   */
+  public Reporter(PrintStream out, PrintStream err, Level level, long tickInterval) {
+    this(new Sink(out, err, System.console() != null, level == Level.DEBUG, tickInterval), level, true);
+  }
+
+  private Reporter(Sink sink, Level level, boolean owner) {
+    this.sink = sink;
+    this.level = sink == null ? Level.OFF : level;
+    this.owner = owner;
+  }
+
+  /**
+   * @return a reporter writing to the same place, but only messages at least
+   *         as severe as the given level; progress is only shown when info
+   *         messages are
+   */
+  public Reporter withLevel(Level level) {
+    return level.compareTo(this.level) <= 0 ? this : new Reporter(sink, level, false);
+  }
+
+  public boolean isEnabled(Level level) {
+    return level != Level.OFF && level.compareTo(this.level) >= 0;
+  }
+
+  /**
+   * Whether debug messages are written. Check this before building an
+   * expensive message.
+   */
+  public boolean isDebugEnabled() {
+    return isEnabled(Level.DEBUG);
+  }
+
+  public void debug(String message) {
+    log(Level.DEBUG, message);
+  }
+
+  public void info(String message) {
+    log(Level.INFO, message);
+  }
+
+  public void warn(String message) {
+    log(Level.WARN, message);
+  }
+
+  public void error(String message) {
+    log(Level.ERROR, message);
+  }
+
+  public void log(Level level, String message) {
+    if (isEnabled(level)) {
+      sink.enqueue(new Line(level, message));
+    }
+  }
+
+  /**
+   * Starts tracking a task. The task is shown until it is finished.
+   *
+   * @param name  e.g. "Finding matches"
+   * @param total the amount of work, 0 if unknown
+   * @param unit  what is counted, e.g. "tiles"
+   */
+  public Progress startTask(String name, long total, String unit) {
+    if (!isEnabled(Level.INFO)) {
+      return new Progress(name, total, unit, null);
+    }
+    Progress progress = new Progress(name, total, unit, sink);
+    sink.tasks.add(progress);
+    return progress;
+  }
+
+  /**
+   * Writes everything that is queued and stops the ticker. Reporters derived
+   * with {@link #withLevel(Level)} are closed with the one they came from.
+   */
+  @Override
+  public void close() {
+    if (owner) {
+      sink.close();
+    }
+  }
+
+  /**
+   * The progress of one task. {@link #increment()} is safe to call from any
+   * number of threads. Closing finishes the task.
+   */
+  public static final class Progress implements AutoCloseable {
+
+    private final String name;
+    private final long total;
+    private final String unit;
+    private final LongAdder done = new LongAdder();
+    // Null when the task is not shown
+    private final Sink sink;
+    private volatile boolean finished;
+
+    // Only touched by the ticker
+    private long shown = -1;
+    private long shownAt = System.nanoTime();
+
+    Progress(String name, long total, String unit, Sink sink) {
+      this.name = name;
+      this.total = total;
+      this.unit = unit;
+      this.sink = sink;
+    }
+
+    public void increment() {
+      done.increment();
+    }
+
+    public void add(long amount) {
+      done.add(amount);
+    }
+
+    public long getDone() {
+      return done.sum();
+    }
+
+    /**
+     * Shows the final count. Messages logged before this call are written
+     * before it, messages logged after it after it.
+     */
+    public void finish() {
+      if (!finished) {
+        finished = true;
+        if (sink != null) {
+          sink.enqueue(new Line(this));
+        }
+      }
+    }
+
+    @Override
+    public void close() {
+      finish();
+    }
+
+    String format(boolean bar, long done) {
+      if (total <= 0) {
+        return Level.INFO.tag + name + ": " + done + " " + unit;
+      }
+      int percent = (int) (Math.min(done, total) * 100 / total);
+      if (bar) {
+        StringBuilder line = new StringBuilder(name).append(" [");
+        for (int i = 0; i < 50; i++) {
+          line.append(i <= percent / 2 ? '=' : ' ');
+        }
+        return line.append("]   ").append(percent).append("%     ").toString();
+      }
+      return Level.INFO.tag + name + ": " + done + "/" + total + " " + unit + " (" + percent + "%)";
+    }
+  }
+
+  /**
+   * A queued message, or the end of a task.
+   */
+  private static final class Line {
+    final Level level;
+    final String message;
+    final Progress finished;
+
+    Line(Level level, String message) {
+      this.level = level;
+      this.message = message;
+      this.finished = null;
+    }
+
+    Line(Progress finished) {
+      this.level = Level.INFO;
+      this.message = null;
+      this.finished = finished;
+    }
+
+    boolean mayDrop() {
+      return finished == null && level.compareTo(Level.WARN) < 0;
+    }
+  }
+
+  /**
+   * The queue, the tasks and the ticker shared by a reporter and the ones
+   * derived from it.
+   */
+  private static final class Sink implements Runnable {
+
+    final PrintStream out;
+    final PrintStream err;
+    final boolean console;
+    final boolean bar;
+    final BlockingQueue<Line> queue = new ArrayBlockingQueue<Line>(QUEUE_CAPACITY);
+    final List<Progress> tasks = new CopyOnWriteArrayList<Progress>();
+    final AtomicLong dropped = new AtomicLong();
+    final ScheduledExecutorService ticker;
+
+    // The progress line currently on screen, to be ended before other output
+    private boolean lineOpen;
+
+    Sink(PrintStream out, PrintStream err, boolean console, boolean bar, long tickInterval) {
+      this.out = out;
+      this.err = err;
+      this.console = console;
+      this.bar = bar;
+      this.ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "reporter");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      ticker.scheduleAtFixedRate(this, tickInterval, tickInterval, TimeUnit.MILLISECONDS);
+    }
+
+    void enqueue(Line line) {
+      if (!queue.offer(line)) {
+        if (line.mayDrop()) {
+          dropped.incrementAndGet();
+        } else {
+          // Written out of order rather than lost
+          synchronized (this) {
+            write(line);
+          }
+        }
+      }
+    }
+
+    public void run() {
+      tick(MAX_LINES_PER_TICK);
+    }
+
+    synchronized void tick(int maxLines) {
+      for (int i = 0; i < maxLines; i++) {
+        Line line = queue.poll();
+        if (line == null) {
+          break;
+        }
+        write(line);
+      }
+      long lost = dropped.getAndSet(0);
+      if (lost > 0) {
+        write(new Line(Level.WARN, lost + " log messages dropped"));
+      }
+
+      long now = System.nanoTime();
+      for (Progress task : tasks) {
+        long done = task.getDone();
+        if (done == task.shown) {
+          continue;
+        }
+        if (console) {
+          out.print("\r" + task.format(bar, done));
+          lineOpen = true;
+        } else if (now - task.shownAt >= PLAIN_PROGRESS_NANOS) {
+          out.println(task.format(bar, done));
+          task.shownAt = now;
+        }
+        task.shown = done;
+      }
+      out.flush();
+    }
+
+    private void write(Line line) {
+      if (line.finished != null) {
+        Progress task = line.finished;
+        tasks.remove(task);
+        if (console) {
+          out.print("\r");
+          lineOpen = false;
+        }
+        out.println(task.format(bar, task.getDone()));
+        return;
+      }
+      endLine();
+      PrintStream stream = line.mayDrop() ? out : err;
+      String message = line.message.replace("\n", "\n" + line.level.tag);
+      stream.println(line.level.tag + message);
+    }
+
+    private void endLine() {
+      if (lineOpen) {
+        out.println();
+        lineOpen = false;
+      }
+    }
+
+    void close() {
+      ticker.shutdown();
+      try {
+        ticker.awaitTermination(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      for (Progress task : tasks) {
+        task.finish();
+      }
+      tick(Integer.MAX_VALUE);
+    }
+  }
+
+}
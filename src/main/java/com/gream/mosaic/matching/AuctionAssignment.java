@@ -0,0 +1,479 @@
+package com.gream.mosaic.matching;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.gream.mosaic.datastructures.KdTree;
+import com.gream.mosaic.domainobjects.MosaicTile;
+
+/**
+ * Assigns target cells to source tiles so that the total LAB error of the
+ * mosaic is minimal, with every source tile used at most {@code capacity}
+ * times.
+ *
+ * The matching is solved with Bertsekas' auction algorithm with epsilon
+ * scaling. Every cell only bids on its k nearest source tiles (found through a
+ * {@link KdTree}); the distance to the (k+1)th neighbour is a lower bound on the
+ * cost of every tile outside that list, so whenever prices have risen above it
+ * the cell's list is grown. A tile only gets slots once it is in some cell's
+ * list, one for every cell that has listed it up to the capacity, as no other
+ * cell can take them; the slots, and the memory, grow with the candidate
+ * lists rather than with the library times the capacity. There are usually
+ * more slots than cells, so the problem is made square with interchangeable
+ * zero-cost dummy bidders that always take the cheapest slot. The result is
+ * optimal for the full problem, not just the candidate graph, to within 0.01
+ * squared LAB units per cell.
+ */
+public class AuctionAssignment {
+
+  private static final int INITIAL_CANDIDATES = 16;
+  private static final double EPSILON_SCALE = 5.0;
+  private static final double MAX_ERROR_PER_CELL = 0.01;
+  private static final int DUMMY = -2;
+  private static final int MAX_SLOTS = Integer.MAX_VALUE - 8;
+  private static final int INTERRUPT_CHECK_BIDS = 1 << 16;
+
+  private final List<MosaicTile> sources;
+  private final Map<MosaicTile, Integer> sourceIndex;
+  private final KdTree tree;
+  private final int capacity;
+
+  private MosaicTile[] targets;
+  private int[][] candidates;
+  private double[][] costs;
+  private double[] bound;
+
+  // By source tile: the cells that have had it as a candidate, and its slots
+  // as a min-heap on price
+  private int[] listedBy;
+  private int[][] tileSlots;
+  private int[] tileSlotCount;
+  // Marks the tiles of a cell's previous candidate list while it is grown
+  private int[] seen;
+  private int seenStamp;
+
+  private int slotCount;
+  private int[] slotTile;
+  private int[] tileHeapPos;
+  private double[] price;
+  private int[] owner;
+  private int[] assignedSlot;
+  private double[] assignedCost;
+  // Dummy bidders without a slot: slots minus cells minus slots held by
+  // dummies, negative while there are fewer slots than cells
+  private int dummies;
+  private boolean slotsAdded;
+
+  // Min-heap of slots on price, used by the dummy bidders
+  private int[] heap;
+  private int[] heapPos;
+
+  // Slots free at the start of a phase, cheapest first. A free slot is never
+  // bid on while free, so its price, and this order, stay valid.
+  private int[] freeSlots;
+  private int freeCursor;
+
+  private double totalError;
+
+  public AuctionAssignment(List<MosaicTile> sources, int capacity) {
+    this(sources, new KdTree(new ArrayList<MosaicTile>(sources)), capacity);
+  }
+
+  /**
+   * @param tree a tree over exactly the given sources, e.g. one shared by
+   *             several renders
+   */
+  public AuctionAssignment(List<MosaicTile> sources, KdTree tree, int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be at least 1, was " + capacity);
+    }
+    this.sources = sources;
+    this.capacity = capacity;
+    this.sourceIndex = new IdentityHashMap<MosaicTile, Integer>();
+    for (int i = 0; i < sources.size(); i++) {
+      sourceIndex.put(sources.get(i), i);
+    }
+    this.tree = tree;
+  }
+
+  /**
+   * Computes the assignment.
+   *
+   * @param targets the average colours of the cells to fill
+   * @return the source tile chosen for each target, index aligned with targets
+   * @throws IllegalStateException if there are not enough source tiles to fill
+   *                               every cell within the usage limit
+   * @throws InterruptedException  if the thread is interrupted meanwhile
+   */
+  public MosaicTile[] assign(MosaicTile[] targets) throws InterruptedException {
+    int m = targets.length;
+    int n = sources.size();
+    if ((long) n * capacity < m) {
+      throw new IllegalStateException("We ran out of images! " + n + " source images used at most " + capacity
+          + " time(s) each cannot fill " + m + " tiles.");
+    }
+
+    this.targets = targets;
+    this.candidates = new int[m][];
+    this.costs = new double[m][];
+    this.bound = new double[m];
+    this.assignedSlot = new int[m];
+    this.assignedCost = new double[m];
+    this.listedBy = new int[n];
+    this.tileSlots = new int[n][];
+    this.tileSlotCount = new int[n];
+    this.seen = new int[n];
+    this.seenStamp = 0;
+    int initialSlots = (int) Math.min(MAX_SLOTS, (long) m * 2);
+    this.slotCount = 0;
+    this.slotTile = new int[initialSlots];
+    this.tileHeapPos = new int[initialSlots];
+    this.price = new double[initialSlots];
+    this.owner = new int[initialSlots];
+    this.heap = new int[initialSlots];
+    this.heapPos = new int[initialSlots];
+    this.freeSlots = new int[0];
+    this.freeCursor = 0;
+    this.dummies = -m;
+    Arrays.fill(assignedSlot, -1);
+
+    double maxCost = 0;
+    for (int i = 0; i < m; i++) {
+      fetchCandidates(i, Math.min(n, INITIAL_CANDIDATES));
+      double[] c = costs[i];
+      maxCost = Math.max(maxCost, c[c.length - 1]);
+    }
+
+    int[] unassigned = new int[m];
+    for (int i = 0; i < m; i++) {
+      unassigned[i] = m - 1 - i;
+    }
+    int count = m;
+
+    double epsilon = Math.max(maxCost / EPSILON_SCALE, finalEpsilon());
+    while (true) {
+      collectFreeSlots();
+      slotsAdded = false;
+      runAuction(unassigned, count, epsilon);
+      // Slots added during the phase start at price zero, which can break
+      // the slackness of assignments made before; re-auction those
+      boolean last = epsilon <= finalEpsilon();
+      if (last && !slotsAdded) {
+        break;
+      }
+      if (!last) {
+        epsilon = Math.max(epsilon / EPSILON_SCALE, finalEpsilon());
+      }
+
+      // Keep every assignment that still satisfies epsilon complementary
+      // slackness and only re-auction the rest
+      count = 0;
+      for (int i = 0; i < m; i++) {
+        if (assignedCost[i] + price[assignedSlot[i]] > bestValue(i) + epsilon) {
+          owner[assignedSlot[i]] = -1;
+          assignedSlot[i] = -1;
+          unassigned[count++] = i;
+        }
+      }
+      double lowest = price[heap[0]];
+      for (int s = 0; s < slotCount; s++) {
+        if (owner[s] == DUMMY && price[s] > lowest + epsilon) {
+          owner[s] = -1;
+          dummies++;
+        }
+      }
+    }
+
+    MosaicTile[] result = new MosaicTile[m];
+    totalError = 0;
+    for (int i = 0; i < m; i++) {
+      result[i] = sources.get(slotTile[assignedSlot[i]]);
+      totalError += assignedCost[i];
+    }
+    return result;
+  }
+
+  /**
+   * @return the summed squared LAB distance of the last computed assignment
+   */
+  public double getTotalError() {
+    return totalError;
+  }
+
+  /**
+   * @return the epsilon at which the error bound, (cells + dummies) *
+   *         epsilon, is {@link #MAX_ERROR_PER_CELL} per cell
+   */
+  private double finalEpsilon() {
+    int m = targets.length;
+    return MAX_ERROR_PER_CELL * m / Math.max(m, slotCount);
+  }
+
+  /**
+   * Runs one auction phase until every cell and every dummy bidder holds a
+   * slot.
+   */
+  private void runAuction(int[] unassigned, int count, double epsilon) throws InterruptedException {
+    for (int bids = 1; count > 0 || dummies > 0; bids++) {
+      if (bids % INTERRUPT_CHECK_BIDS == 0 && Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      int displaced;
+      if (count > 0) {
+        displaced = bid(unassigned[--count], epsilon);
+      } else {
+        dummies--;
+        displaced = dummyBid(epsilon);
+      }
+      if (displaced == DUMMY) {
+        dummies++;
+      } else if (displaced >= 0) {
+        unassigned[count++] = displaced;
+      }
+    }
+  }
+
+  /**
+   * Lets cell i bid for its best slot.
+   *
+   * @return the cell that was outbid, {@link #DUMMY}, or -1 if the slot was
+   *         free
+   */
+  private int bid(int i, double epsilon) {
+    while (true) {
+      int[] cand = candidates[i];
+      double[] cost = costs[i];
+      double best = Double.POSITIVE_INFINITY;
+      double second = Double.POSITIVE_INFINITY;
+      int bestSlot = -1;
+      double bestCost = 0;
+
+      // Candidates are sorted on cost and prices are never negative, so the
+      // scan can stop at the first candidate dearer than the runner-up
+      for (int t = 0; t < cand.length && cost[t] < second; t++) {
+        int[] slots = tileSlots[cand[t]];
+        int size = tileSlotCount[cand[t]];
+        int cheapest = slots[0];
+        double p1 = price[cheapest];
+        double p2 = Double.POSITIVE_INFINITY;
+        if (size > 1) {
+          p2 = price[slots[1]];
+        }
+        if (size > 2) {
+          p2 = Math.min(p2, price[slots[2]]);
+        }
+        double value = cost[t] + p1;
+        if (value < best) {
+          second = Math.min(best, cost[t] + p2);
+          best = value;
+          bestSlot = cheapest;
+          bestCost = cost[t];
+        } else if (value < second) {
+          second = value;
+        }
+      }
+
+      if (best > bound[i]) {
+        // A tile outside the candidate list may be cheaper now
+        fetchCandidates(i, Math.min(sources.size(), cand.length * 4));
+        continue;
+      }
+
+      second = Math.min(second, bound[i]);
+      raisePrice(bestSlot, Double.isInfinite(second) ? epsilon : second - best + epsilon);
+
+      int displaced = take(bestSlot, i);
+      assignedSlot[i] = bestSlot;
+      assignedCost[i] = bestCost;
+      return displaced;
+    }
+  }
+
+  /**
+   * A dummy bidder has zero cost for every slot, so it bids for the cheapest
+   * one against the second cheapest. Outbidding another dummy achieves
+   * nothing, so a free slot priced within epsilon of the cheapest is taken as
+   * it is instead.
+   */
+  private int dummyBid(double epsilon) {
+    int cheapest = heap[0];
+    if (owner[cheapest] == DUMMY) {
+      while (owner[freeSlots[freeCursor]] != -1) {
+        freeCursor++;
+      }
+      int free = freeSlots[freeCursor];
+      if (price[free] <= price[cheapest] + epsilon) {
+        owner[free] = DUMMY;
+        return -1;
+      }
+    }
+
+    double second = Double.POSITIVE_INFINITY;
+    if (slotCount > 1) {
+      second = price[heap[1]];
+    }
+    if (slotCount > 2) {
+      second = Math.min(second, price[heap[2]]);
+    }
+    raisePrice(cheapest, Double.isInfinite(second) ? epsilon : second - price[cheapest] + epsilon);
+    return take(cheapest, DUMMY);
+  }
+
+  private int take(int slot, int bidder) {
+    int displaced = owner[slot];
+    owner[slot] = bidder;
+    if (displaced >= 0) {
+      assignedSlot[displaced] = -1;
+    }
+    return displaced;
+  }
+
+  /**
+   * Increases the price of a slot and restores the order of both heaps it is
+   * in; prices never decrease, so sifting down is enough.
+   */
+  private void raisePrice(int slot, double increment) {
+    price[slot] += increment;
+    siftDown(heap, heapPos, slotCount, slot);
+    int t = slotTile[slot];
+    siftDown(tileSlots[t], tileHeapPos, tileSlotCount[t], slot);
+  }
+
+  /**
+   * Moves a slot down a min-heap of slots on price, where pos holds the
+   * position of every slot in the heap.
+   */
+  private void siftDown(int[] heap, int[] pos, int size, int slot) {
+    int at = pos[slot];
+    while (true) {
+      int child = 2 * at + 1;
+      if (child >= size) {
+        break;
+      }
+      if (child + 1 < size && price[heap[child + 1]] < price[heap[child]]) {
+        child++;
+      }
+      if (price[heap[child]] >= price[slot]) {
+        break;
+      }
+      heap[at] = heap[child];
+      pos[heap[at]] = at;
+      at = child;
+    }
+    heap[at] = slot;
+    pos[slot] = at;
+  }
+
+  /**
+   * Moves a slot placed at the given position up a min-heap of slots on price.
+   */
+  private void siftUp(int[] heap, int[] pos, int slot, int at) {
+    while (at > 0 && price[heap[(at - 1) / 2]] > price[slot]) {
+      heap[at] = heap[(at - 1) / 2];
+      pos[heap[at]] = at;
+      at = (at - 1) / 2;
+    }
+    heap[at] = slot;
+    pos[slot] = at;
+  }
+
+  /**
+   * Adds a free slot for tile t at price zero, the lowest there is.
+   */
+  private void addSlot(int t) {
+    if (slotCount == slotTile.length) {
+      if (slotCount == MAX_SLOTS) {
+        throw new IllegalStateException("Cannot fill the mosaic with more than " + MAX_SLOTS + " slots");
+      }
+      int length = (int) Math.min(MAX_SLOTS, Math.max(16L, 2L * slotCount));
+      slotTile = Arrays.copyOf(slotTile, length);
+      tileHeapPos = Arrays.copyOf(tileHeapPos, length);
+      price = Arrays.copyOf(price, length);
+      owner = Arrays.copyOf(owner, length);
+      heap = Arrays.copyOf(heap, length);
+      heapPos = Arrays.copyOf(heapPos, length);
+    }
+    int slot = slotCount++;
+    slotTile[slot] = t;
+    price[slot] = 0;
+    owner[slot] = -1;
+    siftUp(heap, heapPos, slot, slot);
+
+    int[] slots = tileSlots[t];
+    if (slots == null || tileSlotCount[t] == slots.length) {
+      slots = tileSlots[t] = slots == null ? new int[1] : Arrays.copyOf(slots, slots.length * 2);
+    }
+    siftUp(slots, tileHeapPos, slot, tileSlotCount[t]++);
+
+    // Being the cheapest, it goes first in the free slots
+    if (freeCursor == 0) {
+      int headroom = Math.max(16, freeSlots.length);
+      int[] grown = new int[freeSlots.length + headroom];
+      System.arraycopy(freeSlots, 0, grown, headroom, freeSlots.length);
+      freeSlots = grown;
+      freeCursor = headroom;
+    }
+    freeSlots[--freeCursor] = slot;
+    dummies++;
+    slotsAdded = true;
+  }
+
+  private void collectFreeSlots() {
+    List<Integer> free = new ArrayList<Integer>();
+    for (int s = 0; s < slotCount; s++) {
+      if (owner[s] == -1) {
+        free.add(s);
+      }
+    }
+    free.sort((s1, s2) -> Double.compare(price[s1], price[s2]));
+    freeSlots = new int[free.size()];
+    for (int f = 0; f < freeSlots.length; f++) {
+      freeSlots[f] = free.get(f);
+    }
+    freeCursor = 0;
+  }
+
+  /**
+   * @return a lower bound on the cost plus price cell i can currently get
+   */
+  private double bestValue(int i) {
+    double best = bound[i];
+    int[] cand = candidates[i];
+    double[] cost = costs[i];
+    for (int t = 0; t < cand.length && cost[t] < best; t++) {
+      best = Math.min(best, cost[t] + price[tileSlots[cand[t]][0]]);
+    }
+    return best;
+  }
+
+  /**
+   * Lists the k nearest tiles of cell i, giving every tile new to the list a
+   * slot for the cell while it has fewer than the capacity.
+   */
+  private void fetchCandidates(int i, int k) {
+    List<MosaicTile> nearest = tree.findKNearest(targets[i], k < sources.size() ? k + 1 : k);
+    seenStamp++;
+    if (candidates[i] != null) {
+      for (int tile : candidates[i]) {
+        seen[tile] = seenStamp;
+      }
+    }
+    int[] cand = new int[k];
+    double[] cost = new double[k];
+    for (int t = 0; t < k; t++) {
+      MosaicTile tile = nearest.get(t);
+      cand[t] = sourceIndex.get(tile);
+      cost[t] = MosaicTile.getDistance(targets[i], tile);
+      if (seen[cand[t]] != seenStamp && ++listedBy[cand[t]] <= capacity) {
+        addSlot(cand[t]);
+      }
+    }
+    candidates[i] = cand;
+    costs[i] = cost;
+    bound[i] = nearest.size() > k ? MosaicTile.getDistance(targets[i], nearest.get(k)) : Double.POSITIVE_INFINITY;
+  }
+
+}
@@ -0,0 +1,103 @@
+package com.gream.mosaic.matching;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.gream.mosaic.datastructures.KdTree;
+import com.gream.mosaic.domainobjects.MosaicTile;
+import com.gream.mosaic.utils.ColorMetric;
+
+/**
+ * Two-stage candidate search for matching with a perceptual color metric.
+ * The kd-tree can only prune on plain LAB distance, so it supplies the
+ * {@value #CANDIDATES} nearest tiles by CIE76 and those are re-ranked with the
+ * chosen metric.
+ *
+ * Rankings are cached per quantised target colour: every RGB channel is cut
+ * to {@value #QUANTISATION_BITS} bits and the ranking is computed for the
+ * centre of that cell, so it does not depend on which target asked first.
+ * Mosaic sections have few distinct average colours, so after a short warm-up
+ * most lookups are a single map access. A ranker only depends on the library
+ * and the metric; it is thread safe and is shared by all renders.
+ */
+public class CandidateRanker {
+
+  static final int CANDIDATES = 16;
+  static final int QUANTISATION_BITS = 6;
+
+  private static final int SHIFT = 8 - QUANTISATION_BITS;
+
+  private final KdTree tree;
+  private final ColorMetric metric;
+  private final ConcurrentMap<Integer, MosaicTile[]> rankings = new ConcurrentHashMap<Integer, MosaicTile[]>();
+
+  public CandidateRanker(KdTree tree, ColorMetric metric) {
+    this.tree = tree;
+    this.metric = metric;
+  }
+
+  public ColorMetric getMetric() {
+    return metric;
+  }
+
+  /**
+   * @return the cached candidates for the target's colour cell, best first, or
+   *         null if they have not been ranked yet
+   */
+  public MosaicTile[] getCached(MosaicTile target) {
+    return rankings.get(key(target));
+  }
+
+  /**
+   * @return the candidates for the target's colour cell, best first by the
+   *         metric; ranked now unless cached
+   */
+  public MosaicTile[] rank(MosaicTile target) {
+    Integer key = key(target);
+    MosaicTile[] ranking = rankings.get(key);
+    if (ranking == null) {
+      ranking = computeRanking(key);
+      // Two threads may rank the same cell; both get the same answer
+      rankings.putIfAbsent(key, ranking);
+    }
+    return ranking;
+  }
+
+  /**
+   * @return the number of colour cells ranked so far
+   */
+  public int size() {
+    return rankings.size();
+  }
+
+  private static Integer key(MosaicTile target) {
+    return ((target.getR() >> SHIFT) << (2 * QUANTISATION_BITS)) | ((target.getG() >> SHIFT) << QUANTISATION_BITS)
+        | (target.getB() >> SHIFT);
+  }
+
+  private MosaicTile[] computeRanking(int key) {
+    int mask = (1 << QUANTISATION_BITS) - 1;
+    int half = (1 << SHIFT) >> 1;
+    MosaicTile centre = new MosaicTile((((key >> (2 * QUANTISATION_BITS)) & mask) << SHIFT) + half,
+        (((key >> QUANTISATION_BITS) & mask) << SHIFT) + half, ((key & mask) << SHIFT) + half);
+
+    List<MosaicTile> nearest = tree.findKNearest(centre, CANDIDATES);
+    MosaicTile[] ranking = nearest.toArray(new MosaicTile[nearest.size()]);
+    double[] lab = centre.getLabColor();
+    final double[] differences = new double[ranking.length];
+    Integer[] order = new Integer[ranking.length];
+    for (int i = 0; i < ranking.length; i++) {
+      differences[i] = metric.difference(lab, ranking[i].getLabColor());
+      order[i] = i;
+    }
+    // Stable, so ties keep the CIE76 order
+    Arrays.sort(order, (i, j) -> Double.compare(differences[i], differences[j]));
+    MosaicTile[] sorted = new MosaicTile[ranking.length];
+    for (int i = 0; i < sorted.length; i++) {
+      sorted[i] = ranking[order[i]];
+    }
+    return sorted;
+  }
+}
@@ -0,0 +1,386 @@
+package com.gream.mosaic.matching;
+
+import java.util.BitSet;
+
+import com.gream.mosaic.MosaicOptions;
+import com.gream.mosaic.datastructures.KdTree;
+import com.gream.mosaic.datastructures.MosaicBinaryTree;
+import com.gream.mosaic.datastructures.MosaicNode;
+import com.gream.mosaic.datastructures.TileOccupancy;
+import com.gream.mosaic.datastructures.TreeOverlay;
+import com.gream.mosaic.datastructures.VpTree;
+import com.gream.mosaic.domainobjects.MosaicTile;
+import com.gream.mosaic.logging.Reporter;
+
+/**
+ * Hands out source tiles cell by cell in scan order, picking the closest tile
+ * that respects the diversity radius, adjacency ban and usage limits. The
+ * trees are only read; everything a render changes lives in the matcher's own
+ * overlays, so a new matcher is needed for every mosaic and any number of
+ * matchers can share the trees.
+ */
+public class GreedyMatcher {
+
+  private final int tiles;
+  private final MosaicBinaryTree tree;
+  private final TreeOverlay overlay;
+  private final MosaicOptions options;
+  private final TileOccupancy occupancy;
+  private final Reporter log;
+
+  // A usage limit is enforced by a capacity-aware index rather than by stale
+  // flags on the tree; the same index serves approximate searches. Noise only
+  // steers the tree, so with -noise a usage limit stays on the tree.
+  private final KdTree kdTree;
+  private final KdTree.Capacity capacity;
+
+  // With a perceptual metric, candidates come re-ranked from here first
+  private final CandidateRanker ranker;
+
+  // With colour grids, candidates come from the nearest grids instead
+  private final VpTree gridTree;
+
+  private int exhaustedTiles; // on the tree
+  private long retries;
+  private boolean warnedOverLimit;
+  private long rankingHits;
+  private long rankingMisses;
+
+  /**
+   * @param tiles  the number of source tiles
+   * @param tree   the binary tree over the source tiles
+   * @param kdTree a kd-tree over the same tiles, used when a usage limit
+   *               without noise, a search budget or a ranker is set
+   * @param ranker   candidates re-ranked with the perceptual metric of the
+   *                 options, null to match on plain LAB distance
+   * @param gridTree an index over the colour grids of the same tiles, used
+   *                 for cells matched with a grid; may be null
+   * @param log      receives warnings and debug output about usage limits
+   */
+  public GreedyMatcher(int tiles, MosaicBinaryTree tree, KdTree kdTree, CandidateRanker ranker, VpTree gridTree,
+      MosaicOptions options, Reporter log) {
+    this.tiles = tiles;
+    this.tree = tree;
+    this.overlay = tree.newOverlay(tiles, options.getNoise());
+    this.options = options;
+    this.occupancy = new TileOccupancy(tiles, options.getBlocks() * options.getBlocks());
+    this.kdTree = kdTree;
+    this.ranker = ranker;
+    this.gridTree = gridTree;
+    this.log = log;
+    if (options.getMaxUsage() > 0 && options.getNoise() == 0 || options.getSearchBudget() > 0 || ranker != null
+        || gridTree != null) {
+      int perTile = options.getMaxUsage() > 0 ? options.getMaxUsage() : Integer.MAX_VALUE;
+      this.capacity = kdTree.newCapacity(options.isConsume() ? 1 : perTile);
+    } else {
+      this.capacity = null;
+    }
+  }
+
+  /**
+   * Picks the tile for the cell at the given grid position and records the
+   * placement.
+   *
+   * @return the index of the chosen source tile
+   * @throws IllegalStateException if the library ran out of images
+   */
+  public int match(MosaicTile targetTile, int row, int col) {
+    return match(targetTile, null, row, col);
+  }
+
+  /**
+   * Like {@link #match(MosaicTile, int, int)}, comparing the colour grid of
+   * the cell with those of the source tiles.
+   *
+   * @param grid [L, a, b] per grid cell, as {@link MosaicTile#getGridLab()};
+   *             null to match on the average colour alone
+   */
+  public int match(MosaicTile targetTile, float[] grid, int row, int col) {
+    MosaicTile match;
+    if (grid != null) {
+      MosaicTile[] candidates = gridTree.findKNearest(grid, CandidateRanker.CANDIDATES, options.getSearchBudget());
+      match = findBestMatchRanked(targetTile, candidates, grid, row, col);
+      capacity.consume(match);
+    } else if (ranker != null) {
+      match = findBestMatchRanked(targetTile, rankedCandidates(targetTile), null, row, col);
+      capacity.consume(match);
+    } else if (capacity != null) {
+      match = findBestMatchWithCapacity(targetTile, row, col);
+      capacity.consume(match);
+    } else if (exhaustedTiles < tiles) {
+      // Tiles rejected for the previous cell are candidates again, consumed
+      // tiles stay stale
+      overlay.clearExclusions();
+      MosaicNode consumeClosest = findBestMatchWithDiversity(targetTile, row, col);
+      match = consumeClosest.getContents();
+      if (options.isConsume()
+          || options.getMaxUsage() > 0 && overlay.getUses(match.getIndex()) + 1 >= options.getMaxUsage()) {
+        overlay.consume(consumeClosest);
+        exhaustedTiles++;
+      }
+    } else {
+      match = findClosestOverLimit(targetTile);
+    }
+
+    // Update usage count
+    int tileIndex = match.getIndex();
+    int newUsageCount = overlay.recordUse(tileIndex);
+
+    if (options.getMaxUsage() > 0 && newUsageCount >= options.getMaxUsage() && log.isDebugEnabled()) {
+      log.debug("Image " + match.getId() + " has reached max usage limit (" + options.getMaxUsage() + ")");
+    }
+
+    occupancy.place(tileIndex, row, col);
+    return tileIndex;
+  }
+
+  /**
+   * @return the number of tree nodes visited by all searches so far
+   */
+  public long getNodesVisited() {
+    return overlay.getNodesVisited() + (capacity != null ? capacity.getNodesVisited() : 0);
+  }
+
+  /**
+   * @return how many approximate searches were repeated exactly to measure
+   *         recall
+   */
+  public long getRecallSamples() {
+    return capacity != null ? capacity.getRecallSamples() : 0;
+  }
+
+  /**
+   * @return how many of the repeated searches had found the nearest tile
+   */
+  public long getRecallHits() {
+    return capacity != null ? capacity.getRecallHits() : 0;
+  }
+
+  /**
+   * @return how often a candidate was rejected for breaking a diversity rule
+   *         and the search was repeated
+   */
+  public long getRetries() {
+    return retries;
+  }
+
+  /**
+   * @return how many cells found their re-ranked candidates in the cache
+   */
+  public long getRankingHits() {
+    return rankingHits;
+  }
+
+  /**
+   * @return how many cells had to rank their candidates first
+   */
+  public long getRankingMisses() {
+    return rankingMisses;
+  }
+
+  /**
+   * @return how often candidates rejected for one cell were released again
+   */
+  public long getStaleResets() {
+    return overlay.getStaleResets();
+  }
+
+  private int checkRadius() {
+    return options.isAdjacencyBan() ? 1 : options.getDiversityRadius();
+  }
+
+  /**
+   * Finds the best matching tile while respecting diversity constraints.
+   * This prevents repetitive patterns and overuse of popular images.
+   */
+  private MosaicNode findBestMatchWithDiversity(MosaicTile targetTile, int row, int col) {
+
+    MosaicNode bestMatch = null;
+    double bestScore = Double.MAX_VALUE;
+    int attempts = 0;
+    int maxAttempts = 100; // Prevent infinite loops
+
+    // Try to find a good match that respects diversity constraints
+    while (attempts < maxAttempts) {
+      MosaicNode candidate = tree.findClosest(targetTile, overlay);
+      if (candidate == null) {
+        break;
+      }
+
+      int tileIndex = candidate.getContents().getIndex();
+      double score = MosaicTile.getDistance(targetTile, candidate.getContents()) + usagePenalty(tileIndex);
+
+      // Apply penalties for diversity violations
+      boolean violatesConstraints = false;
+
+      // Check if image is in the diversity radius (or use adjacency ban if enabled)
+      int checkRadius = checkRadius();
+      if (checkRadius > 0 && occupancy.isWithinRadius(tileIndex, row, col, checkRadius)) {
+        // Penalty increases with distance (closer = bigger penalty)
+        score += occupancy.getPenalty(tileIndex, row, col, checkRadius);
+        violatesConstraints = true;
+      }
+
+      // If this is the best match so far, remember it
+      if (score < bestScore) {
+        bestScore = score;
+        bestMatch = candidate;
+      }
+
+      // If we found a good match without violations, use it
+      if (!violatesConstraints) {
+        break;
+      }
+
+      // Rule this candidate out for this cell and try again
+      overlay.exclude(candidate);
+      attempts++;
+      retries++;
+    }
+
+    // If we couldn't find a good match, use the best one we found
+    if (bestMatch == null) {
+      overlay.clearExclusions();
+      bestMatch = tree.findClosest(targetTile, overlay);
+    }
+
+    return bestMatch;
+  }
+
+  private MosaicTile[] rankedCandidates(MosaicTile targetTile) {
+    MosaicTile[] candidates = ranker.getCached(targetTile);
+    if (candidates != null) {
+      rankingHits++;
+    } else {
+      rankingMisses++;
+      candidates = ranker.rank(targetTile);
+    }
+    return candidates;
+  }
+
+  /**
+   * Walks ranked candidates, best first, skipping exhausted tiles, under the
+   * same diversity rules and usage penalty as
+   * {@link #findBestMatchWithCapacity(MosaicTile, int, int)}. Scores are the
+   * squared perceptual metric, or the mean squared LAB distance per grid cell,
+   * so the penalties keep their weight. When every candidate is used up the
+   * cell falls back to a plain LAB search over the rest.
+   *
+   * @param grid the colour grid of the cell, null to score with the metric
+   */
+  private MosaicTile findBestMatchRanked(MosaicTile targetTile, MosaicTile[] candidates, float[] grid, int row,
+      int col) {
+    double[] targetLab = targetTile.getLabColor();
+    MosaicTile bestMatch = null;
+    double bestScore = Double.MAX_VALUE;
+    int checkRadius = checkRadius();
+
+    for (MosaicTile candidate : candidates) {
+      if (capacity.getRemaining(candidate) == 0) {
+        continue;
+      }
+      int tileIndex = candidate.getIndex();
+      double score;
+      if (grid != null) {
+        score = VpTree.distanceSquared(grid, candidate.getGridLab()) / (grid.length / 3) + usagePenalty(tileIndex);
+      } else {
+        double difference = ranker.getMetric().difference(targetLab, candidate.getLabColor());
+        score = difference * difference + usagePenalty(tileIndex);
+      }
+
+      boolean violatesConstraints = false;
+      if (checkRadius > 0 && occupancy.isWithinRadius(tileIndex, row, col, checkRadius)) {
+        score += occupancy.getPenalty(tileIndex, row, col, checkRadius);
+        violatesConstraints = true;
+      }
+
+      if (score < bestScore) {
+        bestScore = score;
+        bestMatch = candidate;
+      }
+      if (!violatesConstraints) {
+        break;
+      }
+      retries++;
+    }
+
+    return bestMatch != null ? bestMatch : findBestMatchWithCapacity(targetTile, row, col);
+  }
+
+  /**
+   * Finds the best matching tile that still has uses left under -max_usage,
+   * while respecting diversity constraints. Exhausted tiles are pruned by the
+   * index itself, so only diversity violations cause another query. With a
+   * search budget the queries are approximate.
+   *
+   * @throws IllegalStateException if -consume has used up the library
+   */
+  private MosaicTile findBestMatchWithCapacity(MosaicTile targetTile, int row, int col) {
+
+    MosaicTile bestMatch = null;
+    double bestScore = Double.MAX_VALUE;
+    BitSet rejected = null;
+    int checkRadius = checkRadius();
+
+    for (int attempts = 0; attempts < 100; attempts++) {
+      MosaicTile candidate = capacity.findNearestAvailable(targetTile, rejected, options.getSearchBudget());
+      if (candidate == null) {
+        break;
+      }
+
+      int tileIndex = candidate.getIndex();
+      double score = MosaicTile.getDistance(targetTile, candidate) + usagePenalty(tileIndex);
+
+      boolean violatesConstraints = false;
+      if (checkRadius > 0 && occupancy.isWithinRadius(tileIndex, row, col, checkRadius)) {
+        score += occupancy.getPenalty(tileIndex, row, col, checkRadius);
+        violatesConstraints = true;
+      }
+
+      if (score < bestScore) {
+        bestScore = score;
+        bestMatch = candidate;
+      }
+      if (!violatesConstraints) {
+        break;
+      }
+
+      if (rejected == null) {
+        rejected = new BitSet();
+      }
+      rejected.set(tileIndex);
+      retries++;
+    }
+
+    return bestMatch != null ? bestMatch : findClosestOverLimit(targetTile);
+  }
+
+  /**
+   * Falls back to the closest tile once every tile has reached max usage.
+   *
+   * @throws IllegalStateException if -consume has used up the library
+   */
+  private MosaicTile findClosestOverLimit(MosaicTile targetTile) {
+    if (options.isConsume()) {
+      throw new IllegalStateException("We ran out of images! Dang!");
+    }
+    MosaicTile closest = kdTree.findNearest(targetTile);
+    if (!warnedOverLimit) {
+      warnedOverLimit = true;
+      log.warn("All available images have reached the max usage of " + options.getMaxUsage()
+          + "; the remaining tiles use the closest image regardless");
+    } else if (log.isDebugEnabled()) {
+      log.debug("All available images have exceeded max usage. Using image " + closest.getId() + " anyway.");
+    }
+    return closest;
+  }
+
+  /**
+   * @return the small penalty on frequently used images under -max_usage
+   *         (encourages diversity), 0 without a usage limit
+   */
+  private double usagePenalty(int tileIndex) {
+    return options.getMaxUsage() > 0 ? overlay.getUses(tileIndex) * 50.0 : 0;
+  }
+
+}
@@ -0,0 +1,126 @@
+package com.gream.mosaic.matching;
+
+import java.util.BitSet;
+
+import com.gream.mosaic.MosaicOptions;
+import com.gream.mosaic.datastructures.MappedKdTree;
+import com.gream.mosaic.datastructures.TileOccupancy;
+import com.gream.mosaic.domainobjects.MosaicTile;
+import com.gream.mosaic.logging.Reporter;
+
+/**
+ * The greedy matcher for an out-of-core index: hands out tiles cell by cell
+ * in scan order from the {@value #CANDIDATES} nearest of a
+ * {@link MappedKdTree}, under the same diversity radius, adjacency ban and
+ * usage limits as {@link GreedyMatcher}. Tiles that reached their usage limit
+ * are skipped inside the search, so the candidates are always the nearest
+ * tiles still available and a cell is searched only once. Only when every
+ * tile of the library is at the limit is one used beyond it, with a warning;
+ * with {@code -consume} that is an error, as with the in-memory tree.
+ *
+ * Usage counts and placements are kept per tile index, four bytes each, so a
+ * matcher over ten million tiles costs some 40 MB plus 41 MB with a usage
+ * limit. A new matcher is needed for every mosaic.
+ */
+public class MappedMatcher {
+
+  static final int CANDIDATES = 16;
+
+  private final MosaicOptions options;
+  private final TileOccupancy occupancy;
+  private final MappedKdTree.Search search;
+  private final int[] uses; // null without a usage limit
+  private final BitSet exhausted; // tiles at the usage limit
+  private final int limit;
+  private final Reporter log;
+
+  private long retries;
+  private boolean warnedOverLimit;
+
+  /**
+   * @param cells the number of cells of the mosaic
+   */
+  public MappedMatcher(MappedKdTree tree, int cells, MosaicOptions options, Reporter log) {
+    this.options = options;
+    this.occupancy = new TileOccupancy(tree.size(), cells);
+    this.search = tree.newSearch(CANDIDATES);
+    this.limit = options.isConsume() ? 1 : options.getMaxUsage();
+    this.uses = limit > 0 ? new int[tree.size()] : null;
+    this.exhausted = limit > 0 ? new BitSet(tree.size()) : null;
+    search.setExcluded(exhausted);
+    this.log = log;
+  }
+
+  /**
+   * Picks the tile for the cell at the given grid position and records the
+   * placement.
+   *
+   * @return the index of the chosen source tile
+   * @throws IllegalStateException if the library ran out of images
+   */
+  public int match(MosaicTile targetTile, int row, int col) {
+    int checkRadius = options.isAdjacencyBan() ? 1 : options.getDiversityRadius();
+    search.find(targetTile.getLabColor());
+    int best = -1;
+    double bestScore = Double.MAX_VALUE;
+    for (int i = 0; i < search.size(); i++) {
+      int tile = search.tile(i);
+      double score = search.distance(i);
+      if (uses != null) {
+        // Small penalty for frequently used images, as in GreedyMatcher
+        score += uses[tile] * 50.0;
+      }
+      boolean violatesConstraints = false;
+      if (checkRadius > 0 && occupancy.isWithinRadius(tile, row, col, checkRadius)) {
+        score += occupancy.getPenalty(tile, row, col, checkRadius);
+        violatesConstraints = true;
+      }
+      if (score < bestScore) {
+        bestScore = score;
+        best = tile;
+      }
+      if (!violatesConstraints) {
+        break;
+      }
+      retries++;
+    }
+
+    if (best < 0 && options.isConsume()) {
+      throw new IllegalStateException("We ran out of images! Dang!");
+    } else if (best < 0) {
+      // Every image of the library has reached max usage - use the closest
+      // one anyway
+      search.setExcluded(null);
+      search.find(targetTile.getLabColor());
+      search.setExcluded(exhausted);
+      best = search.tile(0);
+      if (!warnedOverLimit) {
+        warnedOverLimit = true;
+        log.warn("All " + uses.length + " images have reached the max usage of " + limit
+            + "; the remaining tiles use the closest image regardless");
+      }
+    }
+
+    if (uses != null && ++uses[best] >= limit) {
+      exhausted.set(best);
+    }
+    occupancy.place(best, row, col);
+    return best;
+  }
+
+  /**
+   * @return how often a candidate was rejected for breaking a diversity rule
+   */
+  public long getRetries() {
+    return retries;
+  }
+
+  public long getPageHits() {
+    return search.getPageHits();
+  }
+
+  public long getPageMisses() {
+    return search.getPageMisses();
+  }
+
+}
@@ -0,0 +1,305 @@
+package com.gream.mosaic.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Wall and CPU time per phase plus a set of counters, cheap enough to leave on:
+ * a phase costs two clock reads at either end, and the hot loops count into
+ * plain fields of their own and add the totals here once per job. Safe to
+ * share between concurrent jobs.
+ */
+public class Metrics {
+
+  public enum Phase {
+    INDEX("index"),
+    LOAD_INDEX("loadIndex"),
+    DECODE("decode"),
+    THUMBNAILS("thumbnails"),
+    MATCH("match"),
+    PREVIEW("preview"),
+    RENDER("render"),
+    ENCODE("encode");
+
+    private final String key;
+
+    Phase(String key) {
+      this.key = key;
+    }
+  }
+
+  public enum Counter {
+    FILES_DECODED("filesDecoded"),
+    FILES_SKIPPED("filesSkipped"),
+    JPEG_DC_ANALYSED("jpegDcAnalysed"),
+    NEAR_DUPLICATES("nearDuplicatesRemoved"),
+    THUMBNAIL_HITS("thumbnailCacheHits"),
+    THUMBNAIL_MISSES("thumbnailCacheMisses"),
+    NODES_VISITED("treeNodesVisited"),
+    RETRIES("findClosestRetries"),
+    STALE_RESETS("staleResets"),
+    RECALL_SAMPLES("approximateRecallSamples"),
+    RECALL_HITS("approximateRecallHits"),
+    RANKING_HITS("rankingCacheHits"),
+    RANKING_MISSES("rankingCacheMisses"),
+    PAGE_HITS("pageCacheHits"),
+    PAGE_MISSES("pageCacheMisses"),
+    BYTES_WRITTEN("bytesWritten"),
+    MOSAICS("mosaicsRendered");
+
+    private final String key;
+
+    Counter(String key) {
+      this.key = key;
+    }
+  }
+
+  /**
+   * The hand-over queues of a pipelined run, named after the stage that takes
+   * from them. A queue that is mostly full has a slow consumer, one that is
+   * mostly empty a slow producer.
+   */
+  public enum Queue {
+    THUMBNAILS("thumbnails"),
+    RENDER("render"),
+    ENCODE("encode");
+
+    private final String key;
+
+    Queue(String key) {
+      this.key = key;
+    }
+  }
+
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+  private static final boolean CPU_TIME = THREADS.isCurrentThreadCpuTimeSupported();
+
+  private final LongAdder[] phaseCount = adders(Phase.values().length);
+  private final LongAdder[] phaseWall = adders(Phase.values().length);
+  private final LongAdder[] phaseCpu = adders(Phase.values().length);
+  private final LongAdder[] counters = adders(Counter.values().length);
+  private final LongAdder[] queuePuts = adders(Queue.values().length);
+  private final LongAdder[] queueDepths = adders(Queue.values().length);
+  private final LongAdder[] queueFullWaits = adders(Queue.values().length);
+  private final LongAdder[] queueEmptyWaits = adders(Queue.values().length);
+  private final LongAccumulator[] queueMaxDepth = maxima(Queue.values().length);
+
+  private static LongAdder[] adders(int n) {
+    LongAdder[] adders = new LongAdder[n];
+    for (int i = 0; i < n; i++) {
+      adders[i] = new LongAdder();
+    }
+    return adders;
+  }
+
+  private static LongAccumulator[] maxima(int n) {
+    LongAccumulator[] maxima = new LongAccumulator[n];
+    for (int i = 0; i < n; i++) {
+      maxima[i] = new LongAccumulator(Math::max, 0);
+    }
+    return maxima;
+  }
+
+  /**
+   * Starts timing a phase on the current thread. Phases may nest; each is
+   * accounted in full.
+   */
+  public Timer start(Phase phase) {
+    return new Timer(phase, false);
+  }
+
+  /**
+   * Starts counting the CPU time of the current thread towards a phase that is
+   * timed on another thread, e.g. by a pool thread doing part of its work. Only
+   * the CPU time is added; the phase's count and wall time are the timer's.
+   */
+  public Timer startWorker(Phase phase) {
+    return new Timer(phase, true);
+  }
+
+  /**
+   * Adds CPU time spent on a phase by threads that measured it themselves, see
+   * {@link #currentThreadCpuNanos()}.
+   */
+  public void addCpuNanos(Phase phase, long nanos) {
+    phaseCpu[phase.ordinal()].add(nanos);
+  }
+
+  /**
+   * @return the CPU time of the current thread so far, 0 if the JVM cannot
+   *         measure it
+   */
+  public static long currentThreadCpuNanos() {
+    return CPU_TIME ? THREADS.getCurrentThreadCpuTime() : 0;
+  }
+
+  public void increment(Counter counter) {
+    counters[counter.ordinal()].increment();
+  }
+
+  public void add(Counter counter, long amount) {
+    counters[counter.ordinal()].add(amount);
+  }
+
+  public long get(Counter counter) {
+    return counters[counter.ordinal()].sum();
+  }
+
+  /**
+   * Records an item put on a queue.
+   *
+   * @param depth  the items in the queue after the put
+   * @param waited whether the producer had to wait for room
+   */
+  public void recordPut(Queue queue, int depth, boolean waited) {
+    int i = queue.ordinal();
+    queuePuts[i].increment();
+    queueDepths[i].add(depth);
+    queueMaxDepth[i].accumulate(depth);
+    if (waited) {
+      queueFullWaits[i].increment();
+    }
+  }
+
+  /**
+   * Records that the consumer of a queue found it empty and had to wait.
+   */
+  public void recordEmptyWait(Queue queue) {
+    queueEmptyWaits[queue.ordinal()].increment();
+  }
+
+  public long getPuts(Queue queue) {
+    return queuePuts[queue.ordinal()].sum();
+  }
+
+  /**
+   * @return the mean number of items in the queue right after a put
+   */
+  public double getMeanDepth(Queue queue) {
+    long puts = getPuts(queue);
+    return puts == 0 ? 0 : (double) queueDepths[queue.ordinal()].sum() / puts;
+  }
+
+  public long getMaxDepth(Queue queue) {
+    return queueMaxDepth[queue.ordinal()].get();
+  }
+
+  /**
+   * @return how often the producer found the queue full
+   */
+  public long getFullWaits(Queue queue) {
+    return queueFullWaits[queue.ordinal()].sum();
+  }
+
+  /**
+   * @return how often the consumer found the queue empty
+   */
+  public long getEmptyWaits(Queue queue) {
+    return queueEmptyWaits[queue.ordinal()].sum();
+  }
+
+  /**
+   * @return the number of times the phase ran
+   */
+  public long getCount(Phase phase) {
+    return phaseCount[phase.ordinal()].sum();
+  }
+
+  /**
+   * @return the wall time of all runs of the phase; overlapping runs on
+   *         different threads are all counted
+   */
+  public long getWallNanos(Phase phase) {
+    return phaseWall[phase.ordinal()].sum();
+  }
+
+  /**
+   * @return the CPU time of all runs of the phase: that of the threads timing
+   *         it plus that of the workers helping them, as far as they were
+   *         counted with {@link #startWorker(Phase)} or
+   *         {@link #addCpuNanos(Phase, long)}; 0 if the JVM cannot measure
+   *         thread CPU time
+   */
+  public long getCpuNanos(Phase phase) {
+    return phaseCpu[phase.ordinal()].sum();
+  }
+
+  /**
+   * A running phase, or a worker's share of one. Use with try-with-resources.
+   */
+  public class Timer implements AutoCloseable {
+
+    private final Phase phase;
+    private final boolean worker;
+    private final long wallStart;
+    private final long cpuStart;
+
+    private Timer(Phase phase, boolean worker) {
+      this.phase = phase;
+      this.worker = worker;
+      this.cpuStart = currentThreadCpuNanos();
+      this.wallStart = System.nanoTime();
+    }
+
+    @Override
+    public void close() {
+      long wall = System.nanoTime() - wallStart;
+      long cpu = currentThreadCpuNanos() - cpuStart;
+      int i = phase.ordinal();
+      if (!worker) {
+        phaseCount[i].increment();
+        phaseWall[i].add(wall);
+      }
+      phaseCpu[i].add(cpu);
+    }
+  }
+
+  public String toJson() {
+    StringBuilder json = new StringBuilder("{\n  \"phases\": {");
+    boolean first = true;
+    for (Phase phase : Phase.values()) {
+      if (getCount(phase) == 0) {
+        continue;
+      }
+      json.append(first ? "\n" : ",\n");
+      first = false;
+      json.append(String.format(Locale.ROOT, "    \"%s\": {\"count\": %d, \"wallMillis\": %.3f, \"cpuMillis\": %.3f}",
+          phase.key, getCount(phase), getWallNanos(phase) / 1e6, getCpuNanos(phase) / 1e6));
+    }
+    json.append(first ? "},\n" : "\n  },\n");
+    json.append("  \"counters\": {");
+    first = true;
+    for (Counter counter : Counter.values()) {
+      json.append(first ? "\n" : ",\n");
+      first = false;
+      json.append("    \"").append(counter.key).append("\": ").append(get(counter));
+    }
+    json.append("\n  }");
+    first = true;
+    for (Queue queue : Queue.values()) {
+      if (getPuts(queue) == 0) {
+        continue;
+      }
+      json.append(first ? ",\n  \"queues\": {\n" : ",\n");
+      first = false;
+      json.append(String.format(Locale.ROOT,
+          "    \"%s\": {\"puts\": %d, \"meanDepth\": %.2f, \"maxDepth\": %d, \"fullWaits\": %d, \"emptyWaits\": %d}",
+          queue.key, getPuts(queue), getMeanDepth(queue), getMaxDepth(queue), getFullWaits(queue),
+          getEmptyWaits(queue)));
+    }
+    json.append(first ? "\n}\n" : "\n  }\n}\n");
+    return json.toString();
+  }
+
+  public void writeJson(File file) throws IOException {
+    Files.write(file.toPath(), toJson().getBytes(StandardCharsets.UTF_8));
+  }
+
+}
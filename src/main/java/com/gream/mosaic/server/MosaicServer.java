@@ -0,0 +1,514 @@
+package com.gream.mosaic.server;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import com.gream.mosaic.MosaicEngine;
+import com.gream.mosaic.MosaicException;
+import com.gream.mosaic.MosaicOptions;
+import com.gream.mosaic.MosaicPlan;
+import com.gream.mosaic.logging.Reporter;
+import com.gream.mosaic.metrics.Metrics;
+import com.gream.mosaic.utils.ColorMetric;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Keeps a {@link MosaicEngine} warm and renders mosaics over HTTP, so a request
+ * only pays for matching and rendering.
+ *
+ * <pre>
+ * POST /render?blocks=50&amp;tint=40&amp;circle=true    body: the input image
+ * GET  /status
+ * GET  /metrics
+ * </pre>
+ *
+ * The render options use the command line names without the dash. The encoded
+ * mosaic is returned in the response; nothing is written on the server. Stage
+ * timings are reported in a {@code Server-Timing} header. At most
+ * {@code workers} jobs render at the same time and at most {@code queue} more
+ * wait; further requests get a 503. When the library's image cache changes on
+ * disk the index is reloaded; jobs that already started finish against the
+ * index they started with. Requests are not authenticated, so the server only
+ * listens on the loopback address unless {@code -bind} says otherwise.
+ */
+public class MosaicServer {
+
+  private static final int MAX_INPUT_BYTES = 64 * 1024 * 1024;
+
+  @Option(name = "-dir", aliases = "-d", required = true, usage = "The directory in which the source images are located.")
+  private String directory;
+
+  @Option(name = "-port", usage = "The port to listen on. Defaults to 8080.")
+  private int port = 8080;
+
+  @Option(name = "-bind", aliases = "-b", usage = "The address to listen on, e.g. 0.0.0.0 for every interface. Requests are not authenticated, so only widen this on a trusted network. Defaults to the loopback address.")
+  private String bind;
+
+  @Option(name = "-workers", aliases = "-w", usage = "The number of mosaics rendered at the same time. Defaults to the number of processors.")
+  private int workers = Runtime.getRuntime().availableProcessors();
+
+  @Option(name = "-queue", aliases = "-q", usage = "The number of jobs that may wait for a worker before requests are turned away. Defaults to 16.")
+  private int queueCapacity = 16;
+
+  @Option(name = "-timeout", usage = "Seconds a request waits for its mosaic before giving up. Defaults to 120.")
+  private int timeoutSeconds = 120;
+
+  @Option(name = "-reload_interval", aliases = "-ri", usage = "Seconds between checks of the image cache for changes. 0 disables hot reload. Defaults to 5.")
+  private int reloadSeconds = 5;
+
+  @Option(name = "-thumbnail_cache", aliases = "-tc", usage = "The memory in MB kept for source images scaled to the tile size, shared by requests with the same tile size. Defaults to 256.")
+  private int thumbnailCacheMb = 256;
+
+  @Option(name = "-verbose", aliases = "-v", usage = "Enables verbose output.")
+  private boolean verbose;
+
+  private Reporter log;
+  private volatile MosaicEngine engine;
+  private long indexModified;
+  private long indexLength;
+
+  private ThreadPoolExecutor jobs;
+  private ExecutorService connections;
+  private ScheduledExecutorService watcher;
+  private HttpServer http;
+
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+
+  // Kept across index reloads
+  private final Metrics metrics = new Metrics();
+
+  /**
+   * Loads the index (building the image cache if there is none) and starts
+   * listening.
+   */
+  public void start() throws IOException, MosaicException {
+    log = new Reporter(System.out, System.err, verbose ? Reporter.Level.DEBUG : Reporter.Level.INFO, 200);
+    MosaicEngine first = new MosaicEngine(directory);
+    first.setReporter(log);
+    first.setMetrics(metrics);
+    if (!first.getImageCacheFile().exists()) {
+      first.buildIndex();
+    }
+    loadEngine();
+
+    jobs = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(Math.max(1, queueCapacity)));
+    // One connection thread per job that can be admitted, plus a few to turn
+    // away the rest quickly
+    connections = Executors.newFixedThreadPool(workers + queueCapacity + 2);
+
+    InetAddress address = bind != null ? InetAddress.getByName(bind) : InetAddress.getLoopbackAddress();
+    http = HttpServer.create(new InetSocketAddress(address, port), 0);
+    http.createContext("/render", new RenderHandler());
+    http.createContext("/status", new StatusHandler());
+    http.createContext("/metrics", new MetricsHandler());
+    http.setExecutor(connections);
+    http.start();
+
+    if (reloadSeconds > 0) {
+      watcher = Executors.newSingleThreadScheduledExecutor();
+      watcher.scheduleWithFixedDelay(new Runnable() {
+
+        public void run() {
+          reloadIfChanged();
+        }
+      }, reloadSeconds, reloadSeconds, TimeUnit.SECONDS);
+    }
+
+    log.info("Serving " + engine.getTiles().size() + " source images on " + address.getHostAddress() + ":" + port
+        + " with " + workers + " workers");
+  }
+
+  public void stop() {
+    if (http != null) {
+      http.stop(0);
+    }
+    if (watcher != null) {
+      watcher.shutdownNow();
+    }
+    if (jobs != null) {
+      jobs.shutdownNow();
+    }
+    if (connections != null) {
+      connections.shutdownNow();
+    }
+    if (log != null) {
+      log.close();
+    }
+  }
+
+  private synchronized void loadEngine() throws MosaicException {
+    MosaicEngine fresh = new MosaicEngine(directory);
+    // Requests are not worth a progress line each
+    fresh.setReporter(log.withLevel(Reporter.Level.WARN));
+    fresh.setMetrics(metrics);
+    fresh.setThumbnailCacheBytes((long) Math.max(0, thumbnailCacheMb) << 20);
+    File cache = fresh.getImageCacheFile();
+    long modified = cache.lastModified();
+    long length = cache.length();
+    fresh.loadIndex();
+    indexModified = modified;
+    indexLength = length;
+    engine = fresh;
+  }
+
+  /**
+   * Swaps in a freshly loaded index when the image cache changed since it was
+   * last read. On failure the current index stays in use.
+   */
+  synchronized void reloadIfChanged() {
+    File cache = engine.getImageCacheFile();
+    if (!cache.exists() || (cache.lastModified() == indexModified && cache.length() == indexLength)) {
+      return;
+    }
+    try {
+      loadEngine();
+      log.info("Reloaded index: " + engine.getTiles().size() + " source images");
+    } catch (MosaicException e) {
+      log.warn("Failed to reload index, keeping the previous one: " + e.getMessage());
+    }
+  }
+
+  /**
+   * A render job and the time spent in each of its stages.
+   */
+  private static class RenderJob implements Callable<byte[]> {
+
+    private final MosaicEngine engine;
+    private final byte[] input;
+    private final MosaicOptions options;
+    private final String format;
+    private final long submitted = System.nanoTime();
+
+    long queueNanos;
+    long decodeNanos;
+    long matchNanos;
+    long renderNanos;
+    long encodeNanos;
+
+    RenderJob(MosaicEngine engine, byte[] input, MosaicOptions options, String format) {
+      this.engine = engine;
+      this.input = input;
+      this.options = options;
+      this.format = format;
+    }
+
+    public byte[] call() throws Exception {
+      long start = System.nanoTime();
+      queueNanos = start - submitted;
+
+      BufferedImage img;
+      try {
+        img = engine.readInput(new ByteArrayInputStream(input));
+      } catch (MosaicException e) {
+        throw new MosaicException("The request body is not a readable image", e);
+      }
+      long decoded = System.nanoTime();
+      decodeNanos = decoded - start;
+
+      MosaicPlan plan = engine.match(img, options);
+      long matched = System.nanoTime();
+      matchNanos = matched - decoded;
+
+      BufferedImage rendered = engine.render(plan, options);
+      long done = System.nanoTime();
+      renderNanos = done - matched;
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      engine.encode(rendered, format, out);
+      encodeNanos = System.nanoTime() - done;
+      return out.toByteArray();
+    }
+
+    String serverTiming() {
+      return "queue;dur=" + millis(queueNanos) + ", decode;dur=" + millis(decodeNanos) + ", match;dur="
+          + millis(matchNanos) + ", render;dur=" + millis(renderNanos) + ", encode;dur=" + millis(encodeNanos);
+    }
+
+    private static String millis(long nanos) {
+      return String.format(Locale.ROOT, "%.1f", nanos / 1e6);
+    }
+  }
+
+  private class RenderHandler implements HttpHandler {
+
+    public void handle(HttpExchange exchange) throws IOException {
+      try {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+          exchange.getResponseHeaders().set("Allow", "POST");
+          respond(exchange, 405, "text/plain", "Use POST with the input image as the body\n");
+          return;
+        }
+
+        Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+        MosaicOptions options;
+        try {
+          options = toOptions(params);
+        } catch (IllegalArgumentException e) {
+          respond(exchange, 400, "text/plain", e.getMessage() + "\n");
+          return;
+        }
+        String format = params.containsKey("format") ? params.get("format").toLowerCase() : "png";
+        if (format.equals("jpg")) {
+          format = "jpeg";
+        }
+
+        byte[] input = readBody(exchange.getRequestBody());
+        if (input == null) {
+          respond(exchange, 413, "text/plain", "Input images are limited to " + MAX_INPUT_BYTES + " bytes\n");
+          return;
+        }
+
+        RenderJob job = new RenderJob(engine, input, options, format);
+        Future<byte[]> result;
+        try {
+          result = jobs.submit(job);
+        } catch (RejectedExecutionException e) {
+          rejected.incrementAndGet();
+          exchange.getResponseHeaders().set("Retry-After", "1");
+          respond(exchange, 503, "text/plain", "The job queue is full\n");
+          return;
+        }
+
+        byte[] encoded;
+        try {
+          encoded = result.get(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+          result.cancel(true);
+          failed.incrementAndGet();
+          respond(exchange, 504, "text/plain", "The mosaic was not ready within " + timeoutSeconds + " seconds\n");
+          return;
+        } catch (ExecutionException e) {
+          failed.incrementAndGet();
+          Throwable cause = e.getCause();
+          int status = cause instanceof MosaicException ? 422 : 500;
+          respond(exchange, status, "text/plain", cause.getMessage() + "\n");
+          return;
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          result.cancel(true);
+          respond(exchange, 503, "text/plain", "The server is shutting down\n");
+          return;
+        }
+
+        completed.incrementAndGet();
+        exchange.getResponseHeaders().set("Server-Timing", job.serverTiming());
+        respond(exchange, 200, "image/" + format, encoded);
+      } catch (RuntimeException e) {
+        failed.incrementAndGet();
+        respond(exchange, 500, "text/plain", e + "\n");
+      }
+    }
+  }
+
+  private class StatusHandler implements HttpHandler {
+
+    public void handle(HttpExchange exchange) throws IOException {
+      MosaicEngine current = engine;
+      String json = "{\"tiles\":" + current.getTiles().size()
+          + ",\"workers\":" + workers
+          + ",\"active\":" + jobs.getActiveCount()
+          + ",\"queued\":" + jobs.getQueue().size()
+          + ",\"queueCapacity\":" + queueCapacity
+          + ",\"completed\":" + completed.get()
+          + ",\"failed\":" + failed.get()
+          + ",\"rejected\":" + rejected.get() + "}\n";
+      respond(exchange, 200, "application/json", json);
+    }
+  }
+
+  private class MetricsHandler implements HttpHandler {
+
+    public void handle(HttpExchange exchange) throws IOException {
+      respond(exchange, 200, "application/json", metrics.toJson());
+    }
+  }
+
+  /**
+   * Builds render options from query parameters named like the command line
+   * options.
+   *
+   * @throws IllegalArgumentException on an unknown parameter or a malformed
+   *                                  value
+   */
+  static MosaicOptions toOptions(Map<String, String> params) {
+    MosaicOptions options = new MosaicOptions();
+    for (Map.Entry<String, String> param : params.entrySet()) {
+      String value = param.getValue();
+      try {
+        switch (param.getKey()) {
+        case "blocks":
+          options.setBlocks(Integer.parseInt(value));
+          break;
+        case "noise":
+          options.setNoise(Double.parseDouble(value));
+          break;
+        case "tint":
+          options.setTint(Integer.parseInt(value));
+          break;
+        case "padding":
+          options.setPadding(Integer.parseInt(value));
+          break;
+        case "stroke":
+          options.setStroke(Integer.parseInt(value));
+          break;
+        case "circle":
+          options.setCircle(Boolean.parseBoolean(value));
+          break;
+        case "consume":
+          options.setConsume(Boolean.parseBoolean(value));
+          break;
+        case "adjacency_ban":
+          options.setAdjacencyBan(Boolean.parseBoolean(value));
+          break;
+        case "diversity_radius":
+          options.setDiversityRadius(Integer.parseInt(value));
+          break;
+        case "max_usage":
+          options.setMaxUsage(Integer.parseInt(value));
+          break;
+        case "optimal":
+          options.setOptimal(Boolean.parseBoolean(value));
+          break;
+        case "search_budget":
+          options.setSearchBudget(Integer.parseInt(value));
+          break;
+        case "grid":
+          options.setGrid(Integer.parseInt(value));
+          break;
+        case "adaptive":
+          options.setAdaptiveLevels(Integer.parseInt(value));
+          break;
+        case "adaptive_threshold":
+          options.setAdaptiveThreshold(Double.parseDouble(value));
+          break;
+        case "color_metric":
+          options.setColorMetric(toColorMetric(value));
+          break;
+        case "format":
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown parameter: " + param.getKey());
+        }
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Bad value for " + param.getKey() + ": " + value);
+      }
+    }
+    return options;
+  }
+
+  private static ColorMetric toColorMetric(String value) {
+    try {
+      return ColorMetric.valueOf(value.toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Bad value for color_metric: " + value);
+    }
+  }
+
+  private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+    Map<String, String> params = new HashMap<String, String>();
+    if (query == null || query.isEmpty()) {
+      return params;
+    }
+    for (String pair : query.split("&")) {
+      int eq = pair.indexOf('=');
+      String key = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+      String value = eq < 0 ? "true" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+      params.put(key, value);
+    }
+    return params;
+  }
+
+  /**
+   * @return the body, or null if it is larger than {@link #MAX_INPUT_BYTES}
+   */
+  private static byte[] readBody(InputStream in) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int length;
+    while ((length = in.read(buffer)) != -1) {
+      body.write(buffer, 0, length);
+      if (body.size() > MAX_INPUT_BYTES) {
+        return null;
+      }
+    }
+    return body.toByteArray();
+  }
+
+  private static void respond(HttpExchange exchange, int status, String contentType, String body)
+      throws IOException {
+    respond(exchange, status, contentType + "; charset=utf-8", body.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static void respond(HttpExchange exchange, int status, String contentType, byte[] body)
+      throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.sendResponseHeaders(status, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  @SuppressWarnings("deprecation")
+  public static void main(String[] args) {
+    final MosaicServer server = new MosaicServer();
+    CmdLineParser parser = new CmdLineParser(server);
+    try {
+      parser.parseArgument(args);
+    } catch (CmdLineException e) {
+      System.err.println(e.getMessage());
+      System.err.println("java -cp PictureMosaic.jar " + MosaicServer.class.getName() + " [options...]");
+      parser.printUsage(System.err);
+      return;
+    }
+
+    try {
+      server.start();
+    } catch (MosaicException | IOException e) {
+      System.err.println("[ERROR] " + e.getMessage());
+      server.stop();
+      System.exit(-1);
+    }
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+
+      @Override
+      public void run() {
+        server.stop();
+      }
+    });
+  }
+
+}
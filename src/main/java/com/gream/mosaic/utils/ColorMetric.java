@@ -0,0 +1,40 @@
+package com.gream.mosaic.utils;
+
+/**
+ * The color difference formulas tiles can be matched with. The trees only
+ * prune on {@link #CIE76}, the plain distance in LAB space; the others are
+ * used to re-rank the closest candidates it finds.
+ */
+public enum ColorMetric {
+
+    /** Euclidean distance in LAB space */
+    CIE76 {
+        @Override
+        public double difference(double[] reference, double[] sample) {
+            return ColorSpaceUtils.getDeltaE(reference, sample);
+        }
+    },
+
+    /** CIE94 with the graphic arts weights */
+    CIE94 {
+        @Override
+        public double difference(double[] reference, double[] sample) {
+            return ColorSpaceUtils.getDeltaE94(reference, sample);
+        }
+    },
+
+    /** CIEDE2000 */
+    CIEDE2000 {
+        @Override
+        public double difference(double[] reference, double[] sample) {
+            return ColorSpaceUtils.getDeltaE2000(reference, sample);
+        }
+    };
+
+    /**
+     * @param reference LAB color [L, a, b], e.g. the section being replaced
+     * @param sample    LAB color [L, a, b], e.g. a candidate tile
+     * @return the Delta E between the two colors
+     */
+    public abstract double difference(double[] reference, double[] sample);
+}
@@ -11,6 +11,26 @@ import java.awt.Color;
  */
 public class ColorSpaceUtils {
 
+    // D65 reference white point
+    private static final double REF_X = 95.047;
+    private static final double REF_Y = 100.000;
+    private static final double REF_Z = 108.883;
+
+    /**
+     * sRGB channel value [0-255] to linear light, scaled to [0, 100]. Replaces the
+     * three Math.pow gamma calls per conversion with a table lookup; the entries
+     * are computed with exactly the same expression as the reference path.
+     */
+    private static final double[] SRGB_TO_LINEAR = new double[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            double c = i / 255.0;
+            c = (c > 0.04045) ? Math.pow((c + 0.055) / 1.055, 2.4) : c / 12.92;
+            SRGB_TO_LINEAR[i] = c * 100.0;
+        }
+    }
+
     /**
      * Converts RGB color to LAB color space.
      * 
@@ -31,6 +51,78 @@ public class ColorSpaceUtils {
      * @return LAB values as [L, a, b]
      */
     public static double[] rgbToLab(int r, int g, int b) {
+        double[] lab = new double[3];
+        rgbToLab(r, g, b, lab);
+        return lab;
+    }
+
+    /**
+     * Fast, allocation free conversion of RGB values to LAB color space. Gamma
+     * correction goes through a 256 entry table and the cube root through
+     * {@link #fastCbrt(double)}, so the result differs from
+     * {@link #rgbToLabExact(int, int, int)} by less than 1e-9 in each of L, a
+     * and b.
+     *
+     * @param r   Red component [0-255]
+     * @param g   Green component [0-255]
+     * @param b   Blue component [0-255]
+     * @param out array receiving [L, a, b] in its first three slots
+     */
+    public static void rgbToLab(int r, int g, int b, double[] out) {
+        double rLin = SRGB_TO_LINEAR[r & 0xFF];
+        double gLin = SRGB_TO_LINEAR[g & 0xFF];
+        double bLin = SRGB_TO_LINEAR[b & 0xFF];
+
+        double fx = labF((rLin * 0.4124564 + gLin * 0.3575761 + bLin * 0.1804375) / REF_X);
+        double fy = labF((rLin * 0.2126729 + gLin * 0.7151522 + bLin * 0.0721750) / REF_Y);
+        double fz = labF((rLin * 0.0193339 + gLin * 0.1191920 + bLin * 0.9503041) / REF_Z);
+
+        out[0] = (116.0 * fy) - 16.0;
+        out[1] = 500.0 * (fx - fy);
+        out[2] = 200.0 * (fy - fz);
+    }
+
+    /**
+     * Bulk conversion of packed ARGB pixels (as returned by
+     * {@code BufferedImage.getRGB}) to LAB. Allocates nothing; the alpha channel
+     * is ignored.
+     *
+     * @param argb packed pixels
+     * @param out  receives [L, a, b] triplets, must hold at least
+     *             {@code 3 * argb.length} values
+     */
+    public static void rgbToLab(int[] argb, float[] out) {
+        if (out.length < argb.length * 3) {
+            throw new IllegalArgumentException(
+                    "Output holds " + out.length + " values, " + (argb.length * 3) + " needed");
+        }
+        for (int i = 0, o = 0; i < argb.length; i++, o += 3) {
+            int p = argb[i];
+            double rLin = SRGB_TO_LINEAR[(p >> 16) & 0xFF];
+            double gLin = SRGB_TO_LINEAR[(p >> 8) & 0xFF];
+            double bLin = SRGB_TO_LINEAR[p & 0xFF];
+
+            double fx = labF((rLin * 0.4124564 + gLin * 0.3575761 + bLin * 0.1804375) / REF_X);
+            double fy = labF((rLin * 0.2126729 + gLin * 0.7151522 + bLin * 0.0721750) / REF_Y);
+            double fz = labF((rLin * 0.0193339 + gLin * 0.1191920 + bLin * 0.9503041) / REF_Z);
+
+            out[o] = (float) ((116.0 * fy) - 16.0);
+            out[o + 1] = (float) (500.0 * (fx - fy));
+            out[o + 2] = (float) (200.0 * (fy - fz));
+        }
+    }
+
+    /**
+     * Reference RGB to LAB conversion using Math.pow for both the gamma curve
+     * and the cube root. This is the original, slow implementation; it is kept
+     * to validate the accuracy of the fast path.
+     *
+     * @param r Red component [0-255]
+     * @param g Green component [0-255]
+     * @param b Blue component [0-255]
+     * @return LAB values as [L, a, b]
+     */
+    public static double[] rgbToLabExact(int r, int g, int b) {
         // First convert RGB to XYZ
         double[] xyz = rgbToXyz(r, g, b);
 
@@ -38,6 +130,29 @@ public class ColorSpaceUtils {
         return xyzToLab(xyz[0], xyz[1], xyz[2]);
     }
 
+    /**
+     * The CIE L*a*b* companding function on a white-point normalised XYZ value.
+     */
+    private static double labF(double t) {
+        return (t > 0.008856) ? fastCbrt(t) : (7.787 * t + 16.0 / 116.0);
+    }
+
+    /**
+     * Cube root approximation for positive, finite arguments: an exponent
+     * bit-trick initial guess refined by three Newton iterations. Relative error
+     * is below 2e-12 for all normal doubles, i.e. far below float precision.
+     *
+     * @param x value to take the cube root of, must be positive
+     * @return approximate cube root of x
+     */
+    public static double fastCbrt(double x) {
+        double y = Double.longBitsToDouble(Double.doubleToRawLongBits(x) / 3 + 0x2A9F7893782DA1CEL);
+        y = y - (y * y * y - x) / (3.0 * y * y);
+        y = y - (y * y * y - x) / (3.0 * y * y);
+        y = y - (y * y * y - x) / (3.0 * y * y);
+        return y;
+    }
+
     /**
      * Converts RGB to XYZ color space (intermediate step).
      */
@@ -69,14 +184,9 @@ public class ColorSpaceUtils {
      * Converts XYZ to LAB color space.
      */
     private static double[] xyzToLab(double x, double y, double z) {
-        // D65 reference white point
-        double refX = 95.047;
-        double refY = 100.000;
-        double refZ = 108.883;
-
-        x = x / refX;
-        y = y / refY;
-        z = z / refZ;
+        x = x / REF_X;
+        y = y / REF_Y;
+        z = z / REF_Z;
 
         x = (x > 0.008856) ? Math.pow(x, 1.0 / 3.0) : (7.787 * x + 16.0 / 116.0);
         y = (y > 0.008856) ? Math.pow(y, 1.0 / 3.0) : (7.787 * y + 16.0 / 116.0);
@@ -115,4 +225,105 @@ public class ColorSpaceUtils {
     public static double getDeltaE(double[] lab1, double[] lab2) {
         return Math.sqrt(getLabDistanceSquared(lab1, lab2));
     }
+
+    /**
+     * Calculates the CIE94 color difference with the graphic arts weights. The
+     * metric is not symmetric: chroma and hue differences are scaled by the
+     * chroma of the reference color.
+     *
+     * @param reference LAB color [L, a, b] the sample is compared with
+     * @param sample    LAB color [L, a, b]
+     * @return Delta E 1994 color difference
+     */
+    public static double getDeltaE94(double[] reference, double[] sample) {
+        double dL = reference[0] - sample[0];
+        double dA = reference[1] - sample[1];
+        double dB = reference[2] - sample[2];
+        double c1 = Math.sqrt(reference[1] * reference[1] + reference[2] * reference[2]);
+        double c2 = Math.sqrt(sample[1] * sample[1] + sample[2] * sample[2]);
+        double dC = c1 - c2;
+        double dH2 = Math.max(0, dA * dA + dB * dB - dC * dC);
+        double sC = 1 + 0.045 * c1;
+        double sH = 1 + 0.015 * c1;
+        return Math.sqrt(dL * dL + (dC / sC) * (dC / sC) + dH2 / (sH * sH));
+    }
+
+    private static final double POW25_7 = Math.pow(25, 7);
+
+    /**
+     * Calculates the CIEDE2000 color difference, following Sharma, Wu and
+     * Dalal (2005) with unit weighting factors. About ten times as expensive as
+     * {@link #getDeltaE(double[], double[])}, but much closer to perceived
+     * differences, in particular for blues and near-neutral colors.
+     *
+     * @param lab1 First LAB color [L, a, b]
+     * @param lab2 Second LAB color [L, a, b]
+     * @return Delta E 2000 color difference
+     */
+    public static double getDeltaE2000(double[] lab1, double[] lab2) {
+        double c1 = Math.sqrt(lab1[1] * lab1[1] + lab1[2] * lab1[2]);
+        double c2 = Math.sqrt(lab2[1] * lab2[1] + lab2[2] * lab2[2]);
+        double cMean7 = Math.pow((c1 + c2) / 2, 7);
+        double g = 0.5 * (1 - Math.sqrt(cMean7 / (cMean7 + POW25_7)));
+
+        double a1 = (1 + g) * lab1[1];
+        double a2 = (1 + g) * lab2[1];
+        double c1p = Math.sqrt(a1 * a1 + lab1[2] * lab1[2]);
+        double c2p = Math.sqrt(a2 * a2 + lab2[2] * lab2[2]);
+        double h1p = hueAngle(lab1[2], a1);
+        double h2p = hueAngle(lab2[2], a2);
+
+        double dLp = lab2[0] - lab1[0];
+        double dCp = c2p - c1p;
+        double dhp = 0;
+        if (c1p * c2p != 0) {
+            dhp = h2p - h1p;
+            if (dhp > 180) {
+                dhp -= 360;
+            } else if (dhp < -180) {
+                dhp += 360;
+            }
+        }
+        double dHp = 2 * Math.sqrt(c1p * c2p) * Math.sin(Math.toRadians(dhp / 2));
+
+        double lMean = (lab1[0] + lab2[0]) / 2;
+        double cpMean = (c1p + c2p) / 2;
+        double hpMean = h1p + h2p;
+        if (c1p * c2p != 0) {
+            if (Math.abs(h1p - h2p) <= 180) {
+                hpMean /= 2;
+            } else if (hpMean < 360) {
+                hpMean = (hpMean + 360) / 2;
+            } else {
+                hpMean = (hpMean - 360) / 2;
+            }
+        }
+
+        double t = 1 - 0.17 * Math.cos(Math.toRadians(hpMean - 30)) + 0.24 * Math.cos(Math.toRadians(2 * hpMean))
+                + 0.32 * Math.cos(Math.toRadians(3 * hpMean + 6)) - 0.20 * Math.cos(Math.toRadians(4 * hpMean - 63));
+        double dTheta = 30 * Math.exp(-((hpMean - 275) / 25) * ((hpMean - 275) / 25));
+        double cpMean7 = Math.pow(cpMean, 7);
+        double rC = 2 * Math.sqrt(cpMean7 / (cpMean7 + POW25_7));
+        double lMean50 = (lMean - 50) * (lMean - 50);
+        double sL = 1 + 0.015 * lMean50 / Math.sqrt(20 + lMean50);
+        double sC = 1 + 0.045 * cpMean;
+        double sH = 1 + 0.015 * cpMean * t;
+        double rT = -Math.sin(Math.toRadians(2 * dTheta)) * rC;
+
+        double dL = dLp / sL;
+        double dC = dCp / sC;
+        double dH = dHp / sH;
+        return Math.sqrt(dL * dL + dC * dC + dH * dH + rT * dC * dH);
+    }
+
+    /**
+     * @return the hue angle in degrees [0, 360), 0 for a neutral color
+     */
+    private static double hueAngle(double b, double aPrime) {
+        if (b == 0 && aPrime == 0) {
+            return 0;
+        }
+        double h = Math.toDegrees(Math.atan2(b, aPrime));
+        return h < 0 ? h + 360 : h;
+    }
 }
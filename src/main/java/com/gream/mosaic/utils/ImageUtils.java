@@ -9,7 +9,16 @@ import javax.imageio.ImageIO;
 
 public class ImageUtils {
 
+	/**
+	 * The average colour of an image file. Baseline JPEGs are averaged from
+	 * their DC coefficients without decoding them fully, see
+	 * {@link JpegDcAnalyser}; other files are read with ImageIO.
+	 */
 	public static Color getAverageRGB(File f) throws Exception {
+		Color average = JpegDcAnalyser.getAverageRGB(f);
+		if (average != null) {
+			return average;
+		}
 		BufferedImage img = ImageIO.read(f);
 		return getAverageRGB(img);
 	}
@@ -33,13 +42,57 @@ public class ImageUtils {
 		return new Color(red / pixels / 255, green / pixels / 255, blue / pixels / 255);	
 	}
 
+	/**
+	 * Average colours of the cells of a grid by grid raster laid over the image.
+	 * 
+	 * @return packed RGB per cell, row by row
+	 */
+	public static int[] getGridRGB(BufferedImage img, int grid) {
+		int width = img.getWidth();
+		int height = img.getHeight();
+		return getGridRGB(img.getRGB(0, 0, width, height, null, 0, width), width, height, grid);
+	}
+
+	/**
+	 * Average colours of the cells of a grid by grid raster laid over a block of
+	 * pixels. Cells split the block as evenly as whole pixels allow; a block
+	 * narrower than the grid repeats its pixels.
+	 * 
+	 * @param argb   the block's pixels, row by row
+	 * @return packed RGB per cell, row by row
+	 */
+	public static int[] getGridRGB(int[] argb, int width, int height, int grid) {
+		int[] cells = new int[grid * grid];
+		for (int cy = 0; cy < grid; cy++) {
+			int y0 = cy * height / grid;
+			int y1 = Math.max(y0 + 1, (cy + 1) * height / grid);
+			for (int cx = 0; cx < grid; cx++) {
+				int x0 = cx * width / grid;
+				int x1 = Math.max(x0 + 1, (cx + 1) * width / grid);
+				long red = 0, green = 0, blue = 0;
+				for (int y = y0; y < y1; y++) {
+					for (int x = x0; x < x1; x++) {
+						int rgb = argb[y * width + x];
+						red += (rgb >> 16) & 0xFF;
+						green += (rgb >> 8) & 0xFF;
+						blue += rgb & 0xFF;
+					}
+				}
+				long pixels = (long) (y1 - y0) * (x1 - x0);
+				cells[cy * grid + cx] = (int) ((red + pixels / 2) / pixels) << 16
+						| (int) ((green + pixels / 2) / pixels) << 8 | (int) ((blue + pixels / 2) / pixels);
+			}
+		}
+		return cells;
+	}
+
 	public static Color getAverageRGB(int[] arr) {
 		float red = 0.0f, green = 0.0f, blue = 0.0f;
 		for (int i = 0; i < arr.length; i++) {
-			Color c = new Color(arr[i]);
-			red += c.getRed();
-			green += c.getGreen();
-			blue += c.getBlue();	
+			int rgb = arr[i];
+			red += (rgb >> 16) & 0xFF;
+			green += (rgb >> 8) & 0xFF;
+			blue += rgb & 0xFF;
 		}
 		
 		float pixels = arr.length;
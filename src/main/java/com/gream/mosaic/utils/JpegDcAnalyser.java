@@ -0,0 +1,460 @@
+package com.gream.mosaic.utils;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * The average colour of a baseline JPEG from the DC coefficients of its
+ * blocks alone. The DC coefficient of a block is eight times its mean sample,
+ * so the mean of every component follows from the entropy-coded data without
+ * an inverse DCT, upsampling or a decoded raster; AC coefficients are only
+ * Huffman-decoded to be skipped. As the YCbCr to RGB conversion is affine, the
+ * mean colour converts exactly, up to clipping of single pixels.
+ *
+ * The encoder pads an image that is not a whole number of MCUs by repeating
+ * its last column and row, and the DC of an edge block averages that padding
+ * too. Blocks are weighted by the pixels of the image they cover, but inside a
+ * partial block the last column or row still weighs more than it should: up
+ * to a quarter of the block width in pixels, so the mean can move by
+ * 1020 / width levels when the last column stands out from its neighbours
+ * (likewise for the height). Sides that end in a partial MCU must span at
+ * least {@value #MIN_MCUS} MCUs, smaller images are left to a full decoder;
+ * the rest stay within 2 levels of a full decode on photos and generated test
+ * images.
+ *
+ * Only sequential Huffman-coded 8-bit colour JPEGs with all three components
+ * in one scan are supported; progressive, arithmetic-coded, 12-bit, CMYK and
+ * multi-scan files are left to a full decoder. So are
+ * greyscale files: Java draws them through a non-linear grey to sRGB curve
+ * that the mean of the samples cannot reproduce.
+ */
+public class JpegDcAnalyser {
+
+  private static final int LOOKAHEAD = 9;
+
+  // Below this many MCUs along a padded side, the padding is too large a
+  // share of the edge blocks to average
+  static final int MIN_MCUS = 4;
+
+  private final byte[] data;
+  private int pos;
+
+  private int width;
+  private int height;
+  private int[] componentIds;
+  private int[] hSampling;
+  private int[] vSampling;
+  private int[] quantTableIds;
+  private final int[] dcQuant = new int[4];
+  private final Huffman[] dcTables = new Huffman[4];
+  private final Huffman[] acTables = new Huffman[4];
+  private int restartInterval;
+  private int adobeTransform = -1;
+
+  // Entropy-coded data: bits not yet consumed, right-aligned
+  private long bitBuffer;
+  private int bitCount;
+
+  private JpegDcAnalyser(byte[] data) {
+    this.data = data;
+  }
+
+  /**
+   * @return the average colour of the file, or null if it is not a JPEG this
+   *         class supports
+   * @throws IOException if the file cannot be read
+   */
+  public static Color getAverageRGB(File f) throws IOException {
+    byte[] data = Files.readAllBytes(f.toPath());
+    try {
+      return new JpegDcAnalyser(data).analyse();
+    } catch (ArrayIndexOutOfBoundsException e) {
+      // Truncated or corrupt; let the full decoder report it
+      return null;
+    }
+  }
+
+  private Color analyse() {
+    if (data.length < 4 || (data[0] & 0xFF) != 0xFF || (data[1] & 0xFF) != 0xD8) {
+      return null;
+    }
+    pos = 2;
+    while (pos < data.length) {
+      if ((data[pos++] & 0xFF) != 0xFF) {
+        return null;
+      }
+      int marker = data[pos++] & 0xFF;
+      while (marker == 0xFF) {
+        marker = data[pos++] & 0xFF;
+      }
+      if (marker == 0xD8 || (marker >= 0xD0 && marker <= 0xD7) || marker == 0x01) {
+        continue;
+      }
+      if (marker == 0xD9) {
+        return null;
+      }
+      int length = readShort(pos);
+      int end = pos + length;
+      switch (marker) {
+        case 0xC0:
+        case 0xC1:
+          if (!readFrame(pos + 2)) {
+            return null;
+          }
+          break;
+        case 0xC4:
+          readHuffmanTables(pos + 2, end);
+          break;
+        case 0xDB:
+          readQuantTables(pos + 2, end);
+          break;
+        case 0xDD:
+          restartInterval = readShort(pos + 2);
+          break;
+        case 0xEE:
+          if (length >= 14 && data[pos + 2] == 'A' && data[pos + 3] == 'd' && data[pos + 4] == 'o'
+              && data[pos + 5] == 'b' && data[pos + 6] == 'e') {
+            adobeTransform = data[pos + 13] & 0xFF;
+          }
+          break;
+        case 0xDA:
+          return componentIds == null ? null : readScan(pos + 2, end);
+        default:
+          if (marker >= 0xC2 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+            // Progressive, lossless, hierarchical or arithmetic-coded
+            return null;
+          }
+      }
+      pos = end;
+    }
+    return null;
+  }
+
+  private boolean readFrame(int at) {
+    int precision = data[at] & 0xFF;
+    height = readShort(at + 1);
+    width = readShort(at + 3);
+    int components = data[at + 5] & 0xFF;
+    if (precision != 8 || width == 0 || height == 0 || components != 3) {
+      return false;
+    }
+    componentIds = new int[components];
+    hSampling = new int[components];
+    vSampling = new int[components];
+    quantTableIds = new int[components];
+    for (int c = 0; c < components; c++) {
+      int offset = at + 6 + c * 3;
+      componentIds[c] = data[offset] & 0xFF;
+      hSampling[c] = (data[offset + 1] & 0xFF) >> 4;
+      vSampling[c] = data[offset + 1] & 0x0F;
+      quantTableIds[c] = data[offset + 2] & 0x03;
+      if (hSampling[c] < 1 || vSampling[c] < 1) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void readHuffmanTables(int at, int end) {
+    while (at < end) {
+      int tableClass = (data[at] & 0xFF) >> 4;
+      int id = data[at] & 0x03;
+      int[] counts = new int[17];
+      int total = 0;
+      for (int l = 1; l <= 16; l++) {
+        counts[l] = data[at + l] & 0xFF;
+        total += counts[l];
+      }
+      byte[] values = new byte[total];
+      System.arraycopy(data, at + 17, values, 0, total);
+      Huffman table = new Huffman(counts, values);
+      if (tableClass == 0) {
+        dcTables[id] = table;
+      } else {
+        acTables[id] = table;
+      }
+      at += 17 + total;
+    }
+  }
+
+  private void readQuantTables(int at, int end) {
+    while (at < end) {
+      boolean sixteenBit = (data[at] & 0xF0) != 0;
+      int id = data[at] & 0x03;
+      // Only the first entry, the DC step, matters here
+      dcQuant[id] = sixteenBit ? readShort(at + 1) : data[at + 1] & 0xFF;
+      at += 1 + (sixteenBit ? 128 : 64);
+    }
+  }
+
+  private Color readScan(int at, int end) {
+    int components = data[at] & 0xFF;
+    if (components != componentIds.length) {
+      // The components are spread over several scans
+      return null;
+    }
+    int[] order = new int[components];
+    Huffman[] dc = new Huffman[components];
+    Huffman[] ac = new Huffman[components];
+    for (int s = 0; s < components; s++) {
+      int id = data[at + 1 + s * 2] & 0xFF;
+      int tables = data[at + 2 + s * 2] & 0xFF;
+      order[s] = -1;
+      for (int c = 0; c < components; c++) {
+        if (componentIds[c] == id) {
+          order[s] = c;
+        }
+      }
+      if (order[s] < 0) {
+        return null;
+      }
+      dc[s] = dcTables[tables >> 4 & 0x03];
+      ac[s] = acTables[tables & 0x03];
+      if (dc[s] == null || ac[s] == null || dcQuant[quantTableIds[order[s]]] == 0) {
+        return null;
+      }
+    }
+    pos = end;
+
+    int hMax = 1;
+    int vMax = 1;
+    for (int c = 0; c < components; c++) {
+      hMax = Math.max(hMax, hSampling[c]);
+      vMax = Math.max(vMax, vSampling[c]);
+    }
+    if (isPaddingSignificant(width, 8 * hMax) || isPaddingSignificant(height, 8 * vMax)) {
+      return null;
+    }
+    // The pixels of the image covered by each block column and row
+    int[][] columnPixels = new int[components][];
+    int[][] rowPixels = new int[components][];
+    for (int c = 0; c < components; c++) {
+      if (hMax % hSampling[c] != 0 || vMax % vSampling[c] != 0) {
+        return null;
+      }
+      int blockWidth = 8 * hMax / hSampling[c];
+      int blockHeight = 8 * vMax / vSampling[c];
+      columnPixels[c] = coverage(width, blockWidth, ((width + 8 * hMax - 1) / (8 * hMax)) * hSampling[c]);
+      rowPixels[c] = coverage(height, blockHeight, ((height + 8 * vMax - 1) / (8 * vMax)) * vSampling[c]);
+    }
+
+    long[] sums = new long[components];
+    int[] predictions = new int[components];
+    bitBuffer = 0;
+    bitCount = 0;
+    int mcusWide = (width + 8 * hMax - 1) / (8 * hMax);
+    int mcusHigh = (height + 8 * vMax - 1) / (8 * vMax);
+    int unit = 0;
+    for (int my = 0; my < mcusHigh; my++) {
+      for (int mx = 0; mx < mcusWide; mx++) {
+        if (restartInterval > 0 && unit > 0 && unit % restartInterval == 0 && !restart(predictions)) {
+          return null;
+        }
+        unit++;
+        for (int s = 0; s < components; s++) {
+          int c = order[s];
+          for (int v = 0; v < vSampling[c]; v++) {
+            int rows = rowPixels[c][my * vSampling[c] + v];
+            for (int h = 0; h < hSampling[c]; h++) {
+              if (!decodeBlock(dc[s], ac[s], predictions, s)) {
+                return null;
+              }
+              sums[c] += (long) predictions[s] * columnPixels[c][mx * hSampling[c] + h] * rows;
+            }
+          }
+        }
+      }
+    }
+
+    // Block mean = DC * step / 8, plus the level shift of 128
+    double pixels = (double) width * height;
+    double[] means = new double[components];
+    for (int c = 0; c < components; c++) {
+      means[c] = sums[c] * (double) dcQuant[quantTableIds[c]] / (8 * pixels) + 128;
+    }
+    boolean rgb = adobeTransform == 0
+        || (adobeTransform < 0 && componentIds[0] == 'R' && componentIds[1] == 'G' && componentIds[2] == 'B');
+    if (rgb) {
+      return new Color(clamp(means[0]), clamp(means[1]), clamp(means[2]));
+    }
+    double y = means[0];
+    double cb = means[1] - 128;
+    double cr = means[2] - 128;
+    return new Color(clamp(y + 1.402 * cr), clamp(y - 0.344136 * cb - 0.714136 * cr), clamp(y + 1.772 * cb));
+  }
+
+  /**
+   * @return true if a side of {@code size} pixels ends in a partial MCU of
+   *         {@code mcu} pixels and has fewer than {@link #MIN_MCUS} of them
+   */
+  private static boolean isPaddingSignificant(int size, int mcu) {
+    return size % mcu != 0 && size < MIN_MCUS * mcu;
+  }
+
+  /**
+   * @return the pixels within {@code size} covered by each of {@code blocks}
+   *         blocks of {@code step} pixels
+   */
+  private static int[] coverage(int size, int step, int blocks) {
+    int[] pixels = new int[blocks];
+    for (int b = 0; b < blocks; b++) {
+      pixels[b] = Math.max(0, Math.min(size, (b + 1) * step) - b * step);
+    }
+    return pixels;
+  }
+
+  /**
+   * Decodes one block, adding its DC difference to the prediction of scan
+   * component {@code s} and skipping its AC coefficients.
+   */
+  private boolean decodeBlock(Huffman dc, Huffman ac, int[] predictions, int s) {
+    int size = decode(dc);
+    if (size < 0 || size > 16) {
+      return false;
+    }
+    predictions[s] += receive(size);
+    for (int k = 1; k < 64;) {
+      int symbol = decode(ac);
+      if (symbol < 0) {
+        return false;
+      }
+      int run = symbol >> 4;
+      size = symbol & 0x0F;
+      if (size == 0) {
+        if (run != 15) {
+          break; // end of block
+        }
+        k += 16;
+      } else {
+        k += run + 1;
+        fill();
+        bitCount -= size;
+      }
+    }
+    return true;
+  }
+
+  private int decode(Huffman table) {
+    fill();
+    int peek = (int) (bitBuffer >>> (bitCount - LOOKAHEAD)) & ((1 << LOOKAHEAD) - 1);
+    int length = table.lookupLength[peek];
+    if (length > 0) {
+      bitCount -= length;
+      return table.lookupSymbol[peek] & 0xFF;
+    }
+    for (length = LOOKAHEAD + 1; length <= 16; length++) {
+      int code = (int) (bitBuffer >>> (bitCount - length)) & ((1 << length) - 1);
+      if (code <= table.maxCode[length]) {
+        bitCount -= length;
+        return table.values[code + table.valueOffset[length]] & 0xFF;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the next {@code size} bits as a signed coefficient value
+   */
+  private int receive(int size) {
+    if (size == 0) {
+      return 0;
+    }
+    fill();
+    int value = (int) (bitBuffer >>> (bitCount - size)) & ((1 << size) - 1);
+    bitCount -= size;
+    return value < 1 << (size - 1) ? value - (1 << size) + 1 : value;
+  }
+
+  /**
+   * Tops the bit buffer up to at least 48 bits. Stuffed zero bytes are dropped;
+   * at a marker the data has ended and zeros are shifted in.
+   */
+  private void fill() {
+    while (bitCount <= 48) {
+      int b = 0;
+      if (pos < data.length) {
+        b = data[pos] & 0xFF;
+        if (b != 0xFF) {
+          pos++;
+        } else if (pos + 1 < data.length && data[pos + 1] == 0) {
+          pos += 2;
+        } else {
+          b = 0; // a marker; stay in front of it
+        }
+      }
+      bitBuffer = bitBuffer << 8 | b;
+      bitCount += 8;
+    }
+  }
+
+  /**
+   * Skips to the data after the next restart marker and resets the DC
+   * predictions.
+   */
+  private boolean restart(int[] predictions) {
+    bitBuffer = 0;
+    bitCount = 0;
+    while (pos + 1 < data.length) {
+      if ((data[pos] & 0xFF) == 0xFF) {
+        int marker = data[pos + 1] & 0xFF;
+        if (marker >= 0xD0 && marker <= 0xD7) {
+          pos += 2;
+          Arrays.fill(predictions, 0);
+          return true;
+        }
+        if (marker != 0 && marker != 0xFF) {
+          return false;
+        }
+      }
+      pos++;
+    }
+    return false;
+  }
+
+  private int readShort(int at) {
+    return (data[at] & 0xFF) << 8 | (data[at + 1] & 0xFF);
+  }
+
+  private static int clamp(double value) {
+    return Math.max(0, Math.min(255, (int) Math.round(value)));
+  }
+
+  /**
+   * A canonical Huffman table with a lookup for codes of up to
+   * {@value JpegDcAnalyser#LOOKAHEAD} bits.
+   */
+  private static final class Huffman {
+
+    final byte[] lookupLength = new byte[1 << LOOKAHEAD]; // 0 for longer codes
+    final byte[] lookupSymbol = new byte[1 << LOOKAHEAD];
+    final int[] maxCode = new int[17]; // the largest code of each length, -1 if none
+    final int[] valueOffset = new int[17];
+    final byte[] values;
+
+    Huffman(int[] counts, byte[] values) {
+      this.values = values;
+      int code = 0;
+      int k = 0;
+      for (int length = 1; length <= 16; length++) {
+        valueOffset[length] = k - code;
+        for (int i = 0; i < counts[length]; i++) {
+          if (length <= LOOKAHEAD) {
+            int shift = LOOKAHEAD - length;
+            for (int fill = code << shift; fill < (code + 1) << shift; fill++) {
+              lookupLength[fill] = (byte) length;
+              lookupSymbol[fill] = values[k];
+            }
+          }
+          code++;
+          k++;
+        }
+        maxCode[length] = counts[length] > 0 ? code - 1 : -1;
+        code <<= 1;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,251 @@
+package com.gream.mosaic.utils;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.gream.mosaic.metrics.Metrics;
+
+/**
+ * Writes an opaque image as an 8-bit RGB PNG, filtering and compressing bands
+ * of rows on several threads the way pigz does. Every band of about
+ * {@value #PIECE_SIZE} bytes of filtered data is deflated on its own, primed
+ * with the last {@value #WINDOW} bytes of the band before it as a preset
+ * dictionary, so it compresses nearly as well as a single stream. Each band but
+ * the last ends on a sync flush, which byte-aligns it, so the bands join into
+ * one valid zlib stream whose Adler-32 is merged from those of the bands.
+ *
+ * Rows are filtered as by {@link PngStripWriter}; to build its dictionary a
+ * band also filters the rows at the end of the band before it, and the
+ * filter of a row depends only on that row and the one above, so the filtered
+ * data is the same as a single-threaded writer's.
+ */
+public class ParallelPngWriter {
+
+  private static final int PIECE_SIZE = 1 << 18;
+  private static final int WINDOW = 1 << 15;
+  private static final int CHUNK_SIZE = 1 << 16;
+  private static final int ADLER_BASE = 65521;
+
+  private final int threads;
+  private final int level;
+  private final AtomicLong cpuNanos = new AtomicLong();
+
+  /**
+   * @param threads the number of threads compressing
+   * @param level   the deflate level, 0 to 9
+   */
+  public ParallelPngWriter(int threads, int level) {
+    this.threads = Math.max(1, threads);
+    this.level = level;
+  }
+
+  /**
+   * Writes the whole image. Does not close the stream.
+   */
+  public void write(final BufferedImage image, OutputStream out) throws IOException {
+    final int width = image.getWidth();
+    final int height = image.getHeight();
+    int stride = width * 3 + 1;
+    final int rowsPerPiece = Math.max(1, PIECE_SIZE / stride);
+    final int dictionaryRows = (WINDOW + stride - 1) / stride;
+    int pieces = (height + rowsPerPiece - 1) / rowsPerPiece;
+
+    CRC32 crc = new CRC32();
+    PngStripWriter.writeHeader(out, crc, width, height);
+    byte[] chunk = new byte[CHUNK_SIZE];
+    int chunkLength = 0;
+    chunk[chunkLength++] = 0x78; // deflate with a 32K window
+    chunk[chunkLength++] = (byte) zlibFlags(level);
+    long adler = 1;
+
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      // Keep a few bands per thread in flight, so the memory does not grow
+      // with the image
+      ArrayDeque<Future<Piece>> pending = new ArrayDeque<Future<Piece>>();
+      int submitted = 0;
+      for (int written = 0; written < pieces; written++) {
+        while (submitted < pieces && pending.size() < threads * 4) {
+          final int y0 = submitted * rowsPerPiece;
+          final int y1 = Math.min(height, y0 + rowsPerPiece);
+          final boolean last = ++submitted == pieces;
+          pending.add(pool.submit(new Callable<Piece>() {
+
+            public Piece call() {
+              long cpuStart = Metrics.currentThreadCpuNanos();
+              try {
+                return compress(image, y0, y1, Math.max(0, y0 - dictionaryRows), last);
+              } finally {
+                cpuNanos.addAndGet(Metrics.currentThreadCpuNanos() - cpuStart);
+              }
+            }
+          }));
+        }
+        Piece piece = pending.remove().get();
+        adler = combineAdler32(adler, piece.adler, piece.length);
+        for (int offset = 0; offset < piece.data.length;) {
+          int n = Math.min(piece.data.length - offset, chunk.length - chunkLength);
+          System.arraycopy(piece.data, offset, chunk, chunkLength, n);
+          offset += n;
+          chunkLength += n;
+          if (chunkLength == chunk.length) {
+            PngStripWriter.writeChunk(out, crc, "IDAT", chunk, chunkLength);
+            chunkLength = 0;
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while compressing", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to compress: " + e.getCause(), e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+
+    byte[] trailer = new byte[4];
+    PngStripWriter.putInt(trailer, 0, (int) adler);
+    if (chunkLength + trailer.length > chunk.length) {
+      PngStripWriter.writeChunk(out, crc, "IDAT", chunk, chunkLength);
+      chunkLength = 0;
+    }
+    System.arraycopy(trailer, 0, chunk, chunkLength, trailer.length);
+    chunkLength += trailer.length;
+    PngStripWriter.writeChunk(out, crc, "IDAT", chunk, chunkLength);
+    PngStripWriter.writeChunk(out, crc, "IEND", chunk, 0);
+    out.flush();
+  }
+
+  /**
+   * @return the CPU time the compressing threads have spent in the writes so
+   *         far, not that of the calling thread; 0 if the JVM cannot measure
+   *         thread CPU time
+   */
+  public long getCpuNanos() {
+    return cpuNanos.get();
+  }
+
+  /**
+   * A band of rows deflated without the zlib header and trailer.
+   */
+  private static final class Piece {
+
+    final byte[] data;
+    final long adler;
+    final long length;
+
+    Piece(byte[] data, long adler, long length) {
+      this.data = data;
+      this.adler = adler;
+      this.length = length;
+    }
+  }
+
+  /**
+   * Filters rows {@code from} to {@code y1} (exclusive) and deflates those
+   * from {@code y0} on, with the filtered rows before {@code y0} as the
+   * dictionary.
+   */
+  private Piece compress(BufferedImage image, int y0, int y1, int from, boolean last) {
+    int width = image.getWidth();
+    int stride = width * 3 + 1;
+    int[] argb = new int[width];
+    byte[] previous = new byte[stride - 1];
+    byte[] current = new byte[stride - 1];
+    byte[][] filtered = new byte[5][];
+    for (int f = 0; f < filtered.length; f++) {
+      filtered[f] = new byte[stride];
+      filtered[f][0] = (byte) f;
+    }
+    if (from > 0) {
+      PngStripWriter.readRow(image, from - 1, argb, previous);
+    }
+
+    byte[] data = new byte[(y1 - from) * stride];
+    for (int y = from, offset = 0; y < y1; y++, offset += stride) {
+      PngStripWriter.readRow(image, y, argb, current);
+      System.arraycopy(PngStripWriter.filter(current, previous, filtered), 0, data, offset, stride);
+      byte[] swap = previous;
+      previous = current;
+      current = swap;
+    }
+
+    int start = (y0 - from) * stride;
+    Deflater deflater = new Deflater(level, true);
+    try {
+      if (start > 0) {
+        int dictionary = Math.min(start, WINDOW);
+        deflater.setDictionary(data, start - dictionary, dictionary);
+      }
+      deflater.setInput(data, start, data.length - start);
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, (data.length - start) / 4));
+      byte[] buffer = new byte[CHUNK_SIZE];
+      if (last) {
+        deflater.finish();
+        while (!deflater.finished()) {
+          compressed.write(buffer, 0, deflater.deflate(buffer));
+        }
+      } else {
+        // A sync flush ends on a byte boundary, so the next band can follow
+        int n;
+        do {
+          n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+          compressed.write(buffer, 0, n);
+        } while (n == buffer.length);
+      }
+      Adler32 adler = new Adler32();
+      adler.update(data, start, data.length - start);
+      return new Piece(compressed.toByteArray(), adler.getValue(), data.length - start);
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * The second byte of the zlib header: the level hint and a check value that
+   * makes the header a multiple of 31.
+   */
+  static int zlibFlags(int level) {
+    int hint = level < 2 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3;
+    int flags = hint << 6;
+    return flags + (31 - ((0x78 << 8) + flags) % 31) % 31;
+  }
+
+  /**
+   * The Adler-32 of two blocks of data joined, from the checksums of each and
+   * the length of the second, as zlib's {@code adler32_combine}.
+   */
+  static long combineAdler32(long adler1, long adler2, long length2) {
+    long remainder = length2 % ADLER_BASE;
+    long sum1 = adler1 & 0xFFFF;
+    long sum2 = (remainder * sum1) % ADLER_BASE;
+    sum1 += (adler2 & 0xFFFF) + ADLER_BASE - 1;
+    sum2 += ((adler1 >> 16) & 0xFFFF) + ((adler2 >> 16) & 0xFFFF) + ADLER_BASE - remainder;
+    if (sum1 >= ADLER_BASE) {
+      sum1 -= ADLER_BASE;
+    }
+    if (sum1 >= ADLER_BASE) {
+      sum1 -= ADLER_BASE;
+    }
+    if (sum2 >= (ADLER_BASE << 1)) {
+      sum2 -= (ADLER_BASE << 1);
+    }
+    if (sum2 >= ADLER_BASE) {
+      sum2 -= ADLER_BASE;
+    }
+    return (sum2 << 16) | sum1;
+  }
+
+}
@@ -0,0 +1,104 @@
+package com.gream.mosaic.utils;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * 64-bit DCT hash of the structure of an image, the same for resized,
+ * recompressed or slightly edited copies of it. The image is reduced to 32x32
+ * luminance values, and every bit tells whether one of the 8x8 lowest
+ * frequency DCT coefficients is above their median. The DC coefficient is left
+ * out, so the hash says nothing about colour or brightness.
+ */
+public class PerceptualHash {
+
+  private static final int SIZE = 32;
+  private static final int FREQUENCIES = 8;
+
+  // COSINES[u][x] = cos((2x + 1) u pi / 2 SIZE)
+  private static final double[][] COSINES = new double[FREQUENCIES][SIZE];
+
+  static {
+    for (int u = 0; u < FREQUENCIES; u++) {
+      for (int x = 0; x < SIZE; x++) {
+        COSINES[u][x] = Math.cos((2 * x + 1) * u * Math.PI / (2 * SIZE));
+      }
+    }
+  }
+
+  private PerceptualHash() {
+  }
+
+  public static long compute(BufferedImage img) {
+    double[] luminance = reduce(img);
+
+    // Separable DCT-II, only the lowest frequencies: rows first, then columns
+    double[] rows = new double[FREQUENCIES * SIZE];
+    for (int y = 0; y < SIZE; y++) {
+      for (int u = 0; u < FREQUENCIES; u++) {
+        double sum = 0;
+        for (int x = 0; x < SIZE; x++) {
+          sum += luminance[y * SIZE + x] * COSINES[u][x];
+        }
+        rows[u * SIZE + y] = sum;
+      }
+    }
+    double[] coefficients = new double[FREQUENCIES * FREQUENCIES];
+    for (int u = 0; u < FREQUENCIES; u++) {
+      for (int v = 0; v < FREQUENCIES; v++) {
+        double sum = 0;
+        for (int y = 0; y < SIZE; y++) {
+          sum += rows[u * SIZE + y] * COSINES[v][y];
+        }
+        coefficients[v * FREQUENCIES + u] = sum;
+      }
+    }
+
+    double[] ac = Arrays.copyOfRange(coefficients, 1, coefficients.length);
+    Arrays.sort(ac);
+    double median = ac[ac.length / 2];
+    long hash = 0;
+    for (int i = 1; i < coefficients.length; i++) {
+      if (coefficients[i] > median) {
+        hash |= 1L << i;
+      }
+    }
+    return hash;
+  }
+
+  /**
+   * @return the number of bits two hashes differ in, 0 to 63
+   */
+  public static int distance(long a, long b) {
+    return Long.bitCount(a ^ b);
+  }
+
+  /**
+   * Box-averages the luminance of the image onto a SIZE x SIZE raster; images
+   * smaller than that repeat their pixels.
+   */
+  private static double[] reduce(BufferedImage img) {
+    int width = img.getWidth();
+    int height = img.getHeight();
+    int[] argb = img.getRGB(0, 0, width, height, null, 0, width);
+    double[] luminance = new double[SIZE * SIZE];
+    for (int cy = 0; cy < SIZE; cy++) {
+      int y0 = cy * height / SIZE;
+      int y1 = Math.max(y0 + 1, (cy + 1) * height / SIZE);
+      for (int cx = 0; cx < SIZE; cx++) {
+        int x0 = cx * width / SIZE;
+        int x1 = Math.max(x0 + 1, (cx + 1) * width / SIZE);
+        double sum = 0;
+        for (int y = y0; y < y1; y++) {
+          for (int x = x0; x < x1; x++) {
+            int rgb = argb[y * width + x];
+            sum += 0.299 * ((rgb >> 16) & 0xFF) + 0.587 * ((rgb >> 8) & 0xFF) + 0.114 * (rgb & 0xFF);
+          }
+        }
+        luminance[cy * SIZE + cx] = sum / ((y1 - y0) * (x1 - x0));
+      }
+    }
+    return luminance;
+  }
+
+}
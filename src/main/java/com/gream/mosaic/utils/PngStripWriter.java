@@ -0,0 +1,230 @@
+package com.gream.mosaic.utils;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes an opaque image as an 8-bit RGB PNG strip by strip, so that the top
+ * of an image can be compressed and written while the rest is still being
+ * drawn. Strips must be written top to bottom and together cover every row
+ * exactly once.
+ *
+ * Every row is filtered with whichever of the five PNG filters gives the
+ * smallest sum of absolute differences, the heuristic the PNG specification
+ * recommends. Alpha is dropped: a mosaic is drawn on an opaque background.
+ */
+public class PngStripWriter implements AutoCloseable {
+
+  private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+  private static final int CHUNK_SIZE = 1 << 16;
+
+  private final OutputStream out;
+  private final int width;
+  private final int height;
+  private final Deflater deflater;
+  private final CRC32 crc = new CRC32();
+
+  private final int[] argb;
+  private byte[] previous; // the unfiltered row above, zeros for the first
+  private byte[] current;
+  private final byte[][] filtered = new byte[5][];
+  private final byte[] chunk = new byte[CHUNK_SIZE];
+  private int chunkLength;
+  private int rowsWritten;
+
+  /**
+   * Writes the PNG header.
+   *
+   * @param level the deflate level, 0 to 9
+   */
+  public PngStripWriter(OutputStream out, int width, int height, int level) throws IOException {
+    this.out = out;
+    this.width = width;
+    this.height = height;
+    this.deflater = new Deflater(level);
+    this.argb = new int[width];
+    int stride = width * 3;
+    this.previous = new byte[stride];
+    this.current = new byte[stride];
+    for (int f = 0; f < filtered.length; f++) {
+      filtered[f] = new byte[stride + 1];
+      filtered[f][0] = (byte) f;
+    }
+
+    writeHeader(out, crc, width, height);
+  }
+
+  /**
+   * Compresses and writes rows {@code y0} to {@code y1} (exclusive) of the
+   * image.
+   */
+  public void write(BufferedImage image, int y0, int y1) throws IOException {
+    if (y0 != rowsWritten || y1 < y0 || y1 > height) {
+      throw new IllegalArgumentException("Expected rows from " + rowsWritten + ", got " + y0 + " to " + y1);
+    }
+    for (int y = y0; y < y1; y++) {
+      readRow(image, y, argb, current);
+      byte[] row = filter(current, previous, filtered);
+      deflater.setInput(row, 0, row.length);
+      while (!deflater.needsInput()) {
+        drain();
+      }
+      byte[] swap = previous;
+      previous = current;
+      current = swap;
+    }
+    rowsWritten = y1;
+  }
+
+  /**
+   * Writes the rest of the compressed data and the end of the PNG. Does not
+   * close the stream.
+   */
+  @Override
+  public void close() throws IOException {
+    if (rowsWritten != height) {
+      deflater.end();
+      throw new IOException("Only " + rowsWritten + " of " + height + " rows were written");
+    }
+    deflater.finish();
+    while (!deflater.finished()) {
+      drain();
+    }
+    deflater.end();
+    if (chunkLength > 0) {
+      writeChunk(out, crc, "IDAT", chunk, chunkLength);
+    }
+    writeChunk(out, crc, "IEND", chunk, 0);
+    out.flush();
+  }
+
+  /**
+   * Writes the PNG signature and the header of an 8-bit RGB image.
+   */
+  static void writeHeader(OutputStream out, CRC32 crc, int width, int height) throws IOException {
+    out.write(SIGNATURE);
+    byte[] header = new byte[13];
+    putInt(header, 0, width);
+    putInt(header, 4, height);
+    header[8] = 8; // bit depth
+    header[9] = 2; // colour type: RGB
+    writeChunk(out, crc, "IHDR", header, header.length);
+  }
+
+  /**
+   * Reads row {@code y} of the image as RGB bytes.
+   *
+   * @param argb scratch space for one row of pixels
+   */
+  static void readRow(BufferedImage image, int y, int[] argb, byte[] row) {
+    int width = argb.length;
+    image.getRGB(0, y, width, 1, argb, 0, width);
+    for (int x = 0, k = 0; x < width; x++) {
+      int rgb = argb[x];
+      row[k++] = (byte) (rgb >> 16);
+      row[k++] = (byte) (rgb >> 8);
+      row[k++] = (byte) rgb;
+    }
+  }
+
+  /**
+   * Filters a row with every filter type and returns the one with the
+   * smallest sum of absolute values, filter type byte first.
+   *
+   * @param rows scratch space for the five candidates, each a byte longer than
+   *             the row and starting with its filter type
+   */
+  static byte[] filter(byte[] row, byte[] above, byte[][] rows) {
+    int n = row.length;
+    byte[] none = rows[0];
+    byte[] sub = rows[1];
+    byte[] up = rows[2];
+    byte[] average = rows[3];
+    byte[] paeth = rows[4];
+    long sumNone = 0, sumSub = 0, sumUp = 0, sumAverage = 0, sumPaeth = 0;
+    for (int k = 0; k < n; k++) {
+      int x = row[k] & 0xFF;
+      int a = k >= 3 ? row[k - 3] & 0xFF : 0;
+      int b = above[k] & 0xFF;
+      int c = k >= 3 ? above[k - 3] & 0xFF : 0;
+
+      byte v = (byte) x;
+      none[k + 1] = v;
+      sumNone += Math.abs(v);
+      v = (byte) (x - a);
+      sub[k + 1] = v;
+      sumSub += Math.abs(v);
+      v = (byte) (x - b);
+      up[k + 1] = v;
+      sumUp += Math.abs(v);
+      v = (byte) (x - ((a + b) >> 1));
+      average[k + 1] = v;
+      sumAverage += Math.abs(v);
+      int p = a + b - c;
+      int pa = Math.abs(p - a);
+      int pb = Math.abs(p - b);
+      int pc = Math.abs(p - c);
+      int predictor = pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+      v = (byte) (x - predictor);
+      paeth[k + 1] = v;
+      sumPaeth += Math.abs(v);
+    }
+    byte[] best = none;
+    long bestSum = sumNone;
+    if (sumSub < bestSum) {
+      best = sub;
+      bestSum = sumSub;
+    }
+    if (sumUp < bestSum) {
+      best = up;
+      bestSum = sumUp;
+    }
+    if (sumAverage < bestSum) {
+      best = average;
+      bestSum = sumAverage;
+    }
+    if (sumPaeth < bestSum) {
+      best = paeth;
+    }
+    return best;
+  }
+
+  /**
+   * Moves compressed data into the chunk buffer, writing it out as an IDAT
+   * chunk whenever it is full.
+   */
+  private void drain() throws IOException {
+    chunkLength += deflater.deflate(chunk, chunkLength, chunk.length - chunkLength);
+    if (chunkLength == chunk.length) {
+      writeChunk(out, crc, "IDAT", chunk, chunkLength);
+      chunkLength = 0;
+    }
+  }
+
+  static void writeChunk(OutputStream out, CRC32 crc, String type, byte[] data, int length) throws IOException {
+    byte[] header = new byte[8];
+    putInt(header, 0, length);
+    byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+    System.arraycopy(typeBytes, 0, header, 4, 4);
+    out.write(header);
+    out.write(data, 0, length);
+    crc.reset();
+    crc.update(typeBytes);
+    crc.update(data, 0, length);
+    byte[] trailer = new byte[4];
+    putInt(trailer, 0, (int) crc.getValue());
+    out.write(trailer);
+  }
+
+  static void putInt(byte[] b, int offset, int value) {
+    b[offset] = (byte) (value >>> 24);
+    b[offset + 1] = (byte) (value >>> 16);
+    b[offset + 2] = (byte) (value >>> 8);
+    b[offset + 3] = (byte) value;
+  }
+
+}
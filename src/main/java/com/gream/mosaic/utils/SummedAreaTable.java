@@ -0,0 +1,116 @@
+package com.gream.mosaic.utils;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Summed-area tables of the red, green and blue values of an image and of
+ * their squares, so that the colour variance of any square of blocks costs
+ * four lookups per table whatever its size.
+ *
+ * The tables are kept at the resolution of the mosaic's blocks rather than of
+ * pixels: every entry sums all pixels of the blocks above and to the left of
+ * it. Queries over whole blocks are exact, and the tables take
+ * (blocks + 1)^2 entries instead of one per pixel, so the image is read once
+ * and nothing close to its size is held.
+ */
+public class SummedAreaTable {
+
+  private final int blocks;
+  private final long pixelsPerBlock;
+  // Indexed by (i * (blocks + 1) + j) for the blocks in columns [0, i) and
+  // rows [0, j)
+  private final long[] red;
+  private final long[] green;
+  private final long[] blue;
+  private final long[] squares;
+
+  /**
+   * @param img         the input image
+   * @param blockWidth  the width of a block in pixels
+   * @param blockHeight the height of a block in pixels
+   * @param blocks      the number of blocks per row and column; the pixels
+   *                    right of and below them are ignored
+   */
+  public SummedAreaTable(BufferedImage img, int blockWidth, int blockHeight, int blocks) {
+    this.blocks = blocks;
+    this.pixelsPerBlock = (long) blockWidth * blockHeight;
+    int stride = blocks + 1;
+    red = new long[stride * stride];
+    green = new long[stride * stride];
+    blue = new long[stride * stride];
+    squares = new long[stride * stride];
+
+    int width = blockWidth * blocks;
+    int[] row = new int[width];
+    long[] rowRed = new long[blocks];
+    long[] rowGreen = new long[blocks];
+    long[] rowBlue = new long[blocks];
+    long[] rowSquares = new long[blocks];
+    for (int j = 0; j < blocks; j++) {
+      // Sum the pixels of every block in this row of blocks
+      Arrays.fill(rowRed, 0);
+      Arrays.fill(rowGreen, 0);
+      Arrays.fill(rowBlue, 0);
+      Arrays.fill(rowSquares, 0);
+      for (int y = j * blockHeight; y < (j + 1) * blockHeight; y++) {
+        img.getRGB(0, y, width, 1, row, 0, width);
+        for (int i = 0; i < blocks; i++) {
+          long r = 0, g = 0, b = 0, s = 0;
+          for (int x = i * blockWidth; x < (i + 1) * blockWidth; x++) {
+            int rgb = row[x];
+            int cr = (rgb >> 16) & 0xFF;
+            int cg = (rgb >> 8) & 0xFF;
+            int cb = rgb & 0xFF;
+            r += cr;
+            g += cg;
+            b += cb;
+            s += cr * cr + cg * cg + cb * cb;
+          }
+          rowRed[i] += r;
+          rowGreen[i] += g;
+          rowBlue[i] += b;
+          rowSquares[i] += s;
+        }
+      }
+      // Integrate: entry (i + 1, j + 1) adds this block to its upper and left
+      // neighbours minus their overlap
+      for (int i = 0; i < blocks; i++) {
+        int at = (i + 1) * stride + j + 1;
+        int up = at - 1;
+        int left = at - stride;
+        int corner = left - 1;
+        red[at] = rowRed[i] + red[up] + red[left] - red[corner];
+        green[at] = rowGreen[i] + green[up] + green[left] - green[corner];
+        blue[at] = rowBlue[i] + blue[up] + blue[left] - blue[corner];
+        squares[at] = rowSquares[i] + squares[up] + squares[left] - squares[corner];
+      }
+    }
+  }
+
+  public int getBlocks() {
+    return blocks;
+  }
+
+  /**
+   * @return the variance of the red, green and blue values, averaged over the
+   *         three channels, of the {@code size x size} blocks from column
+   *         {@code i}, row {@code j}
+   */
+  public double getVariance(int i, int j, int size) {
+    double pixels = pixelsPerBlock * size * size;
+    double r = sum(red, i, j, size) / pixels;
+    double g = sum(green, i, j, size) / pixels;
+    double b = sum(blue, i, j, size) / pixels;
+    double meanSquare = sum(squares, i, j, size) / pixels;
+    return Math.max(0, (meanSquare - r * r - g * g - b * b) / 3);
+  }
+
+  private long sum(long[] table, int i, int j, int size) {
+    int stride = blocks + 1;
+    int topLeft = i * stride + j;
+    int topRight = (i + size) * stride + j;
+    return table[topRight + size] - table[topRight] - table[topLeft + size] + table[topLeft];
+  }
+
+}
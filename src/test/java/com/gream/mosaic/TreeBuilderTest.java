@@ -0,0 +1,70 @@
+package com.gream.mosaic;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import com.gream.mosaic.domainobjects.MosaicTile;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that image cache lines written by {@link MosaicTile#toCSV()} read
+ * back, paths with commas and quotes included, and that a bad line is left
+ * out rather than failing the whole cache.
+ */
+public class TreeBuilderTest extends TestCase {
+
+  public void testQuotedPathsRoundTrip() throws Exception {
+    MosaicTile comma = new MosaicTile("0", "images/beach, 2019.png", new Color(10, 20, 30));
+    MosaicTile quotes = new MosaicTile("1", "images/say \"hi\", x.jpg", new Color(40, 50, 60));
+    quotes.setGridColors(new int[] { 0x102030, 0x405060, 0x708090, 0xa0b0c0 });
+    MosaicTile plain = new MosaicTile("2", "images/plain.png", new Color(70, 80, 90));
+
+    List<MosaicTile> tiles = read(comma.toCSV(), quotes.toCSV(), plain.toCSV());
+
+    assertEquals(3, tiles.size());
+    assertEquals("images/beach, 2019.png", tiles.get(0).getPath());
+    assertEquals(new Color(10, 20, 30), tiles.get(0).getAverageColors());
+    assertEquals("images/say \"hi\", x.jpg", tiles.get(1).getPath());
+    assertTrue(Arrays.equals(quotes.getGridColors(), tiles.get(1).getGridColors()));
+    assertEquals("images/plain.png", tiles.get(2).getPath());
+    assertEquals(2, tiles.get(2).getIndex());
+  }
+
+  public void testBadLinesAreSkipped() throws Exception {
+    File cache = write("0,10,20,30,images/a.png",
+        "1,10,20,30,images/beach, 2019.png,2,000000,000000,000000,000000",
+        "2,10,20,300,images/b.png",
+        "3,10,20",
+        "4,40,50,60,images/c.png");
+    TreeBuilder builder = new TreeBuilder(cache.getPath());
+    builder.build();
+
+    List<MosaicTile> tiles = builder.getTiles();
+    assertEquals(3, builder.getSkipped());
+    assertEquals(2, tiles.size());
+    assertEquals("images/a.png", tiles.get(0).getPath());
+    assertEquals("images/c.png", tiles.get(1).getPath());
+    assertEquals(1, tiles.get(1).getIndex());
+  }
+
+  private static List<MosaicTile> read(String... lines) throws Exception {
+    TreeBuilder builder = new TreeBuilder(write(lines).getPath());
+    builder.build();
+    assertEquals(0, builder.getSkipped());
+    return builder.getTiles();
+  }
+
+  private static File write(String... lines) throws IOException {
+    File cache = File.createTempFile("imageCache", ".csv");
+    cache.deleteOnExit();
+    Files.write(cache.toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+    return cache;
+  }
+
+}
@@ -0,0 +1,123 @@
+package com.gream.mosaic.matching;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.gream.mosaic.domainobjects.MosaicTile;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the total error of the auction against an exhaustive search over
+ * every assignment of small instances, including ones with more cells than
+ * the initial candidate lists hold so that the lists have to grow.
+ */
+public class AuctionAssignmentTest extends TestCase {
+
+  private static final double TOLERANCE_PER_CELL = 0.01;
+
+  public void testRandomColours() throws Exception {
+    Random rnd = new Random(1);
+    for (int run = 0; run < 10; run++) {
+      assertOptimal(random(rnd, 6, 255), random(rnd, 9, 255), 2);
+    }
+  }
+
+  public void testExactFit() throws Exception {
+    Random rnd = new Random(2);
+    for (int run = 0; run < 5; run++) {
+      assertOptimal(random(rnd, 4, 255), random(rnd, 12, 255), 3);
+    }
+  }
+
+  public void testCrowdedCellsGrowTheirLists() throws Exception {
+    // Every cell wants the same dark tiles, so with 17 cells the 16 nearest
+    // run out and the far ones have to be listed
+    Random rnd = new Random(3);
+    for (int run = 0; run < 3; run++) {
+      List<MosaicTile> sources = random(rnd, 20, 255);
+      assertOptimal(sources, random(rnd, 17, 20), 1);
+      assertOptimal(sources, random(rnd, 17, 20), 2);
+    }
+  }
+
+  public void testTooFewSources() throws Exception {
+    Random rnd = new Random(4);
+    try {
+      new AuctionAssignment(random(rnd, 3, 255), 2).assign(random(rnd, 7, 255).toArray(new MosaicTile[0]));
+      fail();
+    } catch (IllegalStateException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("We ran out of images!"));
+    }
+  }
+
+  private static void assertOptimal(List<MosaicTile> sources, List<MosaicTile> targets, int capacity)
+      throws InterruptedException {
+    MosaicTile[] cells = targets.toArray(new MosaicTile[0]);
+    AuctionAssignment auction = new AuctionAssignment(sources, capacity);
+    MosaicTile[] result = auction.assign(cells);
+
+    Map<MosaicTile, Integer> uses = new IdentityHashMap<MosaicTile, Integer>();
+    double total = 0;
+    for (int i = 0; i < cells.length; i++) {
+      assertNotNull(result[i]);
+      Integer used = uses.get(result[i]);
+      uses.put(result[i], used == null ? 1 : used + 1);
+      total += MosaicTile.getDistance(cells[i], result[i]);
+    }
+    for (Map.Entry<MosaicTile, Integer> use : uses.entrySet()) {
+      assertTrue(use.getKey() + " used " + use.getValue() + " times", use.getValue() <= capacity);
+    }
+    assertEquals(total, auction.getTotalError(), 1e-6);
+
+    double optimal = bruteForce(sources, cells, capacity);
+    assertTrue(total + " is below the optimum " + optimal, total >= optimal - 1e-6);
+    assertEquals(optimal, total, TOLERANCE_PER_CELL * cells.length);
+  }
+
+  /**
+   * @return the least total error over every assignment, found by giving each
+   *         source in turn up to capacity of the cells still unfilled
+   */
+  private static double bruteForce(List<MosaicTile> sources, MosaicTile[] cells, int capacity) {
+    int m = cells.length;
+    double[] best = new double[1 << m];
+    Arrays.fill(best, Double.POSITIVE_INFINITY);
+    best[0] = 0;
+    for (MosaicTile source : sources) {
+      double[] cost = new double[m];
+      for (int i = 0; i < m; i++) {
+        cost[i] = MosaicTile.getDistance(cells[i], source);
+      }
+      for (int use = 0; use < capacity; use++) {
+        double[] next = best.clone();
+        for (int filled = 0; filled < best.length; filled++) {
+          if (best[filled] == Double.POSITIVE_INFINITY) {
+            continue;
+          }
+          for (int i = 0; i < m; i++) {
+            int with = filled | 1 << i;
+            if (with != filled && best[filled] + cost[i] < next[with]) {
+              next[with] = best[filled] + cost[i];
+            }
+          }
+        }
+        best = next;
+      }
+    }
+    return best[best.length - 1];
+  }
+
+  private static List<MosaicTile> random(Random rnd, int count, int max) {
+    List<MosaicTile> tiles = new ArrayList<MosaicTile>();
+    for (int i = 0; i < count; i++) {
+      tiles.add(new MosaicTile(rnd.nextInt(max + 1), rnd.nextInt(max + 1), rnd.nextInt(max + 1)));
+    }
+    return tiles;
+  }
+
+}
@@ -0,0 +1,89 @@
+package com.gream.mosaic.utils;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the table-driven LAB conversions against the {@code Math.pow}
+ * reference over a stride of the RGB cube, every corner and edge included.
+ */
+public class ColorSpaceUtilsTest extends TestCase {
+
+  private static final int STRIDE = 5; // 0, 5, ..., 255 on every channel
+
+  private static final double DOUBLE_TOLERANCE = 1e-9;
+  private static final double FLOAT_TOLERANCE = 1e-5;
+  private static final double CBRT_RELATIVE_TOLERANCE = 2e-12;
+
+  public void testRgbToLabMatchesReference() {
+    for (int r = 0; r <= 255; r += STRIDE) {
+      for (int g = 0; g <= 255; g += STRIDE) {
+        for (int b = 0; b <= 255; b += STRIDE) {
+          assertLab(r, g, b, ColorSpaceUtils.rgbToLabExact(r, g, b), ColorSpaceUtils.rgbToLab(r, g, b),
+              DOUBLE_TOLERANCE);
+        }
+      }
+    }
+  }
+
+  public void testRgbToLabIntoArrayMatchesReference() {
+    double[] lab = new double[3];
+    for (int r = 0; r <= 255; r += STRIDE) {
+      for (int g = 0; g <= 255; g += STRIDE) {
+        for (int b = 0; b <= 255; b += STRIDE) {
+          ColorSpaceUtils.rgbToLab(r, g, b, lab);
+          assertLab(r, g, b, ColorSpaceUtils.rgbToLabExact(r, g, b), lab, DOUBLE_TOLERANCE);
+        }
+      }
+    }
+  }
+
+  public void testBulkRgbToLabMatchesReference() {
+    int steps = 255 / STRIDE + 1;
+    int[] argb = new int[steps * steps * steps];
+    int n = 0;
+    for (int r = 0; r <= 255; r += STRIDE) {
+      for (int g = 0; g <= 255; g += STRIDE) {
+        for (int b = 0; b <= 255; b += STRIDE) {
+          // The alpha channel must be ignored
+          argb[n++] = 0x80000000 | (r << 16) | (g << 8) | b;
+        }
+      }
+    }
+    float[] labs = new float[argb.length * 3];
+    ColorSpaceUtils.rgbToLab(argb, labs);
+
+    for (int i = 0; i < argb.length; i++) {
+      int r = (argb[i] >> 16) & 0xFF;
+      int g = (argb[i] >> 8) & 0xFF;
+      int b = argb[i] & 0xFF;
+      double[] lab = { labs[3 * i], labs[3 * i + 1], labs[3 * i + 2] };
+      assertLab(r, g, b, ColorSpaceUtils.rgbToLabExact(r, g, b), lab, FLOAT_TOLERANCE);
+    }
+  }
+
+  public void testBulkRgbToLabRejectsShortOutput() {
+    try {
+      ColorSpaceUtils.rgbToLab(new int[2], new float[5]);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // The output must hold three values per pixel
+    }
+  }
+
+  public void testFastCbrt() {
+    // The range labF takes cube roots of, with some margin
+    for (double x = 0.008; x <= 1.2; x += 1e-4) {
+      double expected = Math.cbrt(x);
+      assertEquals("cbrt(" + x + ")", expected, ColorSpaceUtils.fastCbrt(x),
+          expected * CBRT_RELATIVE_TOLERANCE);
+    }
+  }
+
+  private static void assertLab(int r, int g, int b, double[] expected, double[] actual, double tolerance) {
+    String colour = "rgb(" + r + ", " + g + ", " + b + ")";
+    assertEquals(colour + " L", expected[0], actual[0], tolerance);
+    assertEquals(colour + " a", expected[1], actual[1], tolerance);
+    assertEquals(colour + " b", expected[2], actual[2], tolerance);
+  }
+
+}
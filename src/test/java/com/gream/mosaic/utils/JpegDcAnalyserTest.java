@@ -0,0 +1,150 @@
+package com.gream.mosaic.utils;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.w3c.dom.NodeList;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the DC-coefficient average of JPEGs written by ImageIO against the
+ * average of a full decode, at small and odd sizes where the padding of the
+ * edge blocks matters, with and without chroma subsampling.
+ */
+public class JpegDcAnalyserTest extends TestCase {
+
+  private static final int TOLERANCE = 2;
+
+  private static final int[] WIDTHS = { 1, 7, 13, 16, 33, 44, 63, 64, 65, 100, 123, 129 };
+  private static final int[] HEIGHTS = { 5, 6, 13, 16, 48, 71, 100 };
+
+  private File file;
+
+  @Override
+  protected void setUp() throws Exception {
+    file = File.createTempFile("jpegdc", ".jpg");
+  }
+
+  @Override
+  protected void tearDown() {
+    file.delete();
+  }
+
+  public void testSubsampledMatchesFullDecode() throws Exception {
+    assertSizes(true, 0);
+  }
+
+  public void testFullChromaWithRestartsMatchesFullDecode() throws Exception {
+    assertSizes(false, 3);
+  }
+
+  public void testSmallPaddedImagesFallBack() throws Exception {
+    // Where the DC average used to be off by up to 40 levels
+    int[][] sizes = { { 7, 6 }, { 44, 13 }, { 123, 5 } };
+    for (int[] size : sizes) {
+      write(image(0, size[0], size[1]), true, 0);
+      assertNull(size[0] + "x" + size[1], JpegDcAnalyser.getAverageRGB(file));
+    }
+  }
+
+  public void testNotAJpeg() throws Exception {
+    ImageIO.write(image(0, 20, 20), "png", file);
+    assertNull(JpegDcAnalyser.getAverageRGB(file));
+  }
+
+  private void assertSizes(boolean subsampled, int restartInterval) throws IOException {
+    for (int width : WIDTHS) {
+      for (int height : HEIGHTS) {
+        for (int pattern = 0; pattern < 3; pattern++) {
+          write(image(pattern, width, height), subsampled, restartInterval);
+          String name = width + "x" + height + " pattern " + pattern;
+          Color dc = JpegDcAnalyser.getAverageRGB(file);
+          if (width >= 64 && height >= 64) {
+            // At least four MCUs along each side, so no fallback
+            assertNotNull(name, dc);
+          }
+          if (dc != null) {
+            Color full = ImageUtils.getAverageRGB(ImageIO.read(file));
+            assertEquals(name + " red", full.getRed(), dc.getRed(), TOLERANCE);
+            assertEquals(name + " green", full.getGreen(), dc.getGreen(), TOLERANCE);
+            assertEquals(name + " blue", full.getBlue(), dc.getBlue(), TOLERANCE);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @return two halves in contrasting colours, a gradient or seeded noise
+   */
+  private static BufferedImage image(int pattern, int width, int height) {
+    BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    if (pattern == 0) {
+      Graphics2D g = img.createGraphics();
+      g.setColor(Color.RED);
+      g.fillRect(0, 0, width, height);
+      g.setColor(Color.BLUE);
+      g.fillRect(width / 2, 0, width, height);
+      g.dispose();
+      return img;
+    }
+    Random rnd = new Random(width * 1000 + height);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int rgb = pattern == 1 ? new Color(x * 255 / width, y * 255 / height, (x + y) % 256).getRGB()
+            : rnd.nextInt();
+        img.setRGB(x, y, rgb);
+      }
+    }
+    return img;
+  }
+
+  /**
+   * Writes a baseline JPEG, with 2x2 subsampled chroma as ImageIO does by
+   * default or with full chroma, and restart markers every given number of
+   * MCUs unless 0.
+   */
+  private void write(BufferedImage img, boolean subsampled, int restartInterval) throws IOException {
+    ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+    file.delete(); // The stream would not truncate it
+    try (ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+      writer.setOutput(out);
+      IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(img),
+          null);
+      String format = metadata.getNativeMetadataFormatName();
+      IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(format);
+      IIOMetadataNode markers = (IIOMetadataNode) root.getElementsByTagName("markerSequence").item(0);
+      if (!subsampled) {
+        NodeList components = root.getElementsByTagName("componentSpec");
+        for (int i = 0; i < components.getLength(); i++) {
+          IIOMetadataNode component = (IIOMetadataNode) components.item(i);
+          component.setAttribute("HsamplingFactor", "1");
+          component.setAttribute("VsamplingFactor", "1");
+        }
+      }
+      if (restartInterval > 0) {
+        IIOMetadataNode dri = new IIOMetadataNode("dri");
+        dri.setAttribute("interval", Integer.toString(restartInterval));
+        markers.insertBefore(dri, markers.getFirstChild());
+      }
+      metadata.setFromTree(format, root);
+      writer.write(null, new IIOImage(img, null, metadata), null);
+    } finally {
+      writer.dispose();
+    }
+  }
+
+}
@@ -0,0 +1,92 @@
+package com.gream.mosaic.utils;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that PNGs written on one and on several threads read back through
+ * ImageIO pixel for pixel, at every kind of deflate level and with bands
+ * ending inside the image.
+ */
+public class ParallelPngWriterTest extends TestCase {
+
+  private static final int[] LEVELS = { 0, 1, 6, 9 };
+  private static final int[] THREADS = { 1, 3 };
+
+  // Rows of 601 bytes give bands of 436 rows, so three of them with the
+  // last one short
+  private static final int WIDTH = 200;
+  private static final int HEIGHT = 1000;
+
+  public void testSingleBandRoundTrips() throws Exception {
+    assertRoundTrips(image(1, 1));
+    assertRoundTrips(image(37, 11));
+  }
+
+  public void testSeveralBandsRoundTrip() throws Exception {
+    assertRoundTrips(image(WIDTH, HEIGHT));
+  }
+
+  public void testThreadsWriteTheSameFile() throws Exception {
+    BufferedImage img = image(WIDTH, HEIGHT);
+    for (int level : LEVELS) {
+      byte[] single = write(img, 1, level);
+      for (int threads : THREADS) {
+        assertTrue("level " + level + ", " + threads + " threads",
+            Arrays.equals(single, write(img, threads, level)));
+      }
+    }
+  }
+
+  private static void assertRoundTrips(BufferedImage img) throws IOException {
+    for (int level : LEVELS) {
+      for (int threads : THREADS) {
+        String name = img.getWidth() + "x" + img.getHeight() + " level " + level + ", " + threads + " threads";
+        BufferedImage read = ImageIO.read(new ByteArrayInputStream(write(img, threads, level)));
+        assertNotNull(name, read);
+        assertEquals(name, img.getWidth(), read.getWidth());
+        assertEquals(name, img.getHeight(), read.getHeight());
+        for (int y = 0; y < img.getHeight(); y++) {
+          for (int x = 0; x < img.getWidth(); x++) {
+            if (img.getRGB(x, y) != read.getRGB(x, y)) {
+              fail(name + ": pixel " + x + "," + y + " is " + Integer.toHexString(read.getRGB(x, y))
+                  + ", not " + Integer.toHexString(img.getRGB(x, y)));
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private static byte[] write(BufferedImage img, int threads, int level) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new ParallelPngWriter(threads, level).write(img, out);
+    return out.toByteArray();
+  }
+
+  /**
+   * @return a gradient with seeded noise in the lower half, so that the
+   *         filters differ from row to row and some bands barely compress
+   */
+  private static BufferedImage image(int width, int height) {
+    BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Random rnd = new Random(width * 1000 + height);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int rgb = y < height / 2 ? (x * 255 / width) << 16 | (y * 255 / height) << 8 | (x + y) & 0xff
+            : rnd.nextInt() & 0xffffff;
+        img.setRGB(x, y, rgb);
+      }
+    }
+    return img;
+  }
+
+}